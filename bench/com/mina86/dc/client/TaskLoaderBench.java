@@ -0,0 +1,89 @@
+/*
+ * Copyright 2008-2009 by Michal Nazarewicz (mina86/AT/mina86.com)
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mina86.dc.client;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import com.mina86.dc.common.Task;
+import com.mina86.dc.tasks.BogoSort;
+
+
+/** Benchmarks saving and loading tasks with TaskLoader. */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class TaskLoaderBench {
+	/** Number of elements to sort. */
+	@Param({ "8", "1024" })
+	public int size;
+
+	/** Task to save. */
+	private Task task;
+
+
+	/** Prepares the task and saves it once so it can be loaded. */
+	@Setup
+	public void setUp() throws IOException {
+		TaskLoader.currentTaskName =
+			File.createTempFile("bench", ".task").getPath();
+
+		Random random = new Random(42);
+		Long data[] = new Long[size];
+		for (int i = 0; i < size; ++i) {
+			data[i] = Long.valueOf(random.nextInt(1000000000));
+		}
+		task = new BogoSort<Long>(data);
+		TaskLoader.saveTask(task);
+	}
+
+	/** Removes saved task. */
+	@TearDown
+	public void tearDown() {
+		TaskLoader.deleteTask();
+	}
+
+
+	/** Measures saving a task. */
+	@Benchmark
+	public void saveTask() throws IOException {
+		TaskLoader.saveTask(task);
+	}
+
+	/** Measures loading a task. */
+	@Benchmark
+	public Task loadTask() throws IOException, ClassNotFoundException {
+		return TaskLoader.loadTask();
+	}
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright 2008-2009 by Michal Nazarewicz (mina86/AT/mina86.com)
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mina86.dc.tasks;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import com.mina86.dc.common.Task;
+
+
+/**
+ * Benchmarks overhead of AbstractTask.run() loop with a given number
+ * of progress listeners.  The task does no real work so what is
+ * measured is the cost of the loop itself per iteration.  The loop is
+ * also measured when sliced with runIterations() and runFor() as
+ * a scheduler time-slicing several tasks would do.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class AbstractTaskBench {
+	/** Number of iterations per run() call. */
+	private static final int iterationsPerRun = 10000;
+	/** Number of iterations per runIterations() slice. */
+	private static final int iterationsPerSlice = 100;
+	/** Length of a runFor() slice in nanoseconds. */
+	private static final long nanosPerSlice = 1000;
+
+	/** A task doing nothing. */
+	private static final class EmptyTask extends AbstractTask {
+		/** Version UID used for serialization. */
+		static final long serialVersionUID = 0x3f1c5e0b9d27a486L;
+
+		/** Constructs object. */
+		EmptyTask() { super(iterationsPerRun, 0); }
+
+		protected boolean nextIteration() {
+			return ++iterations < end;
+		}
+	}
+
+	/** A listener consuming reported progress. */
+	private static final class Listener implements Task.ProgressListener {
+		/** Where to sink progress to. */
+		private final Blackhole blackhole;
+		/** Constructs object.  \param bh where to sink progress to. */
+		Listener(Blackhole bh) { blackhole = bh; }
+
+		public void onProgress(Task task, long iterations, long end) {
+			blackhole.consume(iterations);
+		}
+	}
+
+
+	/** Number of listeners. */
+	@Param({ "0", "1", "8" })
+	public int listeners;
+
+	/** Task being run. */
+	private EmptyTask task;
+
+
+	/**
+	 * Prepares the task.
+	 * \param bh where listeners sink progress to.
+	 */
+	@Setup
+	public void setUp(Blackhole bh) {
+		task = new EmptyTask();
+		for (int i = 0; i < listeners; ++i) {
+			task.addProgressListener(new Listener(bh));
+		}
+	}
+
+
+	/** Measures run() loop. */
+	@Benchmark
+	@OperationsPerInvocation(iterationsPerRun)
+	public boolean run() {
+		task.iterations = 0;
+		return task.run();
+	}
+
+
+	/** Measures run() loop sliced with runIterations(). */
+	@Benchmark
+	@OperationsPerInvocation(iterationsPerRun)
+	public long runIterations() {
+		task.iterations = 0;
+		while (!task.runIterations(iterationsPerSlice)) {
+			/* next slice */
+		}
+		return task.iterations();
+	}
+
+	/** Measures run() loop sliced with runFor(). */
+	@Benchmark
+	@OperationsPerInvocation(iterationsPerRun)
+	public long runFor() {
+		task.iterations = 0;
+		while (!task.runFor(nanosPerSlice)) {
+			/* next slice */
+		}
+		return task.iterations();
+	}
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright 2008-2009 by Michal Nazarewicz (mina86/AT/mina86.com)
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mina86.dc.tasks;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntFunction;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+ * Benchmarks of BogoSort kernels, ie. generateNextState() and
+ * quickVerifyResult(), for various sizes and element types.
+ * Verification is measured both on a sorted sequence (full scan) and
+ * on a shuffled one (which usually stops after few elements).
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class BogoSortBench {
+	/** Number of elements to sort. */
+	@Param({ "4", "8", "64", "1024" })
+	public int size;
+
+	/** Type of elements to sort. */
+	@Param({ "Long", "Integer", "Double", "String" })
+	public String type;
+
+	/** Task which is being shuffled. */
+	private BogoSort<?> shuffled;
+	/** Task whose data is sorted. */
+	private BogoSort<?> sorted;
+
+
+	/** Prepares tasks. */
+	@Setup
+	public void setUp() {
+		if (type.equals("Long")) {
+			setUp(new Long[size], v -> Long.valueOf(v));
+		} else if (type.equals("Integer")) {
+			setUp(new Integer[size], v -> Integer.valueOf(v));
+		} else if (type.equals("Double")) {
+			setUp(new Double[size], v -> Double.valueOf(v));
+		} else {
+			setUp(new String[size], v -> String.valueOf(v));
+		}
+	}
+
+	/**
+	 * Prepares tasks sorting elements of given type.
+	 * \param data    array to fill with elements.
+	 * \param element returns element of given value.
+	 */
+	private <T extends Comparable<? super T>> void setUp(T data[],
+	                                                    IntFunction<T> element) {
+		Random random = new Random(42);
+		for (int i = 0; i < data.length; ++i) {
+			data[i] = element.apply(random.nextInt(1000000000));
+		}
+		BogoSort<T> task = new BogoSort<T>(data);
+		task.generateNextState();
+		shuffled = task;
+
+		Arrays.sort(data);
+		sorted = new BogoSort<T>(data);
+	}
+
+
+	/** Measures generating next permutation. */
+	@Benchmark
+	public BogoSort<?> generateNextState() {
+		shuffled.generateNextState();
+		return shuffled;
+	}
+
+	/** Measures generating and verifying next permutation at once. */
+	@Benchmark
+	public boolean generateAndVerify() {
+		return shuffled.generateAndVerify();
+	}
+
+	/** Measures verifying a shuffled sequence. */
+	@Benchmark
+	public boolean quickVerifyShuffled() {
+		return shuffled.quickVerifyResult();
+	}
+
+	/** Measures verifying a sorted sequence. */
+	@Benchmark
+	public boolean quickVerifySorted() {
+		return sorted.quickVerifyResult();
+	}
+}
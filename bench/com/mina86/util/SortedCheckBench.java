@@ -0,0 +1,102 @@
+/*
+ * Copyright 2008-2009 by Michal Nazarewicz (mina86/AT/mina86.com)
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mina86.util;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+ * Benchmarks of SortedCheck on sorted arrays (ie. full scans) compared
+ * with a plain scalar loop, both for on-heap and off-heap arrays.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = { "--add-modules=jdk.incubator.vector",
+                                   "-XX:MaxDirectMemorySize=1g" })
+@State(Scope.Thread)
+public class SortedCheckBench {
+	/** Number of elements. */
+	@Param({ "1024", "1048576", "16777216" })
+	public int size;
+
+	/** Sorted on-heap array. */
+	private long array[];
+	/** Sorted off-heap array. */
+	private DirectLongArray direct;
+	/** Scalar kernel. */
+	private final SortedCheck.Kernel scalar = new SortedCheck.ScalarKernel();
+
+
+	/** Prepares arrays. */
+	@Setup
+	public void setUp() {
+		Random random = new Random(42);
+		array = new long[size];
+		for (int i = 0; i < size; ++i) {
+			array[i] = random.nextLong();
+		}
+		java.util.Arrays.sort(array);
+
+		direct = new DirectLongArray(size);
+		for (int i = 0; i < size; ++i) {
+			direct.set(i, array[i]);
+		}
+	}
+
+
+	/** Measures scalar loop over on-heap array. */
+	@Benchmark
+	public boolean scalarArray() {
+		return scalar.isSorted(array, 0, array.length);
+	}
+
+	/** Measures SortedCheck of on-heap array. */
+	@Benchmark
+	public boolean checkArray() {
+		return SortedCheck.isSorted(array);
+	}
+
+	/** Measures scalar loop over off-heap array. */
+	@Benchmark
+	public boolean scalarDirect() {
+		for (long i = 1, n = direct.length(); i < n; ++i) {
+			if (direct.get(i - 1) > direct.get(i)) return false;
+		}
+		return true;
+	}
+
+	/** Measures SortedCheck of off-heap array. */
+	@Benchmark
+	public boolean checkDirect() {
+		return SortedCheck.isSorted(direct);
+	}
+}
@@ -19,16 +19,17 @@ package com.mina86;
 
 import java.io.PrintStream;
 import com.mina86.dc.client.Client;
+import com.mina86.dc.relay.Relay;
 import com.mina86.dc.server.Server;
 import com.mina86.util.SignalHandlers;
 
 
 /**
- * Starter of com.mina86.dc.client.Client and
- * com.mina86.dc.server.Server classes.  It contains some common code
- * base which otherwise would have to be included in both client and
- * server but mostly it allows easier execution of each application as
- * you type <tt>java com.mina86.DC server</tt> instead of <tt>java
+ * Starter of com.mina86.dc.client.Client, com.mina86.dc.server.Server
+ * and com.mina86.dc.relay.Relay classes.  It contains some common code
+ * base which otherwise would have to be included in each of them but
+ * mostly it allows easier execution of each application as you type
+ * <tt>java com.mina86.DC server</tt> instead of <tt>java
  * com.mina86.dc.server.Server</tt>.
  */
 public class DC {
@@ -74,6 +75,8 @@ public class DC {
 			app = new Server();
 		} else if (args[0].equals("client")) {
 			app = new Client();
+		} else if (args[0].equals("relay")) {
+			app = new Relay();
 		} else {
 			usage(System.err, 1);
 		}
@@ -88,7 +91,8 @@ public class DC {
 	private static String usageLines[] =  {
 		"usage: java com.mina86.dc <application> [ <options> ]",
 		"<application>:  server  -- start DC server",
-		"                client  -- start DC client"
+		"                client  -- start DC client",
+		"                relay   -- start DC relay"
 	};
 
 	/**
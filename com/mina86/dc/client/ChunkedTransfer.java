@@ -0,0 +1,246 @@
+/*
+ * Copyright 2008-2009 by Michal Nazarewicz (mina86/AT/mina86.com)
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.mina86.dc.client;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.concurrent.ThreadLocalRandom;
+import com.mina86.dc.common.Chunk;
+import com.mina86.dc.common.ServerBusyException;
+import com.mina86.dc.common.ServerInterface;
+import com.mina86.dc.common.Task;
+
+
+/**
+ * Client side of chunked transfers.  Downloaded chunks are written to
+ * a file and the task is deserialized from it once complete; results
+ * are saved on disk and uploaded from the file chunk by chunk.  Either
+ * way serialized form of a task is never kept in memory as a whole.
+ *
+ * If a transfer fails it is resumed from where it stopped the next
+ * time it is attempted with the same shard.  An upload is recognised
+ * by the name of the file result is saved in and result's identifier
+ * so it is resumed even if the result was loaded from disk again.
+ */
+final class ChunkedTransfer {
+	/** File task being downloaded is written to. */
+	static String partialTaskName = "partial-task";
+	/** How many damaged chunks in a row are tolerated. */
+	private static final int maxBadChunks = 3;
+
+
+	/** Shard download in progress was started with or \c null. */
+	private ServerShard downloadShard = null;
+	/** Identifier of download in progress. */
+	private long downloadId;
+	/** Number of bytes downloaded. */
+	private long downloadOffset;
+
+	/** Name of file with result being uploaded or \c null. */
+	private String uploadName = null;
+	/** Identifier of result being uploaded. */
+	private long uploadTaskId;
+	/** Shard upload in progress was started with. */
+	private ServerShard uploadShard = null;
+	/** Identifier of upload in progress. */
+	private long uploadId;
+	/** Number of bytes server acknowledged. */
+	private long uploadOffset;
+	/** Length of result being uploaded. */
+	private long uploadTotal;
+	/** Size of the last task or result transferred. */
+	private long transferred = 0;
+
+
+	/** Returns size of the last task or result transferred. */
+	long transferred() {
+		return transferred;
+	}
+
+	/** Returns a random transfer identifier. */
+	private static long newId() {
+		return ThreadLocalRandom.current().nextLong() | 1;
+	}
+
+
+	/**
+	 * Downloads a task.
+	 * \param s      shard the server belongs to.
+	 * \param server server to download task from.
+	 * \param n      desired task's size or zero.
+	 * \return the task or \c null if server has no pending tasks.
+	 * \throw IOException if transfer failed; it will be resumed when
+	 *                    download from the same shard is retried.
+	 * \throw ClassNotFoundException if task could not be deserialized.
+	 * \throw ServerBusyException if server refused a chunk; transfer
+	 *                           will be resumed as well.
+	 */
+	Task download(ServerShard s, ServerInterface server, int n)
+		throws IOException, ClassNotFoundException, ServerBusyException {
+		if (s != downloadShard) {
+			downloadShard = s;
+			downloadId = newId();
+			downloadOffset = 0;
+		}
+
+		RandomAccessFile out = new RandomAccessFile(partialTaskName, "rw");
+		try {
+			int bad = 0;
+			for (;;) {
+				Chunk c = server.getTaskChunk(downloadId, n, downloadOffset);
+				if (c == null) {
+					downloadShard = null;
+					if (downloadOffset == 0) {
+						return null;
+					}
+					/* Server forgot the transfer, start anew. */
+					downloadShard = s;
+					downloadId = newId();
+					downloadOffset = 0;
+					continue;
+				}
+
+				if (!c.isValid() || c.transfer != downloadId ||
+				    c.offset != downloadOffset) {
+					if (++bad > maxBadChunks) {
+						throw new IOException("damaged chunk at offset " +
+						                      downloadOffset);
+					}
+					continue;
+				}
+
+				bad = 0;
+				out.seek(c.offset);
+				out.write(c.data);
+				downloadOffset = c.end();
+				if (downloadOffset == c.total) {
+					out.setLength(c.total);
+					transferred = c.total;
+					break;
+				}
+			}
+		}
+		finally {
+			out.close();
+		}
+
+		downloadShard = null;
+
+		/* Let server forget the transfer.  If this is lost, server
+		 * forgets it once it is idle for long enough. */
+		try {
+			server.getTaskChunk(downloadId, n, downloadOffset);
+		}
+		catch (Exception e) {
+			/* ignore */
+		}
+
+		try {
+			return TaskLoader.loadTask(partialTaskName);
+		}
+		finally {
+			new File(partialTaskName).delete();
+		}
+	}
+
+
+	/**
+	 * Uploads a result.  The result is saved on disk first (as the
+	 * current task) and sent from there.
+	 * \param s      shard the server belongs to.
+	 * \param server server to send result to.
+	 * \param t      the result.
+	 * \throw IOException if transfer failed; it will be resumed when
+	 *                    upload of the same result to the same shard
+	 *                    is retried.
+	 * \throw ServerBusyException if server refused a chunk; transfer
+	 *                           will be resumed as well.
+	 */
+	void upload(ServerShard s, ServerInterface server, Task t)
+		throws IOException, ServerBusyException {
+		if (!isUploading(s, t, TaskLoader.currentTaskName)) {
+			TaskLoader.saveTask(t);
+		}
+		upload(s, server, t, TaskLoader.currentTaskName);
+	}
+
+	/**
+	 * Uploads a result which is already saved in a file.
+	 * \param s      shard the server belongs to.
+	 * \param server server to send result to.
+	 * \param t      the result.
+	 * \param name   name of the file \a t is saved in.
+	 * \throw IOException if transfer failed; it will be resumed when
+	 *                    upload of the same result to the same shard
+	 *                    is retried.
+	 * \throw ServerBusyException if server refused a chunk; transfer
+	 *                           will be resumed as well.
+	 */
+	void upload(ServerShard s, ServerInterface server, Task t, String name)
+		throws IOException, ServerBusyException {
+		RandomAccessFile in = new RandomAccessFile(name, "r");
+		try {
+			long total = in.length();
+			if (!isUploading(s, t, name) || total != uploadTotal) {
+				uploadName = name;
+				uploadTaskId = t.id();
+				uploadShard = s;
+				uploadTotal = total;
+				uploadId = newId();
+				uploadOffset = 0;
+			}
+			int stalls = 0;
+			while (uploadOffset < total) {
+				byte data[] =
+					new byte[(int)Math.min(Chunk.maxSize, total - uploadOffset)];
+				in.seek(uploadOffset);
+				in.readFully(data);
+
+				long offset = server.sendResultChunk(
+					new Chunk(uploadId, uploadOffset, total, data));
+				if (offset <= uploadOffset && ++stalls > maxBadChunks) {
+					throw new IOException("server does not accept chunk at offset " +
+					                      uploadOffset);
+				} else if (offset > uploadOffset) {
+					stalls = 0;
+				}
+				uploadOffset = offset;
+			}
+		}
+		finally {
+			in.close();
+		}
+
+		uploadName = null;
+		uploadShard = null;
+		transferred = uploadOffset;
+	}
+
+	/**
+	 * Returns whether upload in progress is of given result.
+	 * \param s    shard the server belongs to.
+	 * \param t    the result.
+	 * \param name name of the file \a t is saved in.
+	 */
+	private boolean isUploading(ServerShard s, Task t, String name) {
+		return name.equals(uploadName) && t.id() == uploadTaskId &&
+			s == uploadShard;
+	}
+}
@@ -18,16 +18,45 @@
 /** Implementation of distributed computing client program. */
 package com.mina86.dc.client;
 
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
 import java.rmi.NotBoundException;
 import java.rmi.RemoteException;
-import java.rmi.registry.LocateRegistry;
-import java.rmi.registry.Registry;
 import java.text.DecimalFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.UUID;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import javax.management.ObjectName;
 import com.mina86.DC;
 import com.mina86.dc.client.TaskLoader;
+import com.mina86.dc.common.Events;
+import com.mina86.dc.common.ServerBusyException;
 import com.mina86.dc.common.ServerInterface;
 import com.mina86.dc.common.Task;
+import com.mina86.dc.tasks.AbstractTask;
+import com.mina86.util.ConsistentHash;
 import com.mina86.util.GetOptions;
+import com.mina86.util.RetryBudget;
 import com.mina86.util.RunRetry;
 import com.mina86.util.SignalHandlers;
 
@@ -37,6 +66,8 @@ public final class Client implements Task.ProgressListener, DC.Application {
 
 	/** Whether client is running or was it interrupted and should stop. */
 	private volatile boolean running = true;
+	/** Released when run() finishes so signal handler can wait for it. */
+	private final CountDownLatch finished = new CountDownLatch(1);
 
 	/**
 	 * An entry function called from com.mina86.DC.main().
@@ -44,17 +75,76 @@ public final class Client implements Task.ProgressListener, DC.Application {
 	 */
 	public void run(String args[]) {
 		try {
-			GetOptions.VectorHandler vec = new GetOptions.VectorHandler(1);
+			GetOptions.VectorHandler vec = new GetOptions.VectorHandler(2);
+			GetOptions.VectorHandler shardArg = new GetOptions.VectorHandler();
+			GetOptions.StringHandler idArg = new GetOptions.StringHandler();
 			GetOptions getopts = new GetOptions();
 			GetOptions.IntegerHandler timeArg =
 				new GetOptions.IntegerHandler(0, 1, Integer.MAX_VALUE);
+			GetOptions.IntegerHandler reportArg =
+				new GetOptions.IntegerHandler(300, 0, Integer.MAX_VALUE);
+			GetOptions.StringHandler jitterArg =
+				new GetOptions.StringHandler("decorrelated");
+			GetOptions.IntegerHandler migrateArg =
+				new GetOptions.IntegerHandler(0, 0, 3600);
+			GetOptions.FlagHandler chunkedArg = new GetOptions.FlagHandler();
+			GetOptions.IntegerHandler prefetchArg =
+				new GetOptions.IntegerHandler(4, 0, 1024);
+			GetOptions.IntegerHandler pauseArg =
+				new GetOptions.IntegerHandler(10, 1, 1000);
 			getopts.addOption("-", vec, GetOptions.TakesArg.REQ);
 			getopts.addOption("t", timeArg, GetOptions.TakesArg.REQ);
+			getopts.addOption("report", reportArg, GetOptions.TakesArg.REQ);
+			getopts.addOption("s", shardArg, GetOptions.TakesArg.REQ);
+			getopts.addOption("id", idArg, GetOptions.TakesArg.REQ);
+			getopts.addOption("jitter", jitterArg, GetOptions.TakesArg.REQ);
+			getopts.addOption("m", migrateArg, GetOptions.TakesArg.REQ);
+			getopts.addAlias("migrate", "m");
+			getopts.addOption("chunked", chunkedArg, GetOptions.TakesArg.NO);
+			getopts.addOption("prefetch", prefetchArg, GetOptions.TakesArg.REQ);
+			getopts.addOption("pause-latency", pauseArg, GetOptions.TakesArg.REQ);
+			getopts.addAlias("shard", "s");
 			getopts.parseArguments(args, 1);
 
-			serviceName = vec.get(0, DC.defaultServiceName);
-			rmiURL = vec.get(1, DC.defaultRegistryURL);
+			ArrayList<ServerShard> list = new ArrayList<ServerShard>();
+			for (String spec : shardArg.vector) {
+				try { list.add(ServerShard.parse(spec)); }
+				catch (NumberFormatException e) {
+					throw new GetOptions.InvalidValue("s", spec, "invalid port");
+				}
+			}
+			if (list.isEmpty()) {
+				list.add(new ServerShard(vec.get(1, DC.defaultRegistryURL),
+				                         vec.get(0, DC.defaultServiceName)));
+			}
+
+			clientId = idArg.value == null ? loadClientId() : idArg.value;
+			shards = new ConsistentHash<ServerShard>(list, 64).order(clientId);
+
+			RunRetry.Jitter jitter;
+			try {
+				jitter = RunRetry.Jitter.valueOf(jitterArg.value.toUpperCase());
+			}
+			catch (IllegalArgumentException e) {
+				throw new GetOptions.InvalidValue("jitter", jitterArg.value,
+				                                  "expected none, full or decorrelated");
+			}
+			retryPolicy = new RunRetry.Policy(
+				4000, 1024000, jitter,
+				null,
+				new RetryBudget(0.2, 0.1, 10));
+			if (shards.size() > 1) {
+				System.out.println("Client " + clientId + ", shards: " +
+				                   shards + ".");
+			}
 			constTime = timeArg.value * 1000;
+			reportPeriod = reportArg.value * 1000L;
+			migrateTimeout = migrateArg.value * 1000L;
+			prefetchCount = prefetchArg.value;
+			AbstractTask.setPauseLatency(pauseArg.value * 1000000L);
+			if (chunkedArg.value) {
+				chunked = new ChunkedTransfer();
+			}
 			if (constTime != 0) {
 				System.out.println("Aiming at constant time " +
 				                   formatTime(constTime) + ".");
@@ -66,61 +156,291 @@ public final class Client implements Task.ProgressListener, DC.Application {
 		}
 
 		try {
+			work();
+		}
+		finally {
+			finished.countDown();
+		}
+	}
+
+
+	/** Registers management bean and calculates tasks until interrupted. */
+	private void work() {
+
+		System.out.print("Registering management bean... ");
+		try {
+			ManagementFactory.getPlatformMBeanServer().registerMBean(
+				stats, new ObjectName("com.mina86.dc:type=Client"));
+			System.out.print("done.\n");
+		}
+		catch (Exception e) {
+			System.out.println("failed.\n" + e.toString());
+		}
+
+		System.out.print("Opening outbox... ");
+		try {
+			outbox = new Outbox(outboxDirName, "result-");
+			stats.outbox = outbox;
+			System.out.print("done (" + outbox.size() + " results queued).\n");
+		}
+		catch (IOException e) {
+			System.out.println("failed.\n" + e.toString());
+		}
+
+		if (prefetchCount != 0) {
+			System.out.print("Opening prefetched tasks... ");
+			try {
+				prefetched = new Outbox(prefetchDirName, "task-");
+				stats.prefetched = prefetched;
+				System.out.print("done (" + prefetched.size() + " tasks).\n");
+			}
+			catch (IOException e) {
+				System.out.println("failed.\n" + e.toString());
+			}
+		}
+
+		if (reportPeriod != 0) {
+			new Timer("latency-report", true).schedule(new TimerTask() {
+				public void run() {
+					System.out.println("\nLatencies:");
+					stats.printLatencies(System.out);
+				}
+			}, reportPeriod, reportPeriod);
+		}
+
+		try {
+			startDrain();
 			do {
-				RunRetry.run(new RunRetry.Job() {
-					public boolean run(boolean first) { return getTask(first); }
-				});
+				awaitPrefetch();
+				retry(new RunRetry.Job() {
+					public boolean run(boolean first) {
+						if (!first) stats.fetchRetries.increment();
+						return getTask(first);
+					}
+					public long retryAfter() {
+						return retryAfter;
+					}
+				}, scheduler);
+				startDrain();
+				startPrefetch();
 
 				/* Run task */
 				if (runTask()) {
-					RunRetry.run(new RunRetry.Job() {
-						public boolean run(boolean first) { return sendTask(first); }
-					});
+					deliverResult();
 				} else {
 					running = false;
-					saveTask();
+					suspendTask();
 				}
 			} while (running);
 		}
 		catch (InterruptedException e) {
 			System.out.println("Interrupted.");
 			if (task != null) {
-				saveTask();
+				suspendTask();
 			}
 		}
 
+		scheduler.shutdownNow();
+		sender.shutdownNow();
+		if (migrateTimeout != 0) {
+			returnPrefetched();
+		}
+		System.out.println("Latencies:");
+		stats.printLatencies(System.out);
 		System.out.println("Client finished.");
 	}
 
 
-	/** URL to the RMI registry. */
-	private String rmiURL;
-	/** Distributed computing server name in RMI registry. */
-	private String serviceName;
-	/** Distributed computing server. */
-	private ServerInterface server = null;
+	/** How operations on server are retried. */
+	private RunRetry.Policy retryPolicy;
+	/** Scheduler fetching and prefetching tasks (and retries) run on. */
+	private final ScheduledExecutorService scheduler = executor("retry");
+	/**
+	 * Scheduler sending results (and retries) run on so that slow
+	 * sending of queued results does not delay fetching tasks.
+	 */
+	private final ScheduledExecutorService sender = executor("send");
+	/** Retry in progress or \c null. */
+	private volatile CompletableFuture<Void> retry = null;
+
+	/**
+	 * Creates a single thread scheduler with daemon thread.
+	 * \param name thread's name.
+	 */
+	private static ScheduledExecutorService executor(final String name) {
+		return Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, name);
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	/**
+	 * Runs \a job on a scheduler until it succeeds and waits for it.
+	 * Retry is cancelled when a signal is received.
+	 * \param job  job to run.
+	 * \param exec scheduler to run job on.
+	 * \throw InterruptedException if retry was cancelled or job threw
+	 *                             that exception.
+	 */
+	private void retry(RunRetry.Job job, ScheduledExecutorService exec)
+		throws InterruptedException {
+		await(RunRetry.schedule(job, retryPolicy, exec, stats.backoffSleeps));
+	}
+
+	/**
+	 * Waits for prefetching in progress if there are no prefetched
+	 * tasks left so that client does not fetch a task on its own at
+	 * the same time, backing off independently and sleeping after
+	 * prefetching has already succeeded.
+	 * \throw InterruptedException if waiting was cancelled.
+	 */
+	private void awaitPrefetch() throws InterruptedException {
+		CompletableFuture<Void> p = prefetching;
+		if (prefetched != null && prefetched.size() == 0 &&
+		    p != null && !p.isDone()) {
+			await(p);
+		}
+	}
+
+	/**
+	 * Waits for a retry scheduled with RunRetry.schedule().  Retry is
+	 * cancelled when a signal is received.
+	 * \param future retry's future.
+	 * \throw InterruptedException if retry was cancelled or job threw
+	 *                             that exception.
+	 */
+	private void await(CompletableFuture<Void> future)
+		throws InterruptedException {
+		retry = future;
+		try {
+			if (!running) {
+				future.cancel(false);
+			}
+			future.get();
+		}
+		catch (CancellationException e) {
+			throw new InterruptedException();
+		}
+		catch (ExecutionException e) {
+			if (e.getCause() instanceof InterruptedException) {
+				throw (InterruptedException)e.getCause();
+			}
+			throw new RuntimeException(e.getCause());
+		}
+		finally {
+			retry = null;
+		}
+	}
+
+
+	/** File client's identifier is saved in. */
+	private static final String clientIdName = "client-id";
+	/** Directory results waiting to be sent are queued in. */
+	private static final String outboxDirName = "outbox";
+	/** Directory prefetched tasks are kept in. */
+	private static final String prefetchDirName = "prefetch";
+
+	/** Client's identifier used to choose a shard. */
+	private String clientId;
+	/** Server shards in order of preference. */
+	private List<ServerShard> shards;
+	/** Shard current task was downloaded from or \c null. */
+	private ServerShard shard = null;
 	/** Task being calculated. */
 	private Task task = null;
 
 	/** If we are aiming at constant time then what time period otherwise 0. */
 	private long constTime = 0;
 	/** Task's size to request. */
-	private int taskSizeToRequest = 0;
+	private volatile int taskSizeToRequest = 0;
+	/** How often to print latency summaries in miliseconds or 0. */
+	private long reportPeriod = 0;
+	/**
+	 * How long uploading interrupted task to the server may take in
+	 * miliseconds or 0 if task should only be saved on disk.
+	 */
+	private long migrateTimeout = 0;
+	/** Chunked transfer state or \c null if tasks are sent whole. */
+	private ChunkedTransfer chunked = null;
+	/** Results waiting to be sent or \c null if it could not be opened. */
+	private Outbox outbox = null;
+	/** Sending of queued results in progress or \c null. */
+	private CompletableFuture<Void> draining = null;
+	/** Number of tasks to keep prefetched. */
+	private int prefetchCount = 0;
+	/** Prefetched tasks or \c null if prefetching is disabled. */
+	private Outbox prefetched = null;
+	/**
+	 * Shards prefetched tasks came from indexed by their files.  Tasks
+	 * prefetched by previous runs are not there.
+	 */
+	private final Map<File, ServerShard> prefetchedFrom =
+		Collections.synchronizedMap(new HashMap<File, ServerShard>());
+	/** Prefetching in progress or \c null. */
+	private CompletableFuture<Void> prefetching = null;
+	/**
+	 * Shortest delay asked for by a busy shard during the last
+	 * attempt to fetch a task in miliseconds or zero.
+	 */
+	private volatile long retryAfter = 0;
+	/**
+	 * Shortest delay asked for by a busy shard during the last
+	 * attempt to send a result in miliseconds or zero.
+	 */
+	private volatile long sendRetryAfter = 0;
+	/** Operational metrics. */
+	private final ClientStats stats = new ClientStats();
+
+
+	/**
+	 * Reads client's identifier from a file.  If there is no such
+	 * file a random identifier is generated and saved so that client
+	 * keeps talking to the same shard after restart.
+	 */
+	private static String loadClientId() {
+		File file = new File(clientIdName);
+		try {
+			if (file.isFile()) {
+				BufferedReader in = new BufferedReader(new FileReader(file));
+				String id = in.readLine();
+				in.close();
+				if (id != null && id.length() != 0) {
+					return id;
+				}
+			}
+		}
+		catch (IOException e) {
+			/* ignore */
+		}
 
+		String id = UUID.randomUUID().toString();
+		try {
+			FileWriter out = new FileWriter(file);
+			out.write(id + "\n");
+			out.close();
+		}
+		catch (IOException e) {
+			/* ignore */
+		}
+		return id;
+	}
 
-	/** Tries to look up the server. */
-	private void getServer() throws RemoteException, NotBoundException {
-		if (server == null) {
-			/* Get registry */
-			System.out.print("Getting registry... ");
-			Registry registry = LocateRegistry.getRegistry(rmiURL);
-			System.out.println("done.");
 
-			/* Get server */
-			System.out.print("Looking server up (" + serviceName + ")... ");
-			server = (ServerInterface)registry.lookup(serviceName);
-			System.out.println("done.");
+	/**
+	 * Tries to look up the server.
+	 * \param s shard to look up.
+	 */
+	private ServerInterface getServer(ServerShard s)
+		throws RemoteException, NotBoundException {
+		if (s.server == null) {
+			long start = System.nanoTime();
+			try { s.get(); }
+			finally { stats.lookupLatency.since(start); }
 		}
+		return s.server;
 	}
 
 	/**
@@ -129,6 +449,17 @@ public final class Client implements Task.ProgressListener, DC.Application {
 	 * \param tryLoad whether to try loading cached task.
 	 */
 	private boolean getTask(boolean tryLoad) {
+		retryAfter = 0;
+		long start = System.nanoTime();
+		try { return fetchTask(tryLoad); }
+		finally { stats.fetching.since(start); }
+	}
+
+	/**
+	 * Does the actual work of getTask().
+	 * \param tryLoad whether to try loading cached task.
+	 */
+	private boolean fetchTask(boolean tryLoad) {
 		/* Load saved task from file */
 		if (tryLoad && TaskLoader.savedTaskExists()) {
 			System.out.print("Loading saved task... ");
@@ -142,27 +473,302 @@ public final class Client implements Task.ProgressListener, DC.Application {
 			}
 		}
 
-		/* Download task */
+		if (takePrefetched()) {
+			return true;
+		}
+
+		/* Download task trying shards in order of preference.  If
+		 * a shard has no task or is unreachable try the next one. */
 		try {
-			getServer();
+			for (;;) {
+				boolean reachable = false;
+				for (ServerShard s : preferredShards(null)) {
+					if (!s.allow()) {
+						continue;
+					}
+					System.out.print(downloadMessage(s));
+					try {
+						task = downloadTask(s, getServer(s));
+					}
+					catch (ServerBusyException e) {
+						retryAfter = serverBusy(e, retryAfter);
+						continue;
+					}
+					catch (Exception e) {
+						System.out.println("failed.\n" + e.toString());
+						s.failed();
+						continue;
+					}
+
+					s.succeeded();
+					reachable = true;
+					if (task != null) {
+						System.out.print("done (n = " + task.size() + ").\n");
+						shard = s;
+						return true;
+					}
+					System.out.println("no task.");
+				}
 
-			System.out.print("Downloading task... ");
-			while ((task = server.getTask(taskSizeToRequest)) == null) {
-				System.out.println("no task.");
+				if (!reachable) {
+					return false;
+				}
 				Thread.sleep(15);
-				System.out.print("Downloading task... ");
 			}
-			System.out.print("done (n = " + task.size() + ").\n");
+		}
+		catch (InterruptedException e) {
+			System.out.println("Interrupted.");
+		}
+		return false;
+	}
 
-			return true;
+	/**
+	 * Takes the oldest prefetched task, if there is one, making it the
+	 * current task.  It is saved as current task before its prefetched
+	 * copy is removed so it cannot be lost in between.  Prefetched
+	 * tasks which cannot be read are dropped.
+	 * \return whether a task was taken.
+	 */
+	private boolean takePrefetched() {
+		if (prefetched == null) {
+			return false;
 		}
-		catch (Exception e) {
-			System.out.println("failed.\n" + e.toString());
-			server = null;
+
+		List<File> files;
+		while (!(files = prefetched.peek(1)).isEmpty()) {
+			File file = files.get(0);
+			System.out.print("Loading prefetched task... ");
+			try {
+				Task t = TaskLoader.loadTask(file.getPath());
+				TaskLoader.saveTask(t);
+				prefetched.remove(file);
+				task = t;
+				shard = prefetchedFrom.remove(file);
+				System.out.print("done (n = " + task.size() + ", " +
+				                 prefetched.size() + " left).\n");
+				return true;
+			}
+			catch (Exception e) {
+				System.out.println("failed, dropping it.\n" + e.toString());
+				prefetched.remove(file);
+				prefetchedFrom.remove(file);
+			}
 		}
 		return false;
 	}
 
+	/**
+	 * Starts prefetching tasks in the background unless prefetching
+	 * is disabled, enough tasks are prefetched already or it is in
+	 * progress already.
+	 */
+	private void startPrefetch() {
+		if (prefetched == null || prefetched.size() >= prefetchCount ||
+		    (prefetching != null && !prefetching.isDone())) {
+			return;
+		}
+		try {
+			prefetching = RunRetry.schedule(new RunRetry.Job() {
+					public boolean run(boolean first) {
+						if (!first) stats.fetchRetries.increment();
+						return prefetchTasks();
+					}
+					public long retryAfter() {
+						return retryAfter;
+					}
+				}, retryPolicy, scheduler, stats.backoffSleeps);
+		}
+		catch (RejectedExecutionException e) {
+			/* Client is finishing. */
+		}
+	}
+
+	/**
+	 * Fetches tasks so that there are prefetchCount of them kept on
+	 * disk trying shards in order of preference.  Tasks are fetched
+	 * with a single getTasks() call or, if chunked transfers are
+	 * used, downloaded one by one.
+	 * \return whether a shard was reachable.
+	 */
+	private boolean prefetchTasks() {
+		retryAfter = 0;
+		long start = System.nanoTime();
+		try {
+			for (ServerShard s : preferredShards(null)) {
+				int want = prefetchCount - prefetched.size();
+				if (want <= 0) {
+					return true;
+				} else if (!s.allow()) {
+					continue;
+				}
+
+				System.out.print("Prefetching " + want + " tasks" +
+				                 (shards.size() == 1 ? "... " : " from " + s + "... "));
+				int got = 0;
+				try {
+					ServerInterface server = getServer(s);
+					if (chunked == null) {
+						for (Task t : server.getTasks(taskSizeToRequest, want)) {
+							if (t != null) {
+								prefetchedFrom.put(prefetched.add(t), s);
+								++got;
+							}
+						}
+					} else {
+						for (Task t; got < want && (t = downloadTask(s, server)) != null; ) {
+							prefetchedFrom.put(prefetched.add(t), s);
+							++got;
+						}
+					}
+				}
+				catch (ServerBusyException e) {
+					retryAfter = serverBusy(e, retryAfter);
+					continue;
+				}
+				catch (Exception e) {
+					System.out.println("failed (got " + got + ").\n" + e.toString());
+					s.failed();
+					continue;
+				}
+
+				s.succeeded();
+				System.out.print("done (got " + got + ").\n");
+				return true;
+			}
+		}
+		finally {
+			stats.fetching.since(start);
+		}
+		return false;
+	}
+
+	/**
+	 * Returns prefetched tasks to the server so that other clients can
+	 * calculate them.  Gives up once migrateTimeout miliseconds pass;
+	 * tasks which were not returned stay on disk.
+	 */
+	private void returnPrefetched() {
+		if (prefetched == null || prefetched.size() == 0) {
+			return;
+		}
+
+		System.out.print("Returning " + prefetched.size() +
+		                 " prefetched tasks to server... ");
+		final List<File> files = prefetched.peek(prefetched.size());
+		FutureTask<Integer> upload = new FutureTask<Integer>(() -> {
+				int returned = 0;
+				for (File file : files) {
+					Task t;
+					try {
+						t = TaskLoader.loadTask(file.getPath());
+					}
+					catch (Exception e) {
+						prefetched.remove(file);
+						continue;
+					}
+					try {
+						returnTask(t, prefetchedFrom.get(file));
+					}
+					catch (Exception e) {
+						break;
+					}
+					prefetched.remove(file);
+					++returned;
+				}
+				return returned;
+			});
+		Thread thread = new Thread(upload, "migrate");
+		thread.setDaemon(true);
+
+		try {
+			thread.start();
+			int returned = upload.get(migrateTimeout, TimeUnit.MILLISECONDS);
+			System.out.print("done (" + returned + " returned).\n");
+		}
+		catch (TimeoutException e) {
+			upload.cancel(true);
+			System.out.println("timed out.");
+		}
+		catch (ExecutionException e) {
+			System.out.println("failed.\n" + e.getCause().toString());
+		}
+		catch (InterruptedException e) {
+			System.out.println("interrupted.");
+		}
+	}
+
+	/**
+	 * Returns shards in order they should be tried.  This is the
+	 * order of preference except that \a first goes first (unless it
+	 * is \c null) and shards which failed recently go last.
+	 * \param first shard to try first or \c null.
+	 */
+	private List<ServerShard> preferredShards(ServerShard first) {
+		ArrayList<ServerShard> order = new ArrayList<ServerShard>();
+		ArrayList<ServerShard> failed = new ArrayList<ServerShard>();
+		if (first != null) {
+			order.add(first);
+		}
+		for (ServerShard s : shards) {
+			if (s != first) {
+				(s.recentlyFailed() ? failed : order).add(s);
+			}
+		}
+		order.addAll(failed);
+		return order;
+	}
+
+	/**
+	 * Records that a shard refused a call because it is busy.
+	 * \param e     exception thrown by the shard.
+	 * \param delay shortest delay asked for so far or zero.
+	 * \return shortest delay asked for including this one.
+	 */
+	private long serverBusy(ServerBusyException e, long delay) {
+		System.out.println("busy.");
+		stats.serverBusy.increment();
+		long hint = Math.max(e.retryAfter(), 1);
+		return delay == 0 ? hint : Math.min(delay, hint);
+	}
+
+	/**
+	 * Returns message printed when downloading task from a shard.
+	 * \param s the shard.
+	 */
+	private String downloadMessage(ServerShard s) {
+		return shards.size() == 1 ? "Downloading task... "
+			: "Downloading task from " + s + "... ";
+	}
+
+
+	/**
+	 * Downloads a task from the server recording the latency.
+	 * \param s      shard the server belongs to.
+	 * \param server server to download task from.
+	 */
+	private Task downloadTask(ServerShard s, ServerInterface server)
+		throws IOException, ClassNotFoundException, ServerBusyException {
+		long start = System.nanoTime();
+		Events.Download event = new Events.Download();
+		event.begin();
+		Task t = null;
+		try {
+			return t = chunked == null ? server.getTask(taskSizeToRequest)
+				: chunked.download(s, server, taskSizeToRequest);
+		}
+		finally {
+			stats.downloadLatency.since(start);
+			event.end();
+			if (event.shouldCommit()) {
+				event.task(t);
+				event.count = t == null ? 0 : 1;
+				event.bytes = t == null || chunked == null ? 0
+					: chunked.transferred();
+				event.commit();
+			}
+		}
+	}
+
 
 	/**
 	 * Returns a nicely formatted time.
@@ -194,16 +800,25 @@ public final class Client implements Task.ProgressListener, DC.Application {
 		System.out.print("Calculating...  ");
 		lastTick = lastSave = 0;
 		onProgress(task, 0, 0);
+		lastIterations = -1;
 		task.addProgressListener(this);
 		task.unpause();
+		stats.taskSize = task.size();
 
-		if (!running || !task.run()) {
+		long start = System.nanoTime();
+		boolean done = running && task.run();
+		stats.running.since(start);
+		if (!done) {
 			System.out.println("\nInterrupted.");
 			return false;
 		}
+		stats.completed.increment();
 
 		long time = task.time();
-		System.out.println("\bdone in " + formatTime(time) + ".");
+		System.out.println("\bdone in " + formatTime(time) +
+		                   (task.cpuTime() == 0 ? "."
+		                    : " (CPU " + formatTime(task.cpuTime() / 1000000) +
+		                      ")."));
 
 		if (constTime != 0) {
 			taskSizeToRequest = task.size();
@@ -221,6 +836,7 @@ public final class Client implements Task.ProgressListener, DC.Application {
 	/** Saves task on disk. */
 	private void saveTask() {
 		System.out.print("\nSaving task... ");
+		long start = System.nanoTime();
 		try {
 			TaskLoader.saveTask(task);
 			System.out.print("done.\n");
@@ -228,6 +844,89 @@ public final class Client implements Task.ProgressListener, DC.Application {
 		catch (Exception e) {
 			System.out.println("failed.\n" + e.toString() + "\n");
 		}
+		stats.checkpointing.since(start);
+		task.addCheckpointTime(System.nanoTime() - start);
+	}
+
+
+	/**
+	 * Saves interrupted task on disk and, if migration is enabled,
+	 * returns it to the server so that another client can resume it.
+	 * If the server accepts the task in time saved copy is deleted.
+	 */
+	private void suspendTask() {
+		saveTask();
+		if (migrateTimeout != 0 && migrateTask()) {
+			TaskLoader.deleteTask();
+			task = null;
+			shard = null;
+			stats.taskSize = 0;
+		}
+	}
+
+	/**
+	 * Returns task to the shard it came from or, if that fails, to
+	 * other shards in order of preference.  Upload is done in
+	 * a separate thread so that the client gives up after \a
+	 * migrateTimeout miliseconds even if the network hangs.
+	 * \return whether a shard has accepted the task.
+	 */
+	private boolean migrateTask() {
+		System.out.print("Migrating task to server... ");
+		final Task t = task;
+		final ServerShard first = shard;
+		FutureTask<ServerShard> upload =
+			new FutureTask<ServerShard>(() -> returnTask(t, first));
+		Thread thread = new Thread(upload, "migrate");
+		thread.setDaemon(true);
+
+		long start = System.nanoTime();
+		try {
+			thread.start();
+			ServerShard s = upload.get(migrateTimeout, TimeUnit.MILLISECONDS);
+			System.out.print(shards.size() == 1 ? "done.\n"
+			                 : "done (" + s + ").\n");
+			return true;
+		}
+		catch (TimeoutException e) {
+			upload.cancel(true);
+			System.out.println("timed out.");
+		}
+		catch (ExecutionException e) {
+			System.out.println("failed.\n" + e.getCause().toString());
+		}
+		catch (InterruptedException e) {
+			System.out.println("interrupted.");
+		}
+		finally {
+			stats.uploadLatency.since(start);
+		}
+		return false;
+	}
+
+
+	/**
+	 * Returns an unfinished task to \a first shard or, if that fails,
+	 * to other shards in order of preference.
+	 * \param t     the task.
+	 * \param first shard to try first or \c null.
+	 * \return shard which accepted the task.
+	 * \throw Exception exception thrown by the last shard tried if
+	 *                  none accepted the task.
+	 */
+	private ServerShard returnTask(Task t, ServerShard first) throws Exception {
+		Exception last = null;
+		for (ServerShard s : preferredShards(first)) {
+			try {
+				getServer(s).returnTask(t);
+				return s;
+			}
+			catch (Exception e) {
+				s.failed();
+				last = e;
+			}
+		}
+		throw last;
 	}
 
 
@@ -237,19 +936,64 @@ public final class Client implements Task.ProgressListener, DC.Application {
 	 * \param trySave whether to save task on disk if sending fails.
 	 */
 	private boolean sendTask(boolean trySave) {
-		/* Send result */
+		/* Send result to the shard task came from and if that fails
+		 * to other shards in order of preference. */
+		sendRetryAfter = 0;
+		long start = System.nanoTime();
 		try {
-			getServer();
-			System.out.print("Sending result... ");
-			server.sendResult(task);
-			System.out.print("done.\n");
-			TaskLoader.deleteTask();
-			task = null;
-			return true;
+			for (ServerShard s : preferredShards(shard)) {
+				if (!s.allow()) {
+					continue;
+				}
+				System.out.print(shards.size() == 1 ? "Sending result... "
+				                 : "Sending result to " + s + "... ");
+				try {
+					ServerInterface server = getServer(s);
+					long uploadStart = System.nanoTime();
+					Events.Upload event = new Events.Upload();
+					event.begin();
+					boolean sent = false;
+					try {
+						if (chunked == null) {
+							server.sendResult(task);
+						} else {
+							chunked.upload(s, server, task);
+						}
+						sent = true;
+					}
+					finally {
+						stats.uploadLatency.since(uploadStart);
+						event.end();
+						if (event.shouldCommit()) {
+							event.task(task);
+							event.count = sent ? 1 : 0;
+							event.bytes = !sent || chunked == null ? 0
+								: chunked.transferred();
+							event.commit();
+						}
+					}
+				}
+				catch (ServerBusyException e) {
+					sendRetryAfter = serverBusy(e, sendRetryAfter);
+					continue;
+				}
+				catch (Exception e) {
+					System.out.println("failed.\n" + e.toString());
+					s.failed();
+					continue;
+				}
+
+				s.succeeded();
+				System.out.print("done.\n");
+				TaskLoader.deleteTask();
+				task = null;
+				shard = null;
+				stats.taskSize = 0;
+				return true;
+			}
 		}
-		catch (Exception e) {
-			System.out.println("failed.\n" + e.toString());
-			server = null;
+		finally {
+			stats.sending.since(start);
 		}
 
 		/* Save task */
@@ -261,6 +1005,168 @@ public final class Client implements Task.ProgressListener, DC.Application {
 	}
 
 
+	/** Maximal number of queued results sent at once. */
+	private static final int outboxBatch = 16;
+
+	/**
+	 * Delivers result of the task.  Result is sent right away unless
+	 * there are queued results already (which means the server was
+	 * not reachable recently).  If it is not sent, it is queued in the
+	 * outbox so that the client can go on with another task; queued
+	 * results are sent in the background.  If result cannot be queued
+	 * either it is sent the old way, retrying until it succeeds.
+	 * \throw InterruptedException if client was interrupted while
+	 *                             sending the result.
+	 */
+	private void deliverResult() throws InterruptedException {
+		if (outbox != null) {
+			if (outbox.size() == 0 && sendOnce()) {
+				return;
+			}
+
+			System.out.print("Queueing result... ");
+			try {
+				outbox.add(task);
+				System.out.print("done (" + outbox.size() + " queued).\n");
+				stats.queued.increment();
+				TaskLoader.deleteTask();
+				task = null;
+				shard = null;
+				stats.taskSize = 0;
+				startDrain();
+				return;
+			}
+			catch (IOException e) {
+				System.out.println("failed.\n" + e.toString());
+			}
+		}
+
+		retry(new RunRetry.Job() {
+			public boolean run(boolean first) {
+				if (!first) stats.sendRetries.increment();
+				return sendTask(first);
+			}
+			public long retryAfter() {
+				return sendRetryAfter;
+			}
+		}, sender);
+	}
+
+	/**
+	 * Makes a single attempt at sending result of the task.  Like
+	 * sending of queued results it is done on the sender.
+	 * \return whether result was sent.
+	 * \throw InterruptedException if client was interrupted.
+	 */
+	private boolean sendOnce() throws InterruptedException {
+		try {
+			return sender.submit(() -> sendTask(false)).get();
+		}
+		catch (ExecutionException e) {
+			throw new RuntimeException(e.getCause());
+		}
+		catch (RejectedExecutionException e) {
+			throw new InterruptedException();
+		}
+	}
+
+	/**
+	 * Starts sending queued results in the background unless there
+	 * are none or it is in progress already.
+	 */
+	private void startDrain() {
+		if (outbox == null || outbox.size() == 0 ||
+		    (draining != null && !draining.isDone())) {
+			return;
+		}
+		try {
+			draining = RunRetry.schedule(new RunRetry.Job() {
+					public boolean run(boolean first) {
+						if (!first) stats.sendRetries.increment();
+						return drainOutbox();
+					}
+					public long retryAfter() {
+						return sendRetryAfter;
+					}
+				}, retryPolicy, sender, stats.backoffSleeps);
+		}
+		catch (RejectedExecutionException e) {
+			/* Client is finishing. */
+		}
+	}
+
+	/**
+	 * Sends queued results in batches trying shards in order of
+	 * preference.  Queued results which cannot be read are dropped.
+	 * \return whether all queued results were sent.
+	 */
+	private boolean drainOutbox() {
+		sendRetryAfter = 0;
+		for (ServerShard s : preferredShards(null)) {
+			if (!s.allow()) {
+				continue;
+			}
+			List<File> batch;
+			while (!(batch = outbox.peek(outboxBatch)).isEmpty()) {
+				ArrayList<Task> ts = new ArrayList<Task>(batch.size());
+				ArrayList<File> files = new ArrayList<File>(batch.size());
+				for (File file : batch) {
+					try {
+						ts.add(TaskLoader.loadTask(file.getPath()));
+						files.add(file);
+					}
+					catch (Exception e) {
+						System.out.println("Dropping damaged queued result " +
+						                   file + ".\n" + e.toString());
+						outbox.remove(file);
+					}
+				}
+				if (ts.isEmpty()) {
+					continue;
+				}
+
+				System.out.print("Sending " + ts.size() + " queued results" +
+				                 (shards.size() == 1 ? "... " : " to " + s + "... "));
+				long start = System.nanoTime();
+				try {
+					ServerInterface server = getServer(s);
+					if (chunked == null) {
+						server.sendResults(ts.toArray(new Task[ts.size()]));
+						for (File file : files) {
+							outbox.remove(file);
+						}
+					} else {
+						for (int i = 0; i < ts.size(); ++i) {
+							chunked.upload(s, server, ts.get(i),
+							               files.get(i).getPath());
+							outbox.remove(files.get(i));
+						}
+					}
+				}
+				catch (ServerBusyException e) {
+					sendRetryAfter = serverBusy(e, sendRetryAfter);
+					break;
+				}
+				catch (Exception e) {
+					System.out.println("failed.\n" + e.toString());
+					s.failed();
+					break;
+				}
+				finally {
+					stats.sending.since(start);
+				}
+
+				s.succeeded();
+				System.out.print("done (" + outbox.size() + " left).\n");
+			}
+			if (outbox.size() == 0) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+
 	/** Characters used in animation. */
 	private static char animation[] = { '.', 'o', 'O', '0', 'O', 'o' };
 	/** Index of character used in animation. */
@@ -269,6 +1175,8 @@ public final class Client implements Task.ProgressListener, DC.Application {
 	private long lastTick = 0;
 	/** Last time task was saved. */
 	private long lastSave = 0;
+	/** Number of iterations last reported or -1. */
+	private long lastIterations = -1;
 
 
 	/**
@@ -280,10 +1188,19 @@ public final class Client implements Task.ProgressListener, DC.Application {
 	 * \param end        how many iterations are needed (ignored).
 	 */
 	public void onProgress(Task task, long iterations, long end) {
+		if (lastIterations >= 0 && iterations >= lastIterations) {
+			stats.iterations.mark(iterations - lastIterations);
+		}
+		lastIterations = iterations;
+
 		long tick = System.currentTimeMillis();
 		if (tick - lastSave >= 5000) {
+			long start = System.nanoTime();
 			try { TaskLoader.saveTask(task); }
 			catch (Exception e) { /* ignore */ }
+			stats.checkpointing.since(start);
+			task.addCheckpointTime(System.nanoTime() - start);
+			lastSave = tick;
 		}
 		if (tick - lastTick >= 250) {
 			lastTick = tick;
@@ -294,12 +1211,27 @@ public final class Client implements Task.ProgressListener, DC.Application {
 	}
 
 
-	/** Handles an unix signal.  Pauses task and unsets \a running flag. */
+	/**
+	 * Handles an unix signal.  Pauses task and unsets \a running flag.
+	 * Then waits for the task to be saved (and possibly migrated) as
+	 * the JVM exits as soon as signal handlers return.
+	 */
 	public void handleSignal() {
 		running = false;
+		CompletableFuture<Void> r = retry;
+		if (r != null) {
+			r.cancel(false);
+		}
 		if (task != null) {
 			task.pause();
 		}
+		try {
+			/* Current task and prefetched tasks may be migrated. */
+			finished.await(2 * migrateTimeout + 10000, TimeUnit.MILLISECONDS);
+		}
+		catch (InterruptedException e) {
+			/* ignore */
+		}
 	}
 
 };
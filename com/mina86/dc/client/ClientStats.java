@@ -0,0 +1,108 @@
+/*
+ * Copyright 2008-2009 by Michal Nazarewicz (mina86/AT/mina86.com)
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mina86.dc.client;
+
+import java.io.PrintStream;
+import java.util.concurrent.atomic.LongAdder;
+import com.mina86.util.LatencyHistogram;
+import com.mina86.util.Meter;
+import com.mina86.util.TimeCounter;
+
+
+/** Client's operational metrics. */
+final class ClientStats implements ClientStatsMXBean {
+	/** Iterations done. */
+	final Meter iterations = new Meter();
+	/** Size of the task being calculated. */
+	volatile int taskSize = 0;
+	/** Tasks completed. */
+	final LongAdder completed = new LongAdder();
+
+	/** Time spent fetching tasks. */
+	final TimeCounter fetching = new TimeCounter();
+	/** Time spent running tasks. */
+	final TimeCounter running = new TimeCounter();
+	/** Time spent saving tasks on disk. */
+	final TimeCounter checkpointing = new TimeCounter();
+	/** Time spent sending results. */
+	final TimeCounter sending = new TimeCounter();
+
+	/** Retries of fetching a task. */
+	final LongAdder fetchRetries = new LongAdder();
+	/** Retries of sending a result. */
+	final LongAdder sendRetries = new LongAdder();
+	/** Calls refused by a busy server. */
+	final LongAdder serverBusy = new LongAdder();
+	/** Results queued in the outbox. */
+	final LongAdder queued = new LongAdder();
+	/** Outbox or \c null. */
+	volatile Outbox outbox = null;
+	/** Prefetched tasks or \c null. */
+	volatile Outbox prefetched = null;
+
+	/** Latency of looking up the server in the registry. */
+	final LatencyHistogram lookupLatency =
+		new LatencyHistogram("registry lookup");
+	/** Latency of downloading a task. */
+	final LatencyHistogram downloadLatency =
+		new LatencyHistogram("task download");
+	/** Latency of uploading a result. */
+	final LatencyHistogram uploadLatency =
+		new LatencyHistogram("result upload");
+	/** Time spent sleeping before retrying. */
+	final LatencyHistogram backoffSleeps =
+		new LatencyHistogram("backoff sleep");
+
+
+	/**
+	 * Prints summaries of latency histograms.
+	 * \param o stream to print to.
+	 */
+	void printLatencies(PrintStream o) {
+		o.println(lookupLatency.summary());
+		o.println(downloadLatency.summary());
+		o.println(uploadLatency.summary());
+		o.println(backoffSleeps.summary());
+	}
+
+
+	public long getIterations() { return iterations.count(); }
+	public double getIterationsPerSecond() { return iterations.rate(); }
+	public int getCurrentTaskSize() { return taskSize; }
+	public long getTasksCompleted() { return completed.sum(); }
+
+	public long getFetchingTime() { return fetching.total() / 1000000; }
+	public long getRunningTime() { return running.total() / 1000000; }
+	public long getCheckpointingTime() {
+		return checkpointing.total() / 1000000;
+	}
+	public long getSendingTime() { return sending.total() / 1000000; }
+
+	public long getFetchRetries() { return fetchRetries.sum(); }
+	public long getSendRetries() { return sendRetries.sum(); }
+	public long getServerBusy() { return serverBusy.sum(); }
+	public long getResultsQueued() { return queued.sum(); }
+	public int getOutboxSize() {
+		Outbox o = outbox;
+		return o == null ? 0 : o.size();
+	}
+	public int getPrefetchedTasks() {
+		Outbox p = prefetched;
+		return p == null ? 0 : p.size();
+	}
+}
@@ -0,0 +1,58 @@
+/*
+ * Copyright 2008-2009 by Michal Nazarewicz (mina86/AT/mina86.com)
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mina86.dc.client;
+
+
+/**
+ * Management interface exposing client's operational metrics.  It is
+ * registered in platform MBean server under
+ * <tt>com.mina86.dc:type=Client</tt> name.  All times are in
+ * milliseconds.
+ */
+public interface ClientStatsMXBean {
+	/** Returns number of iterations done. */
+	public long getIterations();
+	/** Returns number of iterations done per second. */
+	public double getIterationsPerSecond();
+	/** Returns size of the task being calculated or zero. */
+	public int getCurrentTaskSize();
+	/** Returns number of tasks completed. */
+	public long getTasksCompleted();
+
+	/** Returns time spent fetching tasks. */
+	public long getFetchingTime();
+	/** Returns time spent running tasks. */
+	public long getRunningTime();
+	/** Returns time spent saving tasks on disk. */
+	public long getCheckpointingTime();
+	/** Returns time spent sending results. */
+	public long getSendingTime();
+
+	/** Returns number of retries of fetching a task. */
+	public long getFetchRetries();
+	/** Returns number of retries of sending a result. */
+	public long getSendRetries();
+	/** Returns number of calls refused by a busy server. */
+	public long getServerBusy();
+	/** Returns number of results which were queued in the outbox. */
+	public long getResultsQueued();
+	/** Returns number of results waiting in the outbox. */
+	public int getOutboxSize();
+	/** Returns number of prefetched tasks waiting to be calculated. */
+	public int getPrefetchedTasks();
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright 2008-2009 by Michal Nazarewicz (mina86/AT/mina86.com)
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.mina86.dc.client;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeMap;
+import com.mina86.dc.common.Task;
+
+
+/**
+ * Tasks queued on disk: results waiting to be sent to the server or
+ * prefetched tasks waiting to be calculated.  Each task is saved in
+ * its own file in the queue's directory and synced to disk before it
+ * is considered queued so queued tasks survive a crash.  Files are
+ * numbered so tasks are taken in order they were queued, also after
+ * client restart.
+ */
+final class Outbox {
+	/** Queued task file name suffix. */
+	private static final String suffix = ".task";
+
+
+	/** Queue directory. */
+	private final File dir;
+	/** Queued task file name prefix. */
+	private final String prefix;
+	/** Queued results indexed by number. */
+	private final TreeMap<Long, File> files = new TreeMap<Long, File>();
+	/** Number of the next queued result. */
+	private long next = 0;
+
+
+	/**
+	 * Opens queue creating the directory if needed.  Tasks queued by
+	 * previous runs are picked up and temporary files left by
+	 * interrupted writes are removed.
+	 * \param dirName   name of the directory.
+	 * \param thePrefix queued task file name prefix.
+	 * \throw IOException if directory could not be created or read.
+	 */
+	Outbox(String dirName, String thePrefix) throws IOException {
+		dir = new File(dirName);
+		prefix = thePrefix;
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("could not create " + dir);
+		}
+
+		String names[] = dir.list();
+		if (names == null) {
+			throw new IOException("could not list " + dir);
+		}
+		Arrays.sort(names);
+		for (String name : names) {
+			if (name.endsWith(".tmp")) {
+				new File(dir, name).delete();
+				continue;
+			}
+			if (!name.startsWith(prefix) || !name.endsWith(suffix)) {
+				continue;
+			}
+			try {
+				long number = Long.parseLong(name.substring(prefix.length(),
+				                                            name.length() - suffix.length()));
+				files.put(number, new File(dir, name));
+				next = Math.max(next, number + 1);
+			}
+			catch (NumberFormatException e) {
+				/* Not ours. */
+			}
+		}
+	}
+
+
+	/** Returns number of queued tasks. */
+	synchronized int size() {
+		return files.size();
+	}
+
+	/**
+	 * Queues a task.  Returns once the task is on disk.
+	 * \param t the task.
+	 * \return file the task was saved in.
+	 * \throw IOException if task could not be saved.
+	 */
+	File add(Task t) throws IOException {
+		File tmp = File.createTempFile(prefix, ".tmp", dir);
+		FileOutputStream fos = new FileOutputStream(tmp);
+		try {
+			ObjectOutputStream out = new ObjectOutputStream(fos);
+			out.writeObject(t);
+			out.flush();
+			fos.getFD().sync();
+			out.close();
+		}
+		catch (IOException e) {
+			fos.close();
+			tmp.delete();
+			throw e;
+		}
+
+		synchronized (this) {
+			File file = new File(dir, String.format("%s%016d%s", prefix, next,
+			                                        suffix));
+			if (!tmp.renameTo(file)) {
+				tmp.delete();
+				throw new IOException("could not rename " + tmp + " to " + file);
+			}
+			files.put(next++, file);
+			return file;
+		}
+	}
+
+	/**
+	 * Returns files of up to \a n oldest queued tasks.
+	 * \param n maximal number of tasks.
+	 */
+	synchronized List<File> peek(int n) {
+		ArrayList<File> list = new ArrayList<File>(Math.min(n, files.size()));
+		for (File file : files.values()) {
+			if (list.size() == n) break;
+			list.add(file);
+		}
+		return list;
+	}
+
+	/**
+	 * Removes a task once it was sent or taken.
+	 * \param file task's file as returned by peek().
+	 */
+	synchronized void remove(File file) {
+		files.values().remove(file);
+		file.delete();
+	}
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright 2008-2009 by Michal Nazarewicz (mina86/AT/mina86.com)
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mina86.dc.client;
+
+import java.rmi.NotBoundException;
+import java.rmi.RemoteException;
+import java.rmi.registry.LocateRegistry;
+import java.rmi.registry.Registry;
+import com.mina86.dc.common.ServerInterface;
+import com.mina86.util.CircuitBreaker;
+
+
+/**
+ * A single server (shard) client can talk to.  It is identified by
+ * a registry address and a service name.  Server's stub is looked up
+ * lazily and forgotten when communication fails.
+ *
+ * Each shard has a circuit breaker shared by everything in the process
+ * talking to the same server (see CircuitBreaker.forEndpoint()) so
+ * failures of one shard do not stop calls to the others.
+ */
+public final class ServerShard {
+	/** Registry host or empty string meaning local host. */
+	private final String host;
+	/** Registry port. */
+	private final int port;
+	/** Service name. */
+	final String serviceName;
+	/** For how long a shard which failed is avoided in nanoseconds. */
+	private static final long failurePenalty = 30 * 1000000000L;
+
+	/** Circuit breaker guarding calls to the shard. */
+	private final CircuitBreaker breaker;
+
+	/** Server's stub or \c null if it needs to be looked up. */
+	ServerInterface server = null;
+	/** When communication with the shard last failed or zero. */
+	private long failedAt = 0;
+
+
+	/**
+	 * Constructs object.
+	 * \param registry    registry address in <tt>host[:port]</tt>
+	 *                    format or empty string.
+	 * \param theServiceName service name.
+	 * \throw NumberFormatException if port is not a number.
+	 */
+	public ServerShard(String registry, String theServiceName) {
+		int colon = registry.lastIndexOf(':');
+		if (colon == -1) {
+			host = registry;
+			port = Registry.REGISTRY_PORT;
+		} else {
+			host = registry.substring(0, colon);
+			port = Integer.parseInt(registry.substring(colon + 1));
+		}
+		serviceName = theServiceName;
+		breaker = CircuitBreaker.forEndpoint(toString());
+	}
+
+	/**
+	 * Parses shard given as <tt>[host[:port]/]name</tt>.
+	 * \param spec shard specification.
+	 * \throw NumberFormatException if port is not a number.
+	 */
+	public static ServerShard parse(String spec) {
+		int slash = spec.indexOf('/');
+		return slash == -1 ? new ServerShard("", spec)
+			: new ServerShard(spec.substring(0, slash), spec.substring(slash + 1));
+	}
+
+
+	/** Looks the server up unless it has already been done. */
+	public synchronized ServerInterface get()
+		throws RemoteException, NotBoundException {
+		if (server == null) {
+			/* Get registry */
+			System.out.print("Getting registry... ");
+			Registry registry = LocateRegistry.getRegistry(host, port);
+			System.out.println("done.");
+
+			/* Get server */
+			System.out.print("Looking server up (" + serviceName + ")... ");
+			server = (ServerInterface)registry.lookup(serviceName);
+			System.out.println("done.");
+		}
+		return server;
+	}
+
+
+	/**
+	 * Returns whether shard's circuit breaker allows a call.  If it
+	 * does after being open the call is a trial whose outcome must be
+	 * reported with failed() or succeeded().
+	 */
+	public boolean allow() {
+		return breaker.allow();
+	}
+
+	/** Marks that communication with the shard failed. */
+	public synchronized void failed() {
+		server = null;
+		failedAt = System.nanoTime() | 1;
+		breaker.failure();
+	}
+
+	/** Marks that communication with the shard succeeded. */
+	public synchronized void succeeded() {
+		failedAt = 0;
+		breaker.success();
+	}
+
+	/** Returns whether communication with the shard failed recently. */
+	public boolean recentlyFailed() {
+		return failedAt != 0 && System.nanoTime() - failedAt < failurePenalty;
+	}
+
+
+	public String toString() {
+		return (host.length() == 0 ? "localhost" : host) + ":" + port + "/" +
+			serviceName;
+	}
+}
@@ -17,12 +17,14 @@
 
 package com.mina86.dc.client;
 
+import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import com.mina86.dc.common.Events;
 import com.mina86.dc.common.Task;
 
 
@@ -41,10 +43,29 @@ final public class TaskLoader {
 
 	/** Loads a saved task. */
 	static public Task loadTask() throws IOException, ClassNotFoundException {
-		ObjectInputStream in =
-			new ObjectInputStream(new FileInputStream(currentTaskName));
+		return loadTask(currentTaskName);
+	}
+
+	/**
+	 * Loads a task from given file.
+	 * \param name name of the file.
+	 */
+	static public Task loadTask(String name)
+		throws IOException, ClassNotFoundException {
+		Events.Checkpoint event = new Events.Checkpoint();
+		event.begin();
+		ObjectInputStream in = new ObjectInputStream(
+			new BufferedInputStream(new FileInputStream(name)));
 		Task t = (Task)in.readObject();
 		in.close();
+		event.end();
+		if (event.shouldCommit()) {
+			event.task(t);
+			event.load = true;
+			event.file = name;
+			event.bytes = new File(name).length();
+			event.commit();
+		}
 		return t;
 	}
 
@@ -54,6 +75,8 @@ final public class TaskLoader {
 	 * \param t task to save.
 	 */
 	static public void saveTask(Task t) throws IOException {
+		Events.Checkpoint event = new Events.Checkpoint();
+		event.begin();
 		File dir = new File(System.getProperty("user.dir"));
 		File tmp = File.createTempFile("task", ".tmp", dir);
 
@@ -66,6 +89,14 @@ final public class TaskLoader {
 		if (!tmp.renameTo(file) && file.delete()) {
 			tmp.renameTo(file);
 		}
+
+		event.end();
+		if (event.shouldCommit()) {
+			event.task(t);
+			event.file = currentTaskName;
+			event.bytes = file.length();
+			event.commit();
+		}
 	}
 
 
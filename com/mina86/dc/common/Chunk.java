@@ -0,0 +1,94 @@
+/*
+ * Copyright 2008-2009 by Michal Nazarewicz (mina86/AT/mina86.com)
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.mina86.dc.common;
+
+import java.io.Serializable;
+import java.util.zip.CRC32;
+
+
+/**
+ * A piece of serialized task transferred in chunked mode.  Large
+ * tasks are sent as a sequence of chunks so that neither side has to
+ * hold whole serialized form in memory and an interrupted transfer
+ * can be resumed at the last chunk which got through.
+ *
+ * Transfers are identified by a random number chosen by the client so
+ * that repeating a request which failed (or whose response was lost)
+ * never starts a second transfer.
+ */
+public final class Chunk implements Serializable {
+	static final long serialVersionUID = 0x4368756e6b2d3031L;
+
+	/** Maximal number of bytes in a single chunk. */
+	public static final int maxSize = 1 << 20;
+
+	/** Identifier of the transfer the chunk belongs to. */
+	public final long transfer;
+	/** Offset of the chunk within serialized task. */
+	public final long offset;
+	/** Length of the whole serialized task. */
+	public final long total;
+	/** Chunk's data. */
+	public final byte data[];
+	/** CRC32 checksum of chunk's data. */
+	public final long checksum;
+
+
+	/**
+	 * Constructs object calculating checksum of the data.
+	 * \param theTransfer identifier of the transfer.
+	 * \param theOffset   offset of the chunk.
+	 * \param theTotal    length of the whole serialized task.
+	 * \param theData     chunk's data.
+	 */
+	public Chunk(long theTransfer, long theOffset, long theTotal,
+	             byte theData[]) {
+		transfer = theTransfer;
+		offset = theOffset;
+		total = theTotal;
+		data = theData;
+		checksum = checksum(theData);
+	}
+
+
+	/**
+	 * Returns whether data was not damaged and chunk lies within the
+	 * transfer.
+	 */
+	public boolean isValid() {
+		return data != null && data.length <= maxSize && offset >= 0 &&
+			offset + data.length <= total && checksum(data) == checksum;
+	}
+
+	/** Returns offset of the first byte after the chunk. */
+	public long end() {
+		return offset + data.length;
+	}
+
+
+	/**
+	 * Calculates CRC32 of given data.
+	 * \param data data to calculate checksum of.
+	 */
+	private static long checksum(byte data[]) {
+		CRC32 crc = new CRC32();
+		crc.update(data, 0, data.length);
+		return crc.getValue();
+	}
+}
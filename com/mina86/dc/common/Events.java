@@ -0,0 +1,155 @@
+/*
+ * Copyright 2008-2009 by Michal Nazarewicz (mina86/AT/mina86.com)
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.mina86.dc.common;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+
+/**
+ * Java Flight Recorder events of task's lifecycle.  Each event covers
+ * a phase (generating a task, a call, a transfer, a slice of
+ * calculation, a checkpoint) and carries task's identifier and size so
+ * GC pauses and lock contention in a recording can be matched with
+ * phases of specific tasks.
+ *
+ * Events are used as follows:
+ *
+ * <pre>
+ * Events.Download e = new Events.Download();
+ * e.begin();
+ * ...
+ * e.end();
+ * if (e.shouldCommit()) {
+ *     e.task(t);
+ *     e.commit();
+ * }
+ * </pre>
+ *
+ * When an event is disabled begin(), end() and shouldCommit() do
+ * nothing, fields are not filled and the JIT removes the allocation so
+ * the event costs nothing.
+ */
+public final class Events {
+	/** Not instantiable. */
+	private Events() {}
+
+
+	/** Base of events concerning a task. */
+	@Category("Distributed Computing")
+	public static abstract class TaskEvent extends Event {
+		/** Task's identifier or zero if not known. */
+		@Label("Task Id")
+		public long id;
+		/** Task's size or zero if not known. */
+		@Label("Task Size")
+		public int size;
+
+		/**
+		 * Sets task's identifier and size.
+		 * \param t the task or \c null.
+		 */
+		public void task(Task t) {
+			if (t != null) {
+				id = t.id();
+				size = t.size();
+			}
+		}
+	}
+
+	/** Base of events concerning a transfer of a task. */
+	public static abstract class TransferEvent extends TaskEvent {
+		/** Number of tasks transferred. */
+		@Label("Tasks")
+		public int count;
+		/** Number of bytes transferred or zero if not known. */
+		@Label("Bytes")
+		@DataAmount
+		public long bytes;
+	}
+
+
+	/** Job splitting off a task on the server. */
+	@Name("com.mina86.dc.Generate")
+	@Label("Task Generated")
+	@Description("Job splitting off a new task")
+	public static final class Generate extends TaskEvent {
+		/** Job's name. */
+		@Label("Job")
+		public String job;
+	}
+
+	/** Server handling a call handing out tasks. */
+	@Name("com.mina86.dc.GetTask")
+	@Label("Get Task")
+	@Description("Server handing out a task, a batch or a chunk of a task")
+	public static final class GetTask extends TransferEvent {}
+
+	/** Server handling a call accepting results. */
+	@Name("com.mina86.dc.SendResult")
+	@Label("Send Result")
+	@Description("Server accepting a result, a batch or a chunk of a result")
+	public static final class SendResult extends TransferEvent {}
+
+	/** Client downloading a task. */
+	@Name("com.mina86.dc.Download")
+	@Label("Task Download")
+	@Description("Client downloading a task from a server")
+	public static final class Download extends TransferEvent {}
+
+	/** Client uploading a result. */
+	@Name("com.mina86.dc.Upload")
+	@Label("Result Upload")
+	@Description("Client uploading a result to a server")
+	public static final class Upload extends TransferEvent {}
+
+	/** A batch of task's iterations. */
+	@Name("com.mina86.dc.RunSlice")
+	@Label("Task Run Slice")
+	@Description("A batch of iterations of a running task")
+	public static final class RunSlice extends TaskEvent {
+		/** Number of iterations done. */
+		@Label("Iterations")
+		public long iterations;
+		/** Number of iterations which were asked for. */
+		@Label("Batch")
+		public long batch;
+	}
+
+	/** Saving or loading a task. */
+	@Name("com.mina86.dc.Checkpoint")
+	@Label("Checkpoint")
+	@Description("Client saving a task to or loading it from a file")
+	public static final class Checkpoint extends TaskEvent {
+		/** Whether task was loaded rather then saved. */
+		@Label("Load")
+		public boolean load;
+		/** Name of the file. */
+		@Label("File")
+		public String file;
+		/** Size of the file. */
+		@Label("Bytes")
+		@DataAmount
+		public long bytes;
+	}
+}
@@ -0,0 +1,49 @@
+/*
+ * Copyright 2008-2009 by Michal Nazarewicz (mina86/AT/mina86.com)
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.mina86.dc.common;
+
+
+/**
+ * Thrown by the server when it is overloaded and refuses to handle
+ * a call.  Carries a hint telling the client how long to wait before
+ * trying again.  Client should honour it instead of its own backoff as
+ * the server knows best when it will have capacity to spare.
+ */
+public final class ServerBusyException extends Exception {
+	static final long serialVersionUID = 0x427573794578632dL;
+
+	/** How long to wait before trying again in miliseconds. */
+	private final long retryAfter;
+
+
+	/**
+	 * Constructs object.
+	 * \param theRetryAfter how long to wait in miliseconds.
+	 */
+	public ServerBusyException(long theRetryAfter) {
+		super("server busy, retry after " + theRetryAfter + " ms");
+		retryAfter = theRetryAfter;
+	}
+
+
+	/** Returns how long to wait before trying again in miliseconds. */
+	public long retryAfter() {
+		return retryAfter;
+	}
+}
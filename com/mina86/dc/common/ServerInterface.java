@@ -37,14 +37,99 @@ public interface ServerInterface extends Remote {
 	 *
 	 * \param n desired task's size or zero meaning server default.
 	 * \throw NegativeArraySizeException if n is negative.
+	 * \throw ServerBusyException if server is overloaded.
 	 */
 	public Task getTask(int n)
-		throws RemoteException, NegativeArraySizeException;
+		throws RemoteException, NegativeArraySizeException,
+		       ServerBusyException;
 
 
 	/**
 	 * Sends a result to the server.
 	 * \param t task to send.
+	 * \throw ServerBusyException if server is overloaded.
 	 */
-	public void sendResult(Task t) throws RemoteException;
+	public void sendResult(Task t)
+		throws RemoteException, ServerBusyException;
+
+
+	/**
+	 * Returns up to \a count tasks to perform.  This is meant for
+	 * relays which hand tasks out to their own clients.  Returned
+	 * array may be shorter then \a count (or even empty) if there are
+	 * not enough pending tasks.
+	 *
+	 * \param n     desired task's size or zero meaning server default.
+	 * \param count maximal number of tasks to return.
+	 * \throw NegativeArraySizeException if n or count is negative.
+	 * \throw ServerBusyException if server is overloaded.
+	 * \see getTask()
+	 */
+	public Task[] getTasks(int n, int count)
+		throws RemoteException, NegativeArraySizeException,
+		       ServerBusyException;
+
+	/**
+	 * Sends many results to the server at once.
+	 * \param ts tasks to send.
+	 * \throw ServerBusyException if server is overloaded.
+	 * \see sendResult()
+	 */
+	public void sendResults(Task ts[])
+		throws RemoteException, ServerBusyException;
+
+
+	/**
+	 * Returns a chunk of a task to perform.  This is meant for large
+	 * tasks whose serialized form should not be sent (nor kept in
+	 * memory) at once.  Client picks a random \a transfer identifier
+	 * and asks for chunk at offset zero which makes server choose
+	 * a task the same way getTask() does.  Following chunks are
+	 * requested with the same identifier and offsets of the end of
+	 * data received so far.  If transfer fails client may resume it
+	 * by asking for the chunk again.  Once the last chunk is received
+	 * client acknowledges it by asking for chunk at offset equal to
+	 * task's length (which returns \c null); until then server keeps
+	 * the transfer so the last chunk can be asked for again.
+	 *
+	 * \param transfer transfer identifier chosen by the client.
+	 * \param n        desired task's size or zero meaning server default.
+	 * \param offset   offset of the chunk.
+	 * \return a chunk or \c null if there are no pending tasks (when
+	 *         \a offset is zero) or transfer is not known (in which
+	 *         case client should start a new one).
+	 * \throw NegativeArraySizeException if n is negative.
+	 * \throw ServerBusyException if server is overloaded.
+	 * \see getTask(), Chunk
+	 */
+	public Chunk getTaskChunk(long transfer, int n, long offset)
+		throws RemoteException, NegativeArraySizeException,
+		       ServerBusyException;
+
+	/**
+	 * Sends a chunk of a result to the server.  Client picks a random
+	 * transfer identifier and sends chunks in order starting at
+	 * offset zero.  Server ignores chunks which are damaged or do not
+	 * start where data received so far ends and returns the offset
+	 * client should continue from.  Once the whole result is received
+	 * it is accepted as if sent with sendResult().
+	 *
+	 * \param c the chunk.
+	 * \return number of bytes of the result server has received.
+	 * \throw ServerBusyException if server is overloaded.
+	 * \see sendResult(), Chunk
+	 */
+	public long sendResultChunk(Chunk c)
+		throws RemoteException, ServerBusyException;
+
+
+	/**
+	 * Returns an unfinished task to the server.  This is meant for
+	 * clients which are about to shut down; task is sent with all the
+	 * progress made so far and server hands it out again (before any
+	 * new tasks) so that another client can resume it.  This call is
+	 * never refused as the client has no time to retry it.
+	 * \param t paused task to return.
+	 */
+	public void returnTask(Task t) throws RemoteException;
 };
@@ -0,0 +1,401 @@
+/*
+ * Copyright 2008-2009 by Michal Nazarewicz (mina86/AT/mina86.com)
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.mina86.dc.common;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.rmi.RemoteException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+
+/**
+ * Serves chunked transfers on the server side.  Tasks being
+ * downloaded are serialized into temporary files from which chunks
+ * are read on request, results being uploaded are written into
+ * temporary files chunk by chunk and deserialized once complete.
+ * This way serialized form of a task never has to be kept in memory
+ * as a whole.
+ *
+ * A finished transfer (a download client acknowledged by asking for
+ * a chunk at offset equal to its length or an upload whose result was
+ * accepted) is closed and its file deleted right away.  Only its
+ * identifier and length are remembered so that a repeated request
+ * (for instance after a lost response) neither starts a new transfer
+ * nor gets a result accepted twice.  Until acknowledged, the last
+ * chunk of a download can be requested again.
+ *
+ * Transfers which were not used for a while are forgotten and their
+ * files deleted.
+ */
+public final class Spool {
+	/** Supplies a task to download. */
+	public interface Source {
+		/** Returns task to send or \c null if there is none. */
+		public Task get() throws RemoteException;
+	}
+
+	/** Receives an uploaded result. */
+	public interface Sink {
+		/**
+		 * Called once an upload is complete.
+		 * \param t the result.
+		 */
+		public void accept(Task t) throws RemoteException;
+	}
+
+
+	/** For how long an idle transfer is kept in nanoseconds. */
+	private static final long idleTimeout = 10 * 60 * 1000000000L;
+	/** How often idle transfers are looked for in nanoseconds. */
+	private static final long expireInterval = 60 * 1000000000L;
+	/** Number of finished transfers of each kind to remember. */
+	private static final int maxFinished = 65536;
+
+
+	/** A single transfer. */
+	private static final class Entry {
+		/** Temporary file with serialized task. */
+		final File file;
+		/** Channel of the file. */
+		final FileChannel channel;
+		/** Length of serialized task. */
+		final long total;
+		/** Number of bytes received (for uploads). */
+		long length = 0;
+		/** Whether uploaded result was accepted. */
+		boolean done = false;
+		/** When the transfer was last used in nanoseconds. */
+		volatile long lastUsed = System.nanoTime();
+
+		/**
+		 * Constructs object.
+		 * \param theFile  temporary file.
+		 * \param mode     mode to open file in.
+		 * \param theTotal length of serialized task.
+		 * \throw IOException if file could not be opened.
+		 */
+		Entry(File theFile, String mode, long theTotal) throws IOException {
+			file = theFile;
+			channel = new RandomAccessFile(theFile, mode).getChannel();
+			total = theTotal;
+		}
+
+		/** Closes and deletes the file. */
+		void delete() {
+			try { channel.close(); }
+			catch (IOException e) { /* ignore */ }
+			file.delete();
+		}
+	}
+
+
+	/** Downloads indexed by transfer identifier. */
+	private final HashMap<Long, FutureTask<Entry>> downloads =
+		new HashMap<Long, FutureTask<Entry>>();
+	/** Uploads indexed by transfer identifier. */
+	private final HashMap<Long, Entry> uploads = new HashMap<Long, Entry>();
+	/** Lengths of finished downloads indexed by transfer identifier. */
+	private final LinkedHashMap<Long, Long> downloaded = finished();
+	/** Lengths of finished uploads indexed by transfer identifier. */
+	private final LinkedHashMap<Long, Long> uploaded = finished();
+	/** When idle transfers were last looked for in nanoseconds. */
+	private long lastExpire = System.nanoTime();
+
+
+	/**
+	 * Returns a chunk of a download.  If transfer is not known and \a
+	 * offset is zero a new transfer of task returned by \a source is
+	 * started.  Concurrent requests for the same new transfer wait
+	 * for the first one so a task is never taken twice.  A request at
+	 * offset equal to task's length acknowledges the download which
+	 * is then finished.
+	 * \param transfer transfer identifier.
+	 * \param offset   offset of the chunk.
+	 * \param source   where to take task from when starting transfer.
+	 * \return a chunk or \c null if there is no task to send,
+	 *         download was acknowledged, transfer has finished or
+	 *         transfer is not known and \a offset is not zero.
+	 * \throw RemoteException if task could not be spooled.
+	 */
+	public Chunk read(long transfer, long offset, final Source source)
+		throws RemoteException {
+		FutureTask<Entry> future;
+		boolean create = false;
+		synchronized (this) {
+			expire();
+			future = downloads.get(transfer);
+			if (future == null) {
+				if (offset != 0 || downloaded.containsKey(transfer)) {
+					return null;
+				}
+				future = new FutureTask<Entry>(new Callable<Entry>() {
+					public Entry call() throws Exception {
+						return spool(source.get());
+					}
+				});
+				downloads.put(transfer, future);
+				create = true;
+			}
+		}
+
+		if (create) {
+			future.run();
+		}
+
+		Entry e;
+		try {
+			e = future.get();
+		}
+		catch (InterruptedException ex) {
+			throw new RemoteException("interrupted", ex);
+		}
+		catch (ExecutionException ex) {
+			forget(transfer, future);
+			Throwable cause = ex.getCause();
+			throw cause instanceof RemoteException ? (RemoteException)cause
+				: new RemoteException("spooling task failed", cause);
+		}
+		if (e == null) {
+			forget(transfer, future);
+			return null;
+		}
+
+		e.lastUsed = System.nanoTime();
+		if (offset == e.total) {
+			synchronized (this) {
+				if (downloads.get(transfer) == future) {
+					downloads.remove(transfer);
+					downloaded.put(transfer, e.total);
+				}
+			}
+			e.delete();
+			return null;
+		} else if (offset < 0 || offset > e.total) {
+			return null;
+		}
+		byte data[] = new byte[(int)Math.min(Chunk.maxSize, e.total - offset)];
+		try {
+			ByteBuffer buf = ByteBuffer.wrap(data);
+			while (buf.hasRemaining()) {
+				if (e.channel.read(buf, offset + buf.position()) < 0) {
+					throw new IOException("unexpected end of spool file");
+				}
+			}
+		}
+		catch (IOException ex) {
+			throw new RemoteException("reading spool file failed", ex);
+		}
+
+		return new Chunk(transfer, offset, e.total, data);
+	}
+
+
+	/**
+	 * Accepts a chunk of an upload.  Chunk is stored only if it is
+	 * valid and starts exactly where data received so far ends (so
+	 * repeated chunks are ignored).  Once all data is received the
+	 * result is deserialized and passed to \a sink; if sink throws,
+	 * the last chunk is forgotten so that sending it again retries.
+	 * Upload is started by a chunk at offset zero.
+	 * \param c    the chunk.
+	 * \param sink where to pass the result to.
+	 * \return number of bytes received so far, ie. offset of the next
+	 *         chunk to send.
+	 * \throw RemoteException if data could not be stored or uploaded
+	 *                        result could not be deserialized.
+	 */
+	public long write(Chunk c, Sink sink) throws RemoteException {
+		Entry e;
+		synchronized (this) {
+			expire();
+			Long total = uploaded.get(c.transfer);
+			if (total != null) {
+				return total;
+			}
+			e = uploads.get(c.transfer);
+			if (e == null) {
+				if (c.offset != 0 || !c.isValid()) {
+					return 0;
+				}
+				try {
+					e = new Entry(File.createTempFile("dc-", ".upload"),
+					              "rw", c.total);
+				}
+				catch (IOException ex) {
+					throw new RemoteException("creating spool file failed", ex);
+				}
+				uploads.put(c.transfer, e);
+			}
+		}
+
+		synchronized (e) {
+			e.lastUsed = System.nanoTime();
+			if (e.done || c.total != e.total || c.offset != e.length ||
+			    !c.isValid()) {
+				return e.length;
+			}
+			try {
+				ByteBuffer buf = ByteBuffer.wrap(c.data);
+				while (buf.hasRemaining()) {
+					e.channel.write(buf, c.offset + buf.position());
+				}
+			}
+			catch (IOException ex) {
+				throw new RemoteException("writing spool file failed", ex);
+			}
+			e.length = c.end();
+			if (e.length < e.total) {
+				return e.length;
+			}
+
+			Task t;
+			try {
+				ObjectInputStream in = new ObjectInputStream(
+					new BufferedInputStream(new FileInputStream(e.file)));
+				try { t = (Task)in.readObject(); }
+				finally { in.close(); }
+			}
+			catch (Exception ex) {
+				synchronized (this) {
+					uploads.remove(c.transfer);
+				}
+				e.delete();
+				throw new RemoteException("invalid task uploaded", ex);
+			}
+
+			/* Entry's lock is held so a repeated last chunk waits and
+			 * then either sees the upload done or retries it. */
+			try {
+				sink.accept(t);
+				e.done = true;
+			}
+			finally {
+				if (!e.done) {
+					e.length = c.offset;
+				}
+			}
+		}
+
+		synchronized (this) {
+			uploads.remove(c.transfer);
+			uploaded.put(c.transfer, e.total);
+		}
+		e.delete();
+		return e.total;
+	}
+
+
+	/**
+	 * Serializes a task into a temporary file.
+	 * \param t task to serialize or \c null.
+	 * \return transfer entry or \c null if \a t is \c null.
+	 * \throw IOException if task could not be serialized.
+	 */
+	private static Entry spool(Task t) throws IOException {
+		if (t == null) {
+			return null;
+		}
+
+		File file = File.createTempFile("dc-", ".download");
+		try {
+			ObjectOutputStream out = new ObjectOutputStream(
+				new BufferedOutputStream(new FileOutputStream(file)));
+			try { out.writeObject(t); }
+			finally { out.close(); }
+			return new Entry(file, "r", file.length());
+		}
+		catch (IOException e) {
+			file.delete();
+			throw e;
+		}
+	}
+
+	/**
+	 * Removes a download if it is still mapped to given future.
+	 * \param transfer transfer identifier.
+	 * \param future   the future.
+	 */
+	private synchronized void forget(long transfer, FutureTask<Entry> future) {
+		if (downloads.get(transfer) == future) {
+			downloads.remove(transfer);
+		}
+	}
+
+	/**
+	 * Creates a map of finished transfers which forgets the oldest
+	 * ones once there are too many.
+	 */
+	private static LinkedHashMap<Long, Long> finished() {
+		return new LinkedHashMap<Long, Long>() {
+			protected boolean removeEldestEntry(Map.Entry<Long, Long> e) {
+				return size() > maxFinished;
+			}
+		};
+	}
+
+	/**
+	 * Forgets transfers which were idle for too long.  Does nothing if
+	 * it was done recently.  Lock must be held.
+	 */
+	private void expire() {
+		long now = System.nanoTime();
+		if (now - lastExpire < expireInterval) {
+			return;
+		}
+		lastExpire = now;
+		Iterator<FutureTask<Entry>> it = downloads.values().iterator();
+		while (it.hasNext()) {
+			FutureTask<Entry> f = it.next();
+			if (!f.isDone()) {
+				continue;
+			}
+			Entry e;
+			try { e = f.get(); }
+			catch (Exception ex) { e = null; }
+			if (e == null || now - e.lastUsed > idleTimeout) {
+				if (e != null) e.delete();
+				it.remove();
+			}
+		}
+
+		Iterator<Entry> jt = uploads.values().iterator();
+		while (jt.hasNext()) {
+			Entry e = jt.next();
+			if (now - e.lastUsed > idleTimeout) {
+				e.delete();
+				jt.remove();
+			}
+		}
+	}
+}
@@ -52,6 +52,29 @@ public interface Task extends Serializable {
 	 */
 	public boolean run();
 
+	/**
+	 * Runs the task for at most \a nanos nanoseconds.  Works like
+	 * run() but in addition returns once the time is up.  The method
+	 * always returns at an iteration boundary so an iteration in
+	 * progress is finished even if the time is up.  This lets
+	 * a single thread time-slice several tasks.
+	 *
+	 * \param nanos time budget in nanoseconds.
+	 * \return whether task is completed.
+	 * \see run()
+	 */
+	public boolean runFor(long nanos);
+
+	/**
+	 * Runs at most \a count iterations of the task.  Works like run()
+	 * but in addition returns once \a count iterations are done.
+	 *
+	 * \param count maximal number of iterations to do.
+	 * \return whether task is completed.
+	 * \see run()
+	 */
+	public boolean runIterations(long count);
+
 
 	/** Returns task's size. */
 	public int size();
@@ -59,6 +82,46 @@ public interface Task extends Serializable {
 	/** Returns how long the task has been calculated in miliseconds. */
 	public long time();
 
+	/**
+	 * Returns how long the task has been calculated in nanoseconds.
+	 * This is wall-clock time so it includes time calculating thread
+	 * was not scheduled.
+	 */
+	public long wallTime();
+
+	/**
+	 * Returns CPU time threads calculating the task used in
+	 * nanoseconds or zero if it could not be measured.
+	 */
+	public long cpuTime();
+
+	/** Returns number of iterations done. */
+	public long iterations();
+
+	/**
+	 * Returns time spent saving checkpoints of the task in
+	 * nanoseconds.  Checkpoints made while task was running are
+	 * included in wallTime() as well.
+	 */
+	public long checkpointTime();
+
+	/**
+	 * Records time spent saving a checkpoint of the task.
+	 * \param nanos time in nanoseconds.
+	 */
+	public void addCheckpointTime(long nanos);
+
+	/** Returns task's identifier or zero if it was never assigned one. */
+	public long id();
+
+	/**
+	 * Sets task's identifier.  It is called by the server before
+	 * handing task out so that a result can be matched with the task
+	 * it was generated from.
+	 * \param id new identifier.
+	 */
+	public void setId(long id);
+
 
 	/** Listener of task's progress. */
 	public interface ProgressListener {
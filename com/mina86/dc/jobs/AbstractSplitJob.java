@@ -0,0 +1,311 @@
+/*
+ * Copyright 2008-2009 by Michal Nazarewicz (mina86/AT/mina86.com)
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mina86.dc.jobs;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.TreeMap;
+import com.mina86.dc.common.Task;
+
+
+/**
+ * A job which splits a sequence of elements into contiguous parts
+ * and reduces results of the parts with an associative combiner.
+ *
+ * Each call to split() creates a task covering the next \a n
+ * elements.  Parts are numbered in the order they were created and
+ * results are reduced along a binary tree over those numbers: once
+ * results of both halves of a node are known they are combined and
+ * the node takes their place.  The tree has logarithmic depth so each
+ * element takes part in only a logarithmic number of combinations
+ * and server holds partial results only for nodes waiting for their
+ * siblings, never all of them.
+ *
+ * A part whose result does not come back (for instance because
+ * client died) is handed out again once all parts have been handed
+ * out and it has been out for longer then reissueAfter.
+ *
+ * \param R type of partial results.
+ */
+public abstract class AbstractSplitJob<R> implements Job {
+	/** How long a part must be out before it is handed out again in ms. */
+	protected static final long reissueAfter = 60000;
+
+
+	/** A part of the sequence handed out as a task. */
+	private static final class Part {
+		/** Part's number. */
+		final long index;
+		/** Offset of the first element. */
+		final long offset;
+		/** Number of elements. */
+		final int length;
+		/** Identifiers of tasks the part was handed out as. */
+		final ArrayList<Long> ids = new ArrayList<Long>(1);
+		/** When part was last handed out (System.currentTimeMillis()). */
+		long issued;
+
+		/**
+		 * Constructs object.
+		 * \param theIndex  part's number.
+		 * \param theOffset offset of the first element.
+		 * \param theLength number of elements.
+		 */
+		Part(long theIndex, long theOffset, int theLength) {
+			index = theIndex;
+			offset = theOffset;
+			length = theLength;
+		}
+	}
+
+	/** A node of the reduction tree. */
+	private static final class Node<R> {
+		/** Number of the first part node covers. */
+		final long start;
+		/** Node's level, node covers 2^level parts. */
+		final int level;
+		/** Combined result of the parts. */
+		final R value;
+
+		/**
+		 * Constructs object.
+		 * \param theStart number of the first part node covers.
+		 * \param theLevel node's level.
+		 * \param theValue combined result.
+		 */
+		Node(long theStart, int theLevel, R theValue) {
+			start = theStart;
+			level = theLevel;
+			value = theValue;
+		}
+	}
+
+
+	/** Job's name. */
+	private final String name;
+	/** Number of elements. */
+	private final long length;
+	/** Offset of the first element which was not handed out yet. */
+	private long offset = 0;
+	/** Number of parts created so far. */
+	private long parts = 0;
+
+	/** Parts handed out but not merged in order they were handed out. */
+	private final LinkedHashMap<Long, Part> outstanding =
+		new LinkedHashMap<Long, Part>();
+	/** Parts handed out indexed by task identifier. */
+	private final HashMap<Long, Part> ids = new HashMap<Long, Part>();
+	/** Nodes of reduction tree waiting for siblings indexed by start. */
+	private final TreeMap<Long, Node<R>> nodes = new TreeMap<Long, Node<R>>();
+	/** Final result or \c null if job is not done yet. */
+	private R result = null;
+
+
+	/**
+	 * Constructs object.
+	 * \param theName   job's name.
+	 * \param theLength number of elements.
+	 */
+	protected AbstractSplitJob(String theName, long theLength) {
+		name = theName;
+		length = theLength;
+	}
+
+
+	/**
+	 * Creates a task calculating given part of the sequence.
+	 * \param offset offset of the first element.
+	 * \param length number of elements.
+	 */
+	protected abstract Task createTask(long offset, int length);
+
+	/**
+	 * Extracts partial result from task's result.  Returns \c null
+	 * if result is not valid for given part.
+	 * \param result task's result.
+	 * \param offset offset of the first element of the part.
+	 * \param length number of elements of the part.
+	 */
+	protected abstract R partialResult(Task result, long offset, int length);
+
+	/**
+	 * Combines two partial results.  The operation must be
+	 * associative.
+	 * \param left  result for the preceding elements.
+	 * \param right result for the following elements.
+	 */
+	protected abstract R combine(R left, R right);
+
+
+	public String name() {
+		return name;
+	}
+
+	/** Returns number of elements. */
+	public long length() {
+		return length;
+	}
+
+	public synchronized long pending() {
+		return length - offset;
+	}
+
+	public synchronized boolean isDone() {
+		return result != null;
+	}
+
+	/** Returns final result or \c null if job is not done. */
+	public synchronized R result() {
+		return result;
+	}
+
+	/** Returns number of parts handed out but not merged. */
+	public synchronized int outstanding() {
+		return outstanding.size();
+	}
+
+
+	public Task split(long id, int n) {
+		Part part;
+		synchronized (this) {
+			if (offset < length) {
+				part = new Part(parts++, offset,
+				                (int)Math.min(Math.max(n, 1), length - offset));
+				offset += part.length;
+				if (offset == length) {
+					/* Number of parts is known, nodes on the right
+					 * edge may have no siblings now. */
+					reduceLast();
+				}
+			} else {
+				Iterator<Part> it = outstanding.values().iterator();
+				if (!it.hasNext()) {
+					return null;
+				}
+				part = it.next();
+				if (System.currentTimeMillis() - part.issued < reissueAfter) {
+					return null;
+				}
+				it.remove();
+			}
+
+			part.issued = System.currentTimeMillis();
+			part.ids.add(id);
+			outstanding.put(part.index, part);
+			ids.put(id, part);
+		}
+
+		Task t = createTask(part.offset, part.length);
+		t.setId(id);
+		return t;
+	}
+
+
+	public Task recreate(long id, int n) {
+		Part part;
+		synchronized (this) {
+			part = ids.get(id);
+			if (part == null || !outstanding.containsKey(part.index)) {
+				return null;
+			}
+		}
+
+		Task t = createTask(part.offset, part.length);
+		t.setId(id);
+		return t;
+	}
+
+
+	public boolean merge(Task t) {
+		Part part;
+		synchronized (this) {
+			part = ids.get(t.id());
+			if (part == null) {
+				return false;
+			}
+		}
+
+		/* Extracting may be expensive, do it without the lock. */
+		R value = partialResult(t, part.offset, part.length);
+		if (value == null) {
+			return false;
+		}
+
+		synchronized (this) {
+			if (outstanding.remove(part.index) == null) {
+				return false;
+			}
+			for (Long id : part.ids) {
+				ids.remove(id);
+			}
+			reduce(new Node<R>(part.index, 0, value));
+		}
+		return true;
+	}
+
+
+	/**
+	 * Inserts a node into reduction tree combining it with its
+	 * siblings for as long as possible.
+	 * \param node node to insert.
+	 */
+	private void reduce(Node<R> node) {
+		for (;;) {
+			long size = 1L << node.level;
+			boolean splitDone = offset == length;
+			if (splitDone && node.start == 0 && size >= parts) {
+				result = node.value;
+				return;
+			}
+
+			boolean left = ((node.start >> node.level) & 1) == 0;
+			long siblingStart = left ? node.start + size : node.start - size;
+			if (left && splitDone && siblingStart >= parts) {
+				/* No sibling, node moves up alone. */
+				node = new Node<R>(node.start, node.level + 1, node.value);
+				continue;
+			}
+
+			Node<R> sibling = nodes.get(siblingStart);
+			if (sibling == null || sibling.level != node.level) {
+				nodes.put(node.start, node);
+				return;
+			}
+
+			nodes.remove(siblingStart);
+			node = left
+				? new Node<R>(node.start, node.level + 1,
+				              combine(node.value, sibling.value))
+				: new Node<R>(sibling.start, node.level + 1,
+				              combine(sibling.value, node.value));
+		}
+	}
+
+	/**
+	 * Reduces the last node of the tree.  Called once number of parts
+	 * is known since nodes on the right edge might have been waiting
+	 * for siblings which will never be created.
+	 */
+	private void reduceLast() {
+		if (!nodes.isEmpty()) {
+			reduce(nodes.remove(nodes.lastKey()));
+		}
+	}
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright 2008-2009 by Michal Nazarewicz (mina86/AT/mina86.com)
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mina86.dc.jobs;
+
+import java.io.PrintStream;
+import com.mina86.dc.common.Task;
+
+
+/**
+ * A job run by the server.  Job splits itself into tasks of sizes
+ * requested by clients and merges results of those tasks as they come
+ * back.
+ *
+ * Methods may be called from many threads at once so
+ * implementations must be thread safe.
+ */
+public interface Job {
+	/** Returns job's name. */
+	public String name();
+
+	/**
+	 * Returns a task to hand out or \c null if job has nothing to
+	 * hand out at the moment (for instance because all parts are out
+	 * and it is waiting for results).  Returned task must have \a id
+	 * set as its identifier; when result comes back it will have the
+	 * same identifier.
+	 * \param id identifier for the task.
+	 * \param n  desired task's size.
+	 */
+	public Task split(long id, int n);
+
+	/**
+	 * Creates again a task returned by split() so that another copy
+	 * of it can be handed out.  The task must be identical to the one
+	 * returned by split(), this lets the server forget tasks in
+	 * flight and keep only their identifiers and sizes.  Returns \c
+	 * null if job no longer needs the task (for instance because its
+	 * result has already been merged).
+	 * \param id task's identifier.
+	 * \param n  task's size.
+	 */
+	public Task recreate(long id, int n);
+
+	/**
+	 * Merges a result of a task returned by split().  Returns \c
+	 * false if the result was not expected (for instance job does not
+	 * know task's identifier, the result is a duplicate or is not
+	 * a valid result for the task) in which case it should be dropped.
+	 * \param result the result.
+	 */
+	public boolean merge(Task result);
+
+	/**
+	 * Returns number of elements job has not handed out yet or -1 if
+	 * job is endless.
+	 */
+	public long pending();
+
+	/** Returns whether job is done, ie. all results were merged. */
+	public boolean isDone();
+
+	/**
+	 * Prints job's result.  Called once job is done.
+	 * \param out stream to print result to.
+	 */
+	public void printResult(PrintStream out);
+}
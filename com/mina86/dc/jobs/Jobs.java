@@ -0,0 +1,71 @@
+/*
+ * Copyright 2008-2009 by Michal Nazarewicz (mina86/AT/mina86.com)
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mina86.dc.jobs;
+
+
+/** Creates jobs from their textual descriptions. */
+public final class Jobs {
+	/** No instances. */
+	private Jobs() { }
+
+
+	/**
+	 * Creates a job from its description.  Description has one of
+	 * the following forms:
+	 *
+	 * - <tt>random</tt> -- an endless stream of tasks sorting random
+	 *   numbers, see RandomSortJob;
+	 * - <tt>sort:LENGTH[:SEED]</tt> -- sorting of \a LENGTH
+	 *   pseudo-random numbers, see SortJob.
+	 *
+	 * If job's name is followed by <tt>-direct</tt> (for instance
+	 * <tt>sort-direct:1000</tt>) its tasks keep data off Java heap.
+	 *
+	 * \param spec job's description.
+	 * \throw IllegalArgumentException if description is invalid.
+	 */
+	public static Job parse(String spec) throws IllegalArgumentException {
+		String parts[] = spec.split(":");
+		boolean direct = parts[0].endsWith("-direct");
+		if (direct) {
+			parts[0] = parts[0].substring(0, parts[0].length() - 7);
+		}
+
+		if (parts[0].equals("random") && parts.length == 1) {
+			return new RandomSortJob(direct);
+		}
+
+		if (parts[0].equals("sort") && parts.length >= 2 && parts.length <= 3) {
+			long length, seed;
+			try {
+				length = Long.parseLong(parts[1]);
+				seed = parts.length == 3 ? Long.parseLong(parts[2])
+				                         : System.currentTimeMillis();
+			}
+			catch (NumberFormatException e) {
+				throw new IllegalArgumentException("invalid number");
+			}
+			if (length < 1) {
+				throw new IllegalArgumentException("length must be positive");
+			}
+			return new SortJob(spec, length, seed, direct);
+		}
+
+		throw new IllegalArgumentException("expected random[-direct] or sort[-direct]:LENGTH[:SEED]");
+	}
+}
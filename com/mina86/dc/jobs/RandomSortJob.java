@@ -0,0 +1,99 @@
+/*
+ * Copyright 2008-2009 by Michal Nazarewicz (mina86/AT/mina86.com)
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mina86.dc.jobs;
+
+import java.io.PrintStream;
+import com.mina86.dc.common.Task;
+import com.mina86.dc.tasks.BogoSort;
+import com.mina86.dc.tasks.LongBogoSort;
+
+
+/**
+ * A job which never ends and hands out independent tasks sorting
+ * random numbers.  This is what the server did before it learned
+ * about jobs.  Tasks may keep their data on or off Java heap.
+ *
+ * Numbers are derived from job's seed and task's identifier so a task
+ * can be recreated from its identifier and size alone.
+ */
+public final class RandomSortJob implements Job {
+	/** Whether tasks keep data off Java heap. */
+	private final boolean direct;
+	/** Seed numbers are derived from. */
+	private final long seed =
+		System.nanoTime() ^ (long)(Math.random() * Long.MAX_VALUE);
+
+
+	/** Constructs a job whose tasks keep data on Java heap. */
+	public RandomSortJob() {
+		this(false);
+	}
+
+	/**
+	 * Constructs object.
+	 * \param theDirect whether tasks should keep data off Java heap
+	 *                  (see LongBogoSort).
+	 */
+	public RandomSortJob(boolean theDirect) {
+		direct = theDirect;
+	}
+
+
+	public String name() {
+		return direct ? "random-direct" : "random";
+	}
+
+	public Task split(long id, int n) {
+		long s = seed ^ id * 0xd1b54a32d192ed03L;
+		Task t;
+		if (direct) {
+			long data[] = new long[n];
+			for (int i = 0; i < n; ++i) {
+				data[i] = SortJob.element(s, i);
+			}
+			t = new LongBogoSort(data);
+		} else {
+			Long data[] = new Long[n];
+			for (int i = 0; i < n; ++i) {
+				data[i] = Long.valueOf(SortJob.element(s, i));
+			}
+			t = new BogoSort<Long>(data);
+		}
+		t.setId(id);
+		return t;
+	}
+
+	public Task recreate(long id, int n) {
+		return split(id, n);
+	}
+
+	public boolean merge(Task result) {
+		return true;
+	}
+
+	public long pending() {
+		return -1;
+	}
+
+	public boolean isDone() {
+		return false;
+	}
+
+	public void printResult(PrintStream out) {
+	}
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright 2008-2009 by Michal Nazarewicz (mina86/AT/mina86.com)
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mina86.dc.jobs;
+
+import java.io.PrintStream;
+import java.util.Arrays;
+import com.mina86.dc.common.Task;
+import com.mina86.dc.tasks.BogoSort;
+import com.mina86.dc.tasks.LongBogoSort;
+
+
+/**
+ * A job sorting a sequence of pseudo-random numbers.  Parts of the
+ * sequence are sorted by clients with BogoSort and the sorted runs
+ * are merged by the server.
+ *
+ * Numbers are derived from seed and element's offset so any part of
+ * the sequence can be generated (and a result checked against it)
+ * without keeping the whole input in memory.
+ *
+ * Tasks may keep their data on or off Java heap.
+ */
+public final class SortJob extends AbstractSplitJob<long[]> {
+	/** Seed numbers are derived from. */
+	private final long seed;
+	/** Whether tasks keep data off Java heap. */
+	private final boolean direct;
+
+
+	/**
+	 * Constructs object.
+	 * \param theName   job's name.
+	 * \param theLength number of elements to sort.
+	 * \param theSeed   seed numbers are derived from.
+	 * \param theDirect whether tasks should keep data off Java heap
+	 *                  (see LongBogoSort).
+	 */
+	public SortJob(String theName, long theLength, long theSeed,
+	               boolean theDirect) {
+		super(theName, theLength);
+		seed = theSeed;
+		direct = theDirect;
+	}
+
+
+	/**
+	 * Returns element at given offset.
+	 * \param offset element's offset.
+	 */
+	private long element(long offset) {
+		return element(seed, offset);
+	}
+
+	/**
+	 * Returns element at given offset of sequence derived from given
+	 * seed.
+	 * \param seed   seed numbers are derived from.
+	 * \param offset element's offset.
+	 */
+	static long element(long seed, long offset) {
+		/* SplitMix64 finalizer. */
+		long z = seed + (offset + 1) * 0x9e3779b97f4a7c15L;
+		z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+		z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+		return ((z ^ (z >>> 31)) >>> 1) % 1000000000;
+	}
+
+	protected Task createTask(long offset, int length) {
+		if (direct) {
+			long data[] = new long[length];
+			for (int i = 0; i < length; ++i) {
+				data[i] = element(offset + i);
+			}
+			return new LongBogoSort(data);
+		}
+
+		Long data[] = new Long[length];
+		for (int i = 0; i < length; ++i) {
+			data[i] = element(offset + i);
+		}
+		return new BogoSort<Long>(data);
+	}
+
+	protected long[] partialResult(Task t, long offset, int length) {
+		if (!(t instanceof Iterable) || t.size() != length) {
+			return null;
+		}
+
+		long run[] = new long[length], input[] = new long[length];
+		int i = 0;
+		for (Object item : (Iterable<?>)t) {
+			if (i == length || !(item instanceof Long)) {
+				return null;
+			}
+			run[i] = (Long)item;
+			input[i] = element(offset + i);
+			++i;
+		}
+
+		/* Result must be a sorted permutation of the input. */
+		Arrays.sort(input);
+		return Arrays.equals(run, input) ? run : null;
+	}
+
+	protected long[] combine(long left[], long right[]) {
+		long out[] = new long[left.length + right.length];
+		int i = 0, j = 0, k = 0;
+		while (i < left.length && j < right.length) {
+			out[k++] = left[i] <= right[j] ? left[i++] : right[j++];
+		}
+		while (i < left.length) out[k++] = left[i++];
+		while (j < right.length) out[k++] = right[j++];
+		return out;
+	}
+
+
+	public void printResult(PrintStream out) {
+		long sorted[] = result();
+		if (sorted == null) {
+			return;
+		}
+
+		out.print("Job " + name() + " sorted " + sorted.length +
+		          " numbers: {");
+		String sep = " ";
+		for (int i = 0; i < sorted.length; ++i) {
+			if (i == 8 && sorted.length > 16) {
+				out.print(", ...");
+				i = sorted.length - 8;
+			}
+			out.print(sep); sep = ", ";
+			out.print(sorted[i]);
+		}
+		out.println(" }");
+	}
+}
@@ -0,0 +1,585 @@
+/*
+ * Copyright 2008-2009 by Michal Nazarewicz (mina86/AT/mina86.com)
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mina86.dc.relay;
+
+import java.rmi.NotBoundException;
+import java.rmi.RemoteException;
+import java.rmi.registry.LocateRegistry;
+import java.rmi.registry.Registry;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Timer;
+import java.util.TimerTask;
+import com.mina86.DC;
+import com.mina86.dc.client.ServerShard;
+import com.mina86.dc.common.Chunk;
+import com.mina86.dc.common.ServerBusyException;
+import com.mina86.dc.common.ServerInterface;
+import com.mina86.dc.common.Spool;
+import com.mina86.dc.common.Task;
+import com.mina86.util.GetOptions;
+
+
+/**
+ * A distributed computing relay.  For local clients it looks like
+ * a server but it does not generate tasks itself.  Instead it
+ * fetches them in batches from an upstream server, hands them out one
+ * by one and forwards results upstream in batches.  This way a whole
+ * site keeps a single connection to the upstream server and local
+ * clients get LAN latency.
+ *
+ * Tasks are prefetched in the background when number of pending
+ * tasks drops below a quarter of the batch size.  Results are sent
+ * upstream when a full batch is collected or a few seconds after the
+ * first result in a batch arrived, whichever comes first.  When
+ * upstream server cannot be reached results are kept and resent
+ * later.
+ */
+public final class Relay implements ServerInterface, DC.Application {
+	/** Shortest delay after failed upstream communication in miliseconds. */
+	private static final long minUpstreamDelay = 1000;
+	/** Longest delay after failed upstream communication in miliseconds. */
+	private static final long maxUpstreamDelay = 64000;
+	/**
+	 * For how long relay keeps trying to send results and return
+	 * pending tasks upstream when exiting in miliseconds.
+	 */
+	private static final long exitTimeout = 30000;
+
+
+	/** Upstream server. */
+	private ServerShard upstream;
+	/** Number of tasks to fetch or results to send at once. */
+	private int batchSize = 64;
+	/** How long results may wait before being sent in miliseconds. */
+	private long flushDelay = 5000;
+
+	/** Tasks fetched from upstream but not handed out yet. */
+	private final ArrayDeque<Task> pending = new ArrayDeque<Task>();
+	/** Results waiting to be sent upstream. */
+	private ArrayList<Task> results = new ArrayList<Task>();
+	/** Whether tasks are being fetched from upstream. */
+	private boolean fetching = false;
+	/** Whether a background fetch has been scheduled. */
+	private boolean prefetchScheduled = false;
+	/** When upstream can be contacted again (System.nanoTime()). */
+	private long upstreamRetryAt = 0;
+	/** Current delay after failed upstream communication. */
+	private long upstreamDelay = minUpstreamDelay;
+	/** Timer used for background fetches and flushes. */
+	private final Timer timer = new Timer("relay", true);
+	/** Whether a flush has been scheduled. */
+	private boolean flushScheduled = false;
+	/** Number of flushes in progress. */
+	private int flushing = 0;
+	/** Chunked transfers with local clients in progress. */
+	private final Spool spool = new Spool();
+
+
+	public Task getTask(int n)
+		throws RemoteException, NegativeArraySizeException {
+		if (n < 0) {
+			throw new NegativeArraySizeException("negative task size requested (" + n + ")");
+		}
+
+		Task t;
+		boolean prefetch = false;
+		synchronized (this) {
+			t = take(n);
+			if (t != null && pending.size() < batchSize / 4 &&
+			    !fetching && !prefetchScheduled) {
+				prefetchScheduled = prefetch = true;
+			}
+		}
+
+		if (t == null) {
+			fetch(n);
+			synchronized (this) {
+				t = take(n);
+			}
+		} else if (prefetch) {
+			final int size = n;
+			timer.schedule(new TimerTask() {
+				public void run() {
+					synchronized (Relay.this) {
+						prefetchScheduled = false;
+					}
+					fetch(size);
+				}
+			}, 0);
+		}
+		return t;
+	}
+
+	public Task[] getTasks(int n, int count)
+		throws RemoteException, NegativeArraySizeException {
+		if (count < 0) {
+			throw new NegativeArraySizeException("negative task count requested (" + count + ")");
+		}
+
+		ArrayList<Task> ts = new ArrayList<Task>();
+		for (Task t; ts.size() < count && (t = getTask(n)) != null; ) {
+			ts.add(t);
+		}
+		return ts.toArray(new Task[ts.size()]);
+	}
+
+
+	/**
+	 * Takes a pending task which size is nearest \a n.  Lock must be
+	 * held.
+	 * \param n desired task's size or zero.
+	 * \return a task or \c null if there are no pending tasks.
+	 */
+	private Task take(int n) {
+		if (n == 0 || pending.isEmpty()) {
+			return pending.poll();
+		}
+
+		Task best = null;
+		for (Task t : pending) {
+			if (best == null ||
+			    Math.abs(t.size() - n) < Math.abs(best.size() - n)) {
+				best = t;
+				if (t.size() == n) break;
+			}
+		}
+		pending.remove(best);
+		return best;
+	}
+
+
+	/**
+	 * Fetches a batch of tasks from upstream server unless there are
+	 * enough pending tasks.  Does nothing if upstream communication
+	 * failed recently.  If another thread is fetching tasks waits for
+	 * it to finish.
+	 * \param n desired task's size or zero.
+	 */
+	private void fetch(int n) {
+		synchronized (this) {
+			while (fetching) {
+				try { wait(); }
+				catch (InterruptedException e) { return; }
+			}
+			if (pending.size() >= batchSize / 4 || interrupted ||
+			    System.nanoTime() - upstreamRetryAt < 0) {
+				return;
+			}
+			fetching = true;
+		}
+
+		Task ts[] = null;
+		long busy = 0;
+		System.out.print("Fetching " + batchSize + " tasks... ");
+		try {
+			ts = upstream.get().getTasks(n, batchSize);
+			System.out.print("done (got " + ts.length + ").\n");
+		}
+		catch (ServerBusyException e) {
+			System.out.println("busy.");
+			busy = e.retryAfter();
+		}
+		catch (Exception e) {
+			System.out.println("failed.\n" + e.toString());
+		}
+
+		synchronized (this) {
+			fetching = false;
+			if (ts == null && busy != 0) {
+				upstreamBusy(busy);
+			} else if (ts == null) {
+				upstreamFailed();
+			} else {
+				/* Do not trust upstream not to pad the array with nulls. */
+				for (Task t : ts) {
+					if (t != null) {
+						pending.add(t);
+					}
+				}
+				upstreamSucceeded();
+			}
+			notifyAll();
+		}
+	}
+
+
+	public void sendResult(Task t) throws RemoteException {
+		synchronized (this) {
+			results.add(t);
+			if (results.size() < batchSize) {
+				scheduleFlush();
+				return;
+			}
+		}
+		flush();
+	}
+
+	public void sendResults(Task ts[]) throws RemoteException {
+		synchronized (this) {
+			for (Task t : ts) {
+				results.add(t);
+			}
+			if (results.size() < batchSize) {
+				scheduleFlush();
+				return;
+			}
+		}
+		flush();
+	}
+
+
+	public Chunk getTaskChunk(long transfer, final int n, long offset)
+		throws RemoteException, NegativeArraySizeException {
+		return spool.read(transfer, offset, new Spool.Source() {
+			public Task get() throws RemoteException { return getTask(n); }
+		});
+	}
+
+	public long sendResultChunk(Chunk c) throws RemoteException {
+		return spool.write(c, new Spool.Sink() {
+			public void accept(Task t) throws RemoteException {
+				sendResult(t);
+			}
+		});
+	}
+
+
+	public void returnTask(Task t) throws RemoteException {
+		/* Task still belongs to the upstream server which does not
+		 * care who finishes it so hand it out to one of our clients
+		 * first. */
+		synchronized (this) {
+			pending.addFirst(t);
+		}
+	}
+
+
+	/** Schedules a flush unless one is scheduled.  Lock must be held. */
+	private void scheduleFlush() {
+		if (!flushScheduled) {
+			flushScheduled = true;
+			timer.schedule(new TimerTask() {
+				public void run() {
+					synchronized (Relay.this) {
+						flushScheduled = false;
+					}
+					flush();
+				}
+			}, flushDelay);
+		}
+	}
+
+	/**
+	 * Sends collected results upstream.  If that fails results are
+	 * kept and another flush is scheduled.
+	 */
+	private void flush() {
+		Task ts[];
+		synchronized (this) {
+			if (results.isEmpty() ||
+			    System.nanoTime() - upstreamRetryAt < 0) {
+				if (!results.isEmpty()) scheduleFlush();
+				return;
+			}
+			ts = results.toArray(new Task[results.size()]);
+			results = new ArrayList<Task>();
+			++flushing;
+		}
+
+		System.out.print("Sending " + ts.length + " results... ");
+		try {
+			upstream.get().sendResults(ts);
+			System.out.print("done.\n");
+			synchronized (this) {
+				upstreamSucceeded();
+			}
+		}
+		catch (Exception e) {
+			boolean busy = e instanceof ServerBusyException;
+			System.out.println(busy ? "busy." : "failed.\n" + e.toString());
+			synchronized (this) {
+				if (busy) {
+					upstreamBusy(((ServerBusyException)e).retryAfter());
+				} else {
+					upstreamFailed();
+				}
+				ArrayList<Task> list = new ArrayList<Task>();
+				for (Task t : ts) {
+					list.add(t);
+				}
+				list.addAll(results);
+				results = list;
+				scheduleFlush();
+			}
+		}
+		finally {
+			synchronized (this) {
+				--flushing;
+				notifyAll();
+			}
+		}
+	}
+
+
+	/** Marks that upstream communication succeeded.  Lock must be held. */
+	private void upstreamSucceeded() {
+		upstream.succeeded();
+		upstreamDelay = minUpstreamDelay;
+	}
+
+	/**
+	 * Marks that upstream communication failed so that upstream is
+	 * not contacted for a while.  The delay doubles with each
+	 * subsequent failure.  Lock must be held.
+	 */
+	private void upstreamFailed() {
+		upstream.failed();
+		upstreamRetryAt = System.nanoTime() + upstreamDelay * 1000000;
+		upstreamDelay = Math.min(upstreamDelay * 2, maxUpstreamDelay);
+	}
+
+	/**
+	 * Marks that upstream server is busy so that it is not contacted
+	 * for as long as it asked.  Lock must be held.
+	 * \param retryAfter how long to wait in miliseconds.
+	 */
+	private void upstreamBusy(long retryAfter) {
+		upstreamRetryAt = System.nanoTime() + retryAfter * 1000000;
+	}
+
+
+	/**
+	 * A helper method which displays exception's name and exits
+	 * application.
+	 * \param e    exception that has been caught.
+	 */
+	private static void catchException(Exception e) {
+		System.out.print("failed.\n");
+		e.printStackTrace();
+		System.exit(1);
+	}
+
+
+	/** The local registry to bind to. */
+	private Registry registry = null;
+	/** The name to bind to. */
+	private String serviceName = null;
+	/** Whether the service was bound. */
+	private boolean serviceBound = false;
+
+	public void run(String args[]) {
+		int port = 0;
+
+		try {
+			GetOptions.VectorHandler vec = new GetOptions.VectorHandler(1);
+			GetOptions.IntegerHandler portArg =
+				new GetOptions.IntegerHandler(Registry.REGISTRY_PORT,
+				                              1024, 0xffff);
+			GetOptions.StringHandler upstreamArg = new GetOptions.StringHandler();
+			GetOptions.IntegerHandler batchArg =
+				new GetOptions.IntegerHandler(64, 1, 65536);
+			GetOptions.IntegerHandler flushArg =
+				new GetOptions.IntegerHandler(5, 0, 3600);
+			GetOptions getopts = new GetOptions();
+			getopts.addOption("-", vec, GetOptions.TakesArg.REQ);
+			getopts.addOption("p", portArg, GetOptions.TakesArg.REQ);
+			getopts.addOption("u", upstreamArg, GetOptions.TakesArg.REQ);
+			getopts.addOption("b", batchArg, GetOptions.TakesArg.REQ);
+			getopts.addOption("f", flushArg, GetOptions.TakesArg.REQ);
+			getopts.addAlias("port", "p");
+			getopts.addAlias("upstream", "u");
+			getopts.addAlias("batch", "b");
+			getopts.addAlias("flush", "f");
+			getopts.parseArguments(args, 1);
+			serviceName = vec.get(0, DC.defaultServiceName);
+			port = portArg.value;
+			batchSize = batchArg.value;
+			flushDelay = flushArg.value * 1000L;
+
+			if (upstreamArg.value == null) {
+				throw new GetOptions.ArgExpected("upstream");
+			}
+			try { upstream = ServerShard.parse(upstreamArg.value); }
+			catch (NumberFormatException e) {
+				throw new GetOptions.InvalidValue("upstream", upstreamArg.value,
+				                                  "invalid port");
+			}
+		}
+		catch (GetOptions.Exception e) {
+			System.err.println(e.getFullMessage());
+			System.exit(1);
+		}
+
+		ServerInterface relay = this, stub = null;
+
+		checkInterrupt();
+
+		System.out.print("Getting registry... ");
+		try { registry = LocateRegistry.getRegistry(port); }
+		catch (RemoteException e) { catchException(e); }
+		System.out.print("done.\n");
+
+		checkInterrupt();
+
+		System.out.print("Creating relay stub... ");
+		try { stub=(ServerInterface)UnicastRemoteObject.exportObject(relay,0); }
+		catch (RemoteException e) { catchException(e); }
+		System.out.print("done.\n");
+
+		synchronized (this) {
+			checkInterrupt();
+
+			System.out.print("Binding relay (" + serviceName + ")... ");
+			try { registry.rebind(serviceName, stub); }
+			catch (RemoteException e) { catchException(e); }
+			System.out.print("done.\n");
+			serviceBound = true;
+		}
+
+		System.out.print("Relay running (upstream " + upstream + ").\n");
+	}
+
+
+	/** Whether there was a signal. */
+	private volatile boolean interrupted = false;
+	/** Checks whether there was a signal and exits with \c 0 exit code. */
+	private void checkInterrupt() { checkInterrupt(0); }
+	/**
+	 * Checks whether there was a signal and exits with given exit code.
+	 * \param exitCode exit code to exit with if program was interrupted
+	 */
+	private void checkInterrupt(int exitCode) {
+		if (interrupted) {
+			System.out.println("Interrupted, exiting.");
+			System.exit(exitCode);
+		}
+	}
+
+
+	/**
+	 * Sends collected results upstream and then returns pending tasks
+	 * to it so other clients can calculate them.  Failed attempts are
+	 * retried until \a deadline.  Fetching new tasks must have been
+	 * stopped.
+	 * \param deadline when to give up (System.nanoTime()).
+	 * \throw InterruptedException if thread was interrupted.
+	 */
+	private void handOver(long deadline) throws InterruptedException {
+		for (;;) {
+			synchronized (this) {
+				long left;
+				while ((fetching || flushing != 0) &&
+				       (left = deadline - System.nanoTime()) > 0) {
+					wait(left / 1000000 + 1);
+				}
+				if (results.isEmpty()) {
+					break;
+				}
+				upstreamRetryAt = 0;
+			}
+			flush();
+
+			long delay;
+			synchronized (this) {
+				long left = deadline - System.nanoTime();
+				if (results.isEmpty() && flushing == 0) {
+					break;
+				} else if (left <= 0) {
+					System.out.println("Giving up, " + results.size() +
+					                   " results not sent.");
+					return;
+				}
+				delay = Math.min(upstreamDelay, left / 1000000 + 1);
+			}
+			Thread.sleep(delay);
+		}
+
+		int count;
+		synchronized (this) {
+			count = pending.size();
+		}
+		if (count == 0) {
+			return;
+		}
+		System.out.print("Returning " + count + " pending tasks... ");
+		for (;;) {
+			Task t;
+			synchronized (this) {
+				t = pending.poll();
+			}
+			if (t == null) {
+				break;
+			}
+			try {
+				upstream.get().returnTask(t);
+				synchronized (this) {
+					upstreamSucceeded();
+				}
+			}
+			catch (Exception e) {
+				long left, delay;
+				synchronized (this) {
+					pending.addFirst(t);
+					left = deadline - System.nanoTime();
+					delay = Math.min(upstreamDelay, left / 1000000 + 1);
+					count = pending.size();
+					upstreamFailed();
+				}
+				if (left <= 0) {
+					System.out.println("failed, " + count +
+					                   " tasks not returned.\n" + e.toString());
+					return;
+				}
+				Thread.sleep(delay);
+			}
+		}
+		System.out.print("done.\n");
+	}
+
+
+	/**
+	 * Handles an unix signal.  Unbinds the relay, sends all collected
+	 * results upstream and returns pending tasks to it before
+	 * exiting.  Both are retried for up to exitTimeout miliseconds.
+	 */
+	public void handleSignal() {
+		checkInterrupt(1);
+		interrupted = true;
+
+		synchronized (this) {
+			if (!serviceBound) return;
+		}
+
+		System.out.print("Unbinding relay... ");
+		try { registry.unbind(serviceName); }
+		catch (RemoteException e) { System.out.println(e.toString()); }
+		catch (NotBoundException e) { }
+		System.out.print("done.\n");
+
+		try {
+			handOver(System.nanoTime() + exitTimeout * 1000000);
+		}
+		catch (InterruptedException e) {
+			System.out.println("Interrupted.");
+		}
+		System.exit(0);
+	}
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright 2008-2009 by Michal Nazarewicz (mina86/AT/mina86.com)
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.mina86.dc.server;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import com.mina86.dc.common.ServerBusyException;
+import com.mina86.util.Meter;
+
+
+/**
+ * Limits the number of calls server handles at once.  A call which
+ * would exceed the limit is rejected right away with a hint how long
+ * to wait instead of being queued: queued calls only add latency
+ * until clients time out and retry all at once, while a rejected
+ * call costs next to nothing and leaves the capacity to calls which
+ * will complete.
+ *
+ * The hint is the average duration of a call (by then a slot is
+ * likely to be free) stretched by the ratio of the rate of rejections
+ * to the rate at which server completes calls (\a limit / \a average
+ * per second) so that the harder server is pressed the longer callers
+ * stay away.
+ */
+final class AdmissionControl {
+	/** Shortest hint in miliseconds. */
+	private static final long minRetryAfter = 10;
+	/** Longest hint in miliseconds. */
+	private static final long maxRetryAfter = 30000;
+
+
+	/** Maximal number of calls at once or zero for no limit. */
+	private final int limit;
+	/** Number of calls in progress. */
+	private final AtomicInteger inProgress = new AtomicInteger();
+	/** Rejected calls. */
+	final Meter rejected = new Meter();
+	/** Exponentially weighted moving average of call duration in nanoseconds. */
+	private volatile long average = 0;
+
+
+	/**
+	 * Constructs object.
+	 * \param theLimit maximal number of calls at once or zero for no
+	 *                 limit.
+	 */
+	AdmissionControl(int theLimit) {
+		limit = theLimit;
+	}
+
+
+	/**
+	 * Admits a call or rejects it.  Admitted call must be followed by
+	 * exit().
+	 * \return value of System.nanoTime() to pass to exit().
+	 * \throw ServerBusyException if limit was reached.
+	 */
+	long enter() throws ServerBusyException {
+		if (inProgress.incrementAndGet() > limit && limit != 0) {
+			inProgress.decrementAndGet();
+			rejected.mark();
+			throw new ServerBusyException(retryAfter());
+		}
+		return System.nanoTime();
+	}
+
+	/**
+	 * Marks the end of admitted call.
+	 * \param start value returned by enter().
+	 */
+	void exit(long start) {
+		inProgress.decrementAndGet();
+		long time = System.nanoTime() - start, avg = average;
+		/* Racy but it is only an estimate. */
+		average = avg == 0 ? time : avg + (time - avg) / 16;
+	}
+
+
+	/** Returns number of calls in progress. */
+	int inProgress() {
+		return inProgress.get();
+	}
+
+	/** Returns how long rejected caller should wait in miliseconds. */
+	long retryAfter() {
+		if (limit == 0) {
+			return 0;
+		}
+		double avg = Math.max(average, 1) / 1e9;
+		double wait = avg * (1 + rejected.rate() * avg / limit);
+		return Math.min(maxRetryAfter,
+		                Math.max(minRetryAfter, (long)(wait * 1000)));
+	}
+}
@@ -0,0 +1,176 @@
+/*
+ * Copyright 2008-2009 by Michal Nazarewicz (mina86/AT/mina86.com)
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mina86.dc.server;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+import com.mina86.dc.jobs.Job;
+import com.mina86.util.Meter;
+
+
+/**
+ * Shares tasks handed out between jobs in proportion to their
+ * weights.  Jobs are picked with deficit round robin where each task
+ * costs one unit: when job's turn comes it gets as many tasks as its
+ * weight and then goes to the end of the queue.  Picking a job takes
+ * constant time.
+ *
+ * A job which has nothing to hand out at the moment loses the rest of
+ * its turn so that others are not held up, and a job which is done
+ * leaves the queue.  Since every job gets its share each round
+ * a large job cannot starve small ones.
+ */
+final class JobScheduler {
+	/** A job with its scheduling state and metrics. */
+	static final class Entry implements JobStatsMXBean {
+		/** The job. */
+		final Job job;
+		/** Job's weight. */
+		final int weight;
+		/** Tasks job may still be given in its current turn. */
+		private int deficit = 0;
+
+		/** Tasks issued. */
+		final Meter issued = new Meter();
+		/** Results accepted. */
+		final Meter completed = new Meter();
+		/** Results dropped. */
+		final LongAdder dropped = new LongAdder();
+		/** Tracker of tasks in flight. */
+		private final TaskTracker tracker;
+
+		/**
+		 * Constructs object.
+		 * \param theJob     the job.
+		 * \param theWeight  job's weight.
+		 * \param theTracker tracker of tasks in flight.
+		 */
+		Entry(Job theJob, int theWeight, TaskTracker theTracker) {
+			job = theJob;
+			weight = theWeight;
+			tracker = theTracker;
+		}
+
+		public String getName() { return job.name(); }
+		public int getWeight() { return weight; }
+		public boolean isDone() { return job.isDone(); }
+
+		public long getTasksIssued() { return issued.count(); }
+		public double getTasksIssuedPerSecond() { return issued.rate(); }
+		public long getTasksCompleted() { return completed.count(); }
+		public double getTasksCompletedPerSecond() { return completed.rate(); }
+		public long getResultsDropped() { return dropped.sum(); }
+
+		public int getInFlight() { return tracker.inFlight(job); }
+		public long getPending() { return job.pending(); }
+	}
+
+
+	/** Tracker of tasks in flight. */
+	private final TaskTracker tracker;
+	/** All jobs in order they were added. */
+	private final List<Entry> entries = new ArrayList<Entry>();
+	/** Entries indexed by job. */
+	private final IdentityHashMap<Job, Entry> byJob =
+		new IdentityHashMap<Job, Entry>();
+	/** Jobs which are not done in order of their turns. */
+	private final ArrayDeque<Entry> queue = new ArrayDeque<Entry>();
+
+
+	/**
+	 * Constructs object.
+	 * \param theTracker tracker of tasks in flight.
+	 */
+	JobScheduler(TaskTracker theTracker) {
+		tracker = theTracker;
+	}
+
+
+	/**
+	 * Adds a job.
+	 * \param job    job to add.
+	 * \param weight job's weight, must be positive.
+	 * \return entry of the added job.
+	 */
+	synchronized Entry add(Job job, int weight) {
+		Entry e = new Entry(job, weight, tracker);
+		entries.add(e);
+		byJob.put(job, e);
+		queue.addLast(e);
+		return e;
+	}
+
+	/** Returns all jobs in order they were added. */
+	synchronized List<Entry> entries() {
+		return Collections.unmodifiableList(new ArrayList<Entry>(entries));
+	}
+
+	/**
+	 * Returns entry of given job or \c null if job is not known.
+	 * \param job job to look up.
+	 */
+	synchronized Entry entry(Job job) {
+		return byJob.get(job);
+	}
+
+	/** Returns number of jobs which are not done. */
+	synchronized int active() {
+		return queue.size();
+	}
+
+
+	/**
+	 * Picks job to split the next task from or returns \c null if all
+	 * jobs are done.
+	 */
+	synchronized Entry next() {
+		Entry e = queue.peekFirst();
+		if (e == null) {
+			return null;
+		}
+		if (e.deficit == 0) {
+			e.deficit = e.weight;
+		}
+		if (--e.deficit == 0) {
+			queue.addLast(queue.pollFirst());
+		}
+		return e;
+	}
+
+	/**
+	 * Reports that a job returned by next() had nothing to hand out.
+	 * Job loses the rest of its turn, and if it is done it is removed
+	 * from the queue.
+	 * \param e job's entry.
+	 */
+	synchronized void idle(Entry e) {
+		if (e.deficit != 0) {
+			e.deficit = 0;
+			if (queue.peekFirst() == e) {
+				queue.addLast(queue.pollFirst());
+			}
+		}
+		if (e.job.isDone()) {
+			queue.remove(e);
+		}
+	}
+}
@@ -0,0 +1,52 @@
+/*
+ * Copyright 2008-2009 by Michal Nazarewicz (mina86/AT/mina86.com)
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mina86.dc.server;
+
+
+/**
+ * Management interface exposing metrics of a single job.  Each job
+ * is registered in platform MBean server under
+ * <tt>com.mina86.dc:type=Job,name=<em>name</em></tt> name.
+ */
+public interface JobStatsMXBean {
+	/** Returns job's name. */
+	public String getName();
+	/** Returns job's weight. */
+	public int getWeight();
+	/** Returns whether job is done. */
+	public boolean isDone();
+
+	/** Returns number of tasks issued. */
+	public long getTasksIssued();
+	/** Returns number of tasks issued per second. */
+	public double getTasksIssuedPerSecond();
+	/** Returns number of results accepted. */
+	public long getTasksCompleted();
+	/** Returns number of results accepted per second. */
+	public double getTasksCompletedPerSecond();
+	/** Returns number of results dropped. */
+	public long getResultsDropped();
+
+	/** Returns number of job's tasks in flight. */
+	public int getInFlight();
+	/**
+	 * Returns number of elements job has not handed out yet or -1 if
+	 * job is endless.
+	 */
+	public long getPending();
+}
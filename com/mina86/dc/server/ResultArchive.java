@@ -0,0 +1,594 @@
+/*
+ * Copyright 2008-2009 by Michal Nazarewicz (mina86/AT/mina86.com)
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.mina86.dc.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.text.NumberFormat;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import com.mina86.dc.common.Task;
+
+
+/**
+ * A durable archive of results.  Results are appended to segment
+ * files which are memory-mapped so storing a result is just a copy
+ * into page cache: there is no fsync nor file creation per result.
+ * A segment is flushed to disk when it is full and a new one is
+ * started, and when archive is closed.  Flushing of full segments is
+ * done by a background thread so that threads appending results do
+ * not wait for the disk.
+ *
+ * Each record consists of a header (length of serialized result,
+ * task's identifier, task's size and CRC32 of serialized result)
+ * followed by the serialized result.  When archive is opened all
+ * segments are scanned to rebuild indexes; scanning of a segment
+ * stops at the first damaged record so results written just before
+ * a crash may be lost but archive is never corrupted.
+ *
+ * Results are indexed by task's identifier (a later result replaces
+ * earlier one with the same identifier) and by task's size.  Sealed
+ * segments in which less then half of the bytes are live records are
+ * compacted by copying live records to the current segment and
+ * deleting the file.  Compaction runs in the background as well and
+ * takes the lock for one record at a time.  Deleted segment's mapping
+ * is dropped but, as Java cannot unmap a buffer explicitly, the
+ * memory and the file's disk blocks are released only once the buffer
+ * is garbage collected.
+ */
+final class ResultArchive implements ResultArchiveMXBean {
+	/** Default size of a segment. */
+	static final long defaultSegmentSize = 64L << 20;
+	/** Size of record's header. */
+	private static final int headerSize = 20;
+	/** Segment file name prefix. */
+	private static final String prefix = "results-";
+	/** Segment file name suffix. */
+	private static final String suffix = ".seg";
+	/** How long close() waits for background work in seconds. */
+	private static final long closeTimeout = 30;
+
+
+	/** A segment file. */
+	private static final class Segment {
+		/** Segment's number. */
+		final int number;
+		/** Segment's file. */
+		final File file;
+		/** Mapping of the whole file. */
+		final MappedByteBuffer map;
+		/** Number of bytes used by records. */
+		int used = 0;
+		/** Number of bytes used by live records. */
+		long live = 0;
+
+		/**
+		 * Maps a segment file creating it if needed.
+		 * \param dir       archive directory.
+		 * \param theNumber segment's number.
+		 * \param size      minimal size of the file.
+		 * \throw IOException if file could not be mapped.
+		 */
+		Segment(File dir, int theNumber, long size) throws IOException {
+			number = theNumber;
+			file = new File(dir, String.format("%s%08d%s", prefix, theNumber,
+			                                   suffix));
+			RandomAccessFile raf = new RandomAccessFile(file, "rw");
+			try {
+				if (raf.length() < size) {
+					raf.setLength(size);
+				}
+				map = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+				                           raf.length());
+			}
+			finally {
+				raf.close();
+			}
+		}
+
+		/** Returns number of bytes left. */
+		int free() {
+			return map.capacity() - used;
+		}
+
+		/**
+		 * Returns length of record at given offset including header.
+		 * \param offset record's offset.
+		 */
+		int recordLength(int offset) {
+			return headerSize + map.getInt(offset);
+		}
+	}
+
+
+	/** Archive directory. */
+	private final File dir;
+	/** Size of new segments. */
+	private final long segmentSize;
+	/** Segments indexed by number. */
+	private final TreeMap<Integer, Segment> segments =
+		new TreeMap<Integer, Segment>();
+	/** Segment results are appended to. */
+	private Segment current = null;
+	/** Locations of results indexed by task's identifier. */
+	private final HashMap<Long, Long> byId = new HashMap<Long, Long>();
+	/** Identifiers of results indexed by task's size. */
+	private final TreeMap<Integer, LinkedHashSet<Long>> bySize =
+		new TreeMap<Integer, LinkedHashSet<Long>>();
+	/** Whether compaction is scheduled and has not started yet. */
+	private boolean compactionPending = false;
+	/** Thread flushing sealed segments and compacting them. */
+	private final ExecutorService background =
+		Executors.newSingleThreadExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "archive");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+
+
+	/**
+	 * Opens archive in given directory creating it if needed.
+	 * \param theDir         archive directory.
+	 * \param theSegmentSize size of new segments.
+	 * \throw IOException if archive could not be opened.
+	 */
+	ResultArchive(File theDir, long theSegmentSize) throws IOException {
+		dir = theDir;
+		segmentSize = theSegmentSize;
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("could not create directory " + dir);
+		}
+
+		String names[] = dir.list();
+		for (String name : names == null ? new String[0] : names) {
+			if (!name.startsWith(prefix) || !name.endsWith(suffix)) {
+				continue;
+			}
+			int number;
+			try {
+				number = Integer.parseInt(name.substring(
+					prefix.length(), name.length() - suffix.length()));
+			}
+			catch (NumberFormatException e) {
+				continue;
+			}
+			segments.put(number, new Segment(dir, number, 0));
+		}
+
+		for (Segment s : segments.values()) {
+			scan(s);
+		}
+		if (segments.isEmpty()) {
+			roll(0);
+		} else {
+			current = segments.lastEntry().getValue();
+		}
+	}
+
+
+	/**
+	 * Indexes records of a segment.
+	 * \param s segment to scan.
+	 */
+	private void scan(Segment s) {
+		int offset = 0, capacity = s.map.capacity();
+		while (capacity - offset >= headerSize) {
+			int length = s.map.getInt(offset);
+			if (length <= 0 || length > capacity - offset - headerSize ||
+			    checksum(s.map, offset + headerSize, length) !=
+			    s.map.getInt(offset + 16)) {
+				break;
+			}
+			index(s, offset, s.map.getLong(offset + 4),
+			      s.map.getInt(offset + 12));
+			offset += headerSize + length;
+		}
+		s.used = offset;
+	}
+
+	/**
+	 * Adds a record to indexes.
+	 * \param s      segment record is in.
+	 * \param offset record's offset.
+	 * \param id     task's identifier.
+	 * \param size   task's size.
+	 */
+	private void index(Segment s, int offset, long id, int size) {
+		Long old = byId.put(id, location(s, offset));
+		if (old != null) {
+			Segment o = segment(old);
+			o.live -= o.recordLength(offset(old));
+			int oldSize = o.map.getInt(offset(old) + 12);
+			if (oldSize == size) {
+				s.live += s.recordLength(offset);
+				return;
+			}
+			LinkedHashSet<Long> ids = bySize.get(oldSize);
+			ids.remove(id);
+			if (ids.isEmpty()) {
+				bySize.remove(oldSize);
+			}
+		}
+
+		LinkedHashSet<Long> ids = bySize.get(size);
+		if (ids == null) {
+			ids = new LinkedHashSet<Long>();
+			bySize.put(size, ids);
+		}
+		ids.add(id);
+		s.live += s.recordLength(offset);
+	}
+
+
+	/**
+	 * Appends a result.
+	 * \param t the result.
+	 * \throw IOException if result could not be serialized or is too
+	 *                    large or new segment could not be created.
+	 */
+	void append(Task t) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ObjectOutputStream out = new ObjectOutputStream(bytes);
+		out.writeObject(t);
+		out.close();
+		byte data[] = bytes.toByteArray();
+
+		ByteBuffer record = ByteBuffer.allocate(headerSize + data.length);
+		record.putInt(data.length).putLong(t.id()).putInt(t.size())
+			.putInt(checksum(ByteBuffer.wrap(data), 0, data.length))
+			.put(data).flip();
+
+		synchronized (this) {
+			if (current.free() < record.remaining()) {
+				roll(record.remaining());
+				scheduleCompaction();
+			}
+			write(record);
+		}
+	}
+
+	/**
+	 * Writes a record to the current segment and indexes it.  Lock
+	 * must be held and there must be enough space.
+	 * \param record record to write.
+	 */
+	private void write(ByteBuffer record) {
+		int offset = current.used;
+		ByteBuffer dst = current.map.duplicate();
+		dst.position(offset);
+		dst.put(record);
+		current.used = dst.position();
+		index(current, offset, current.map.getLong(offset + 4),
+		      current.map.getInt(offset + 12));
+	}
+
+	/**
+	 * Starts a new segment and schedules flushing of the current one.
+	 * Lock must be held.
+	 * \param need minimal number of bytes new segment must hold.
+	 * \throw IOException if segment could not be created or record
+	 *                    is too large.
+	 */
+	private void roll(int need) throws IOException {
+		if (need < 0) {
+			throw new IOException("result too large");
+		}
+		final Segment sealed = current;
+		int number = segments.isEmpty() ? 0 : segments.lastKey() + 1;
+		current = new Segment(dir, number, Math.max(segmentSize, need));
+		segments.put(number, current);
+		if (sealed != null) {
+			background(() -> sealed.map.force());
+		}
+	}
+
+	/**
+	 * Runs a job on the background thread or, if archive is closed,
+	 * in the calling thread.
+	 * \param job job to run.
+	 */
+	private void background(Runnable job) {
+		try {
+			background.execute(job);
+		}
+		catch (RejectedExecutionException e) {
+			job.run();
+		}
+	}
+
+
+	/**
+	 * Returns result of given task or \c null.
+	 * \param id task's identifier.
+	 * \throw IOException if result could not be deserialized.
+	 */
+	synchronized Task get(long id) throws IOException {
+		Long loc = byId.get(id);
+		return loc == null ? null : read(segment(loc), offset(loc));
+	}
+
+	/**
+	 * Returns all results of tasks of given size in order they were
+	 * archived.
+	 * \param n task's size.
+	 * \throw IOException if a result could not be deserialized.
+	 */
+	synchronized List<Task> bySize(int n) throws IOException {
+		return range(n, n);
+	}
+
+	/**
+	 * Returns all results of tasks of size from \a from to \a to
+	 * inclusive.
+	 * \param from minimal task's size.
+	 * \param to   maximal task's size.
+	 * \throw IOException if a result could not be deserialized.
+	 */
+	synchronized List<Task> range(int from, int to) throws IOException {
+		ArrayList<Task> list = new ArrayList<Task>();
+		for (LinkedHashSet<Long> ids : bySize.subMap(from, true, to, true).values()) {
+			for (Long id : ids) {
+				Long loc = byId.get(id);
+				list.add(read(segment(loc), offset(loc)));
+			}
+		}
+		return list;
+	}
+
+	/**
+	 * Deserializes record.  Lock must be held.
+	 * \param s      segment record is in.
+	 * \param offset record's offset.
+	 * \throw IOException if result could not be deserialized.
+	 */
+	private static Task read(Segment s, int offset) throws IOException {
+		byte data[] = new byte[s.map.getInt(offset)];
+		ByteBuffer src = s.map.duplicate();
+		src.position(offset + headerSize);
+		src.get(data);
+		try {
+			return (Task)new ObjectInputStream(
+				new ByteArrayInputStream(data)).readObject();
+		}
+		catch (ClassNotFoundException e) {
+			throw new IOException(e);
+		}
+	}
+
+
+	public synchronized void compact() {
+		scheduleCompaction();
+	}
+
+	/**
+	 * Schedules compaction on the background thread unless it is
+	 * already scheduled.  Lock must be held.
+	 */
+	private void scheduleCompaction() {
+		if (!compactionPending) {
+			compactionPending = true;
+			background(() -> compactSealed());
+		}
+	}
+
+	/**
+	 * Compacts sealed segments in which less then half of the bytes
+	 * are live records.  Lock is taken for each record copied rather
+	 * then for the whole compaction so appending results does not
+	 * wait for it.  Copied records are flushed to disk before any of
+	 * the old segments is deleted.  Stops early, leaving old segments
+	 * in place, if a new segment could not be created or the thread
+	 * is interrupted.  Lock must not be held.
+	 */
+	private void compactSealed() {
+		ArrayList<Segment> victims = new ArrayList<Segment>();
+		synchronized (this) {
+			compactionPending = false;
+			for (Segment s : segments.values()) {
+				if (s != current && s.live * 2 < s.used) {
+					victims.add(s);
+				}
+			}
+		}
+		if (victims.isEmpty()) {
+			return;
+		}
+
+		ArrayList<Segment> written = new ArrayList<Segment>();
+		for (Segment s : victims) {
+			for (int offset = 0; offset < s.used; ) {
+				if (Thread.currentThread().isInterrupted()) {
+					return;
+				}
+				int length = s.recordLength(offset);
+				synchronized (this) {
+					Long loc = byId.get(s.map.getLong(offset + 4));
+					if (loc != null && loc == location(s, offset)) {
+						if (current.free() < length) {
+							try { roll(length); }
+							catch (IOException e) { return; }
+						}
+						if (!written.contains(current)) {
+							written.add(current);
+						}
+						ByteBuffer record = s.map.duplicate();
+						record.position(offset).limit(offset + length);
+						write(record);
+					}
+				}
+				offset += length;
+			}
+		}
+
+		for (Segment s : written) {
+			s.map.force();
+		}
+		synchronized (this) {
+			for (Segment s : victims) {
+				segments.remove(s.number);
+				s.file.delete();
+			}
+		}
+	}
+
+
+	/**
+	 * Waits for background work to finish (stopping it if it takes
+	 * too long) and flushes current segment to disk.
+	 */
+	void close() {
+		background.shutdown();
+		try {
+			if (!background.awaitTermination(closeTimeout, TimeUnit.SECONDS)) {
+				background.shutdownNow();
+			}
+		}
+		catch (InterruptedException e) {
+			background.shutdownNow();
+		}
+		synchronized (this) {
+			current.map.force();
+		}
+	}
+
+
+	public synchronized int getResults() { return byId.size(); }
+	public synchronized int getSegments() { return segments.size(); }
+
+	public synchronized long getBytes() {
+		long bytes = 0;
+		for (Segment s : segments.values()) bytes += s.used;
+		return bytes;
+	}
+
+	public synchronized long getLiveBytes() {
+		long bytes = 0;
+		for (Segment s : segments.values()) bytes += s.live;
+		return bytes;
+	}
+
+	public synchronized Map<Integer, Integer> getResultsBySize() {
+		TreeMap<Integer, Integer> map = new TreeMap<Integer, Integer>();
+		for (Map.Entry<Integer, LinkedHashSet<Long>> e : bySize.entrySet()) {
+			map.put(e.getKey(), e.getValue().size());
+		}
+		return map;
+	}
+
+	public String result(long id) {
+		try {
+			Task t = get(id);
+			return t == null ? null : format(t);
+		}
+		catch (IOException e) {
+			return e.toString();
+		}
+	}
+
+	public List<String> resultsOfSize(int n) {
+		ArrayList<String> list = new ArrayList<String>();
+		try {
+			for (Task t : bySize(n)) {
+				list.add(format(t));
+			}
+		}
+		catch (IOException e) {
+			list.add(e.toString());
+		}
+		return list;
+	}
+
+
+	/**
+	 * Formats a result as text.
+	 * \param t the result.
+	 */
+	private static String format(Task t) {
+		if (!(t instanceof Iterable)) {
+			return "task " + t.id() + " (n = " + t.size() + ")";
+		}
+		StringBuilder sb = new StringBuilder("task " + t.id() + ": {");
+		NumberFormat nf = NumberFormat.getIntegerInstance();
+		String sep = " ";
+		for (Object item : (Iterable<?>)t) {
+			sb.append(sep).append(nf.format(item));
+			sep = ", ";
+		}
+		return sb.append(" }").toString();
+	}
+
+	/**
+	 * Calculates CRC32 of part of a buffer.
+	 * \param buf    the buffer.
+	 * \param offset offset of the data.
+	 * \param length length of the data.
+	 */
+	private static int checksum(ByteBuffer buf, int offset, int length) {
+		ByteBuffer data = buf.duplicate();
+		data.position(offset).limit(offset + length);
+		CRC32 crc = new CRC32();
+		crc.update(data);
+		return (int)crc.getValue();
+	}
+
+	/**
+	 * Returns location of a record.
+	 * \param s      segment record is in.
+	 * \param offset record's offset.
+	 */
+	private static long location(Segment s, int offset) {
+		return ((long)s.number << 32) | offset;
+	}
+
+	/**
+	 * Returns segment of a location.
+	 * \param loc the location.
+	 */
+	private Segment segment(long loc) {
+		return segments.get((int)(loc >>> 32));
+	}
+
+	/**
+	 * Returns offset of a location.
+	 * \param loc the location.
+	 */
+	private static int offset(long loc) {
+		return (int)loc;
+	}
+}
@@ -0,0 +1,57 @@
+/*
+ * Copyright 2008-2009 by Michal Nazarewicz (mina86/AT/mina86.com)
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.mina86.dc.server;
+
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * Management interface of result archive.  It is registered in
+ * platform MBean server under <tt>com.mina86.dc:type=Archive</tt>
+ * name.
+ */
+public interface ResultArchiveMXBean {
+	/** Returns number of archived results. */
+	public int getResults();
+	/** Returns number of segment files. */
+	public int getSegments();
+	/** Returns number of bytes used by records in all segments. */
+	public long getBytes();
+	/** Returns number of bytes used by live records. */
+	public long getLiveBytes();
+	/** Returns result sizes with number of archived results of each. */
+	public Map<Integer, Integer> getResultsBySize();
+
+	/**
+	 * Returns archived result of given task formatted as text or \c
+	 * null if there is no such result.
+	 * \param id task's identifier.
+	 */
+	public String result(long id);
+
+	/**
+	 * Returns all archived results of given size formatted as text.
+	 * \param n task's size.
+	 */
+	public List<String> resultsOfSize(int n);
+
+	/** Schedules rewriting of segments which are mostly garbage. */
+	public void compact();
+}
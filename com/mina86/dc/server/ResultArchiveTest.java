@@ -0,0 +1,170 @@
+/*
+ * Copyright 2008-2009 by Michal Nazarewicz (mina86/AT/mina86.com)
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.mina86.dc.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import com.mina86.dc.common.Task;
+import com.mina86.dc.tasks.BogoSort;
+
+
+/**
+ * A test program for ResultArchive.  Results with identifiers picked
+ * at random from a small set are archived over and over again into
+ * segments which hold only a few records each so that segments are
+ * rolled and compacted (with live records copied) many times.  After
+ * each append and after the archive is reopened every identifier must
+ * map to its most recent result.
+ *
+ * The class is kept in server's package as archive is not public.
+ *
+ * Usage: <tt>java com.mina86.dc.server.ResultArchiveTest [ <dir> ]</tt>
+ * where \a dir is a directory to create archive in which is removed
+ * afterwards (\c archive-test by default).
+ */
+final public class ResultArchiveTest {
+	/** Number of distinct identifiers. */
+	private static final int ids = 60;
+	/** Number of results to archive. */
+	private static final int appends = 2000;
+	/** Number of records a segment holds. */
+	private static final int recordsPerSegment = 10;
+
+
+	/**
+	 * Runs the test.
+	 * \param args program arguments.
+	 */
+	public static void main(String [] args) {
+		File dir = new File(args.length > 0 ? args[0] : "archive-test");
+		boolean ok;
+		try {
+			ok = run(dir);
+		}
+		catch (Exception e) {
+			e.printStackTrace();
+			ok = false;
+		}
+		finally {
+			delete(dir);
+		}
+		System.out.print(ok ? "passed.\n" : "FAILED.\n");
+		System.exit(ok ? 0 : 1);
+	}
+
+
+	/**
+	 * Runs the test.
+	 * \param dir directory to create archive in.
+	 * \return whether test passed.
+	 * \throw IOException if archive could not be opened or written.
+	 */
+	private static boolean run(File dir) throws IOException {
+		/* Measure a record by archiving one in a scratch archive. */
+		delete(dir);
+		ResultArchive archive =
+			new ResultArchive(dir, ResultArchive.defaultSegmentSize);
+		archive.append(result(0, 0));
+		long segmentSize = archive.getBytes() * recordsPerSegment;
+		archive.close();
+		delete(dir);
+
+		System.out.print("Archiving " + appends + " results with " + ids +
+		                 " identifiers in " + segmentSize +
+		                 "-byte segments... ");
+		archive = new ResultArchive(dir, segmentSize);
+		int latest[] = new int[ids];
+		boolean seen[] = new boolean[ids];
+		Random random = new Random(42);
+		for (int i = 0; i < appends; ++i) {
+			int id = random.nextInt(ids);
+			seen[id] = true;
+			latest[id] = i;
+			archive.append(result(id, i));
+			if (!check(archive, id, i)) {
+				System.out.print("failed at append #" + i + ".\n");
+				return false;
+			}
+		}
+		System.out.print("done (" + archive.getSegments() + " segments).\n");
+		archive.close();
+
+		System.out.print("Reopening archive... ");
+		archive = new ResultArchive(dir, segmentSize);
+		int count = 0;
+		for (boolean s : seen) {
+			if (s) ++count;
+		}
+		if (archive.getResults() != count) {
+			System.out.print("failed: " + archive.getResults() +
+			                 " results instead of " + count + ".\n");
+			return false;
+		}
+		for (int id = 0; id < ids; ++id) {
+			if (seen[id] && !check(archive, id, latest[id])) {
+				System.out.print("failed: wrong result of task " + id + ".\n");
+				return false;
+			}
+		}
+		archive.close();
+		System.out.print("done.\n");
+		return true;
+	}
+
+
+	/**
+	 * Creates a result.  Results of different generations differ in
+	 * data so that a stale result can be told apart from a fresh one.
+	 * \param id         task's identifier.
+	 * \param generation number of the append.
+	 */
+	private static Task result(int id, int generation) {
+		Integer data[] = { generation, generation + 1, generation + 2 };
+		Task t = new BogoSort<Integer>(data);
+		t.setId(id);
+		return t;
+	}
+
+	/**
+	 * Checks whether archive holds given generation of a result.
+	 * \param archive    the archive.
+	 * \param id         task's identifier.
+	 * \param generation expected generation.
+	 * \throw IOException if result could not be read.
+	 */
+	private static boolean check(ResultArchive archive, int id,
+	                             int generation) throws IOException {
+		Task t = archive.get(id);
+		return t instanceof BogoSort && t.id() == id &&
+			((BogoSort<?>)t).iterator().next().equals(generation);
+	}
+
+	/**
+	 * Removes archive directory with its contents.
+	 * \param dir directory to remove.
+	 */
+	private static void delete(File dir) {
+		File files[] = dir.listFiles();
+		for (File f : files == null ? new File[0] : files) {
+			f.delete();
+		}
+		dir.delete();
+	}
+}
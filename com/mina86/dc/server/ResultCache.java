@@ -0,0 +1,208 @@
+/*
+ * Copyright 2008-2009 by Michal Nazarewicz (mina86/AT/mina86.com)
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mina86.dc.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import com.mina86.dc.common.Task;
+
+
+/**
+ * A content addressed cache of results.  Tasks are identified by
+ * a SHA-256 hash of their serialized form taken before they are
+ * handed out (ie. of their input data).  When the same input is to
+ * be handed out again a cached result can be used instead.
+ *
+ * Results are kept serialized so that the number of bytes cache
+ * occupies is known exactly.  Cache is bounded both by the number of
+ * entries and the number of bytes, least recently used entries are
+ * evicted first.
+ */
+final class ResultCache {
+	/** Maximal number of tasks in flight whose keys are remembered. */
+	private static final int maxPending = 65536;
+
+
+	/** Maximal number of entries. */
+	private final int maxEntries;
+	/** Maximal number of bytes. */
+	private final long maxBytes;
+	/** Number of bytes used by cached results. */
+	private long bytes = 0;
+
+	/** Number of cache hits. */
+	private long hits = 0;
+	/** Number of cache misses. */
+	private long misses = 0;
+	/** Number of evicted entries. */
+	private long evictions = 0;
+
+	/** Cached results in access order. */
+	private final LinkedHashMap<BigInteger, byte[]> cache =
+		new LinkedHashMap<BigInteger, byte[]>(16, 0.75f, true);
+	/** Keys of tasks in flight indexed by task's identifier. */
+	private final LinkedHashMap<Long, BigInteger> pending =
+		new LinkedHashMap<Long, BigInteger>() {
+			protected boolean removeEldestEntry(Map.Entry<Long, BigInteger> e) {
+				return size() > maxPending;
+			}
+		};
+
+
+	/**
+	 * Constructs object.  If either of the limits is zero cache is
+	 * disabled.
+	 * \param theMaxEntries maximal number of entries.
+	 * \param theMaxBytes   maximal number of bytes.
+	 */
+	ResultCache(int theMaxEntries, long theMaxBytes) {
+		maxEntries = theMaxEntries;
+		maxBytes = theMaxBytes;
+	}
+
+
+	/** Returns whether cache is enabled. */
+	boolean enabled() {
+		return maxEntries != 0 && maxBytes != 0;
+	}
+
+	/** Returns number of cache hits. */
+	synchronized long hits() { return hits; }
+	/** Returns number of cache misses. */
+	synchronized long misses() { return misses; }
+	/** Returns number of evicted entries. */
+	synchronized long evictions() { return evictions; }
+	/** Returns number of entries. */
+	synchronized int entries() { return cache.size(); }
+	/** Returns number of bytes used by cached results. */
+	synchronized long bytes() { return bytes; }
+
+
+	/**
+	 * Calculates a key of a task.  Task must not have been run yet.
+	 * Task's identifier is not part of the key.
+	 * \param t task to calculate key for.
+	 * \throw IOException if task could not be serialized.
+	 */
+	static BigInteger key(Task t) throws IOException {
+		MessageDigest md;
+		try { md = MessageDigest.getInstance("SHA-256"); }
+		catch (NoSuchAlgorithmException e) { throw new IOException(e); }
+
+		long id = t.id();
+		t.setId(0);
+		try { return new BigInteger(1, md.digest(serialize(t))); }
+		finally { t.setId(id); }
+	}
+
+
+	/**
+	 * Looks up a result for task with given key.  If there is no
+	 * cached result \c null is returned.
+	 * \param key task's key.
+	 */
+	Task get(BigInteger key) {
+		byte[] data;
+		synchronized (this) {
+			data = cache.get(key);
+			if (data == null) {
+				++misses;
+				return null;
+			}
+			++hits;
+		}
+
+		try {
+			ObjectInputStream in =
+				new ObjectInputStream(new ByteArrayInputStream(data));
+			return (Task)in.readObject();
+		}
+		catch (Exception e) {
+			return null;
+		}
+	}
+
+
+	/**
+	 * Remembers key of a task which is being handed out so that when
+	 * result comes back it can be cached.
+	 * \param t   task being handed out (must have identifier assigned).
+	 * \param key task's key.
+	 */
+	synchronized void expect(Task t, BigInteger key) {
+		pending.put(t.id(), key);
+	}
+
+
+	/**
+	 * Caches a result if the task it came from was registered with
+	 * expect().  Least recently used entries are evicted if needed.
+	 * \param t result to cache.
+	 */
+	void put(Task t) {
+		BigInteger key;
+		synchronized (this) {
+			key = pending.remove(t.id());
+		}
+		if (key == null) {
+			return;
+		}
+
+		byte[] data;
+		try { data = serialize(t); }
+		catch (IOException e) { return; }
+		if (data.length > maxBytes) {
+			return;
+		}
+
+		synchronized (this) {
+			byte[] old = cache.put(key, data);
+			bytes += data.length - (old == null ? 0 : old.length);
+
+			Iterator<byte[]> it = cache.values().iterator();
+			while (cache.size() > maxEntries || bytes > maxBytes) {
+				bytes -= it.next().length;
+				it.remove();
+				++evictions;
+			}
+		}
+	}
+
+
+	/**
+	 * Serializes a task.
+	 * \param t task to serialize.
+	 * \throw IOException if task could not be serialized.
+	 */
+	private static byte[] serialize(Task t) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ObjectOutputStream out = new ObjectOutputStream(bytes);
+		out.writeObject(t);
+		out.close();
+		return bytes.toByteArray();
+	}
+}
@@ -17,16 +17,30 @@
 
 package com.mina86.dc.server;
 
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.math.BigInteger;
 import java.rmi.NotBoundException;
 import java.rmi.RemoteException;
 import java.rmi.registry.LocateRegistry;
 import java.rmi.registry.Registry;
 import java.rmi.server.UnicastRemoteObject;
 import java.text.NumberFormat;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import javax.management.ObjectName;
 import com.mina86.DC;
+import com.mina86.dc.common.Chunk;
+import com.mina86.dc.common.Events;
+import com.mina86.dc.common.ServerBusyException;
 import com.mina86.dc.common.ServerInterface;
+import com.mina86.dc.common.Spool;
 import com.mina86.dc.common.Task;
-import com.mina86.dc.tasks.BogoSort;
+import com.mina86.dc.jobs.Job;
+import com.mina86.dc.jobs.Jobs;
 import com.mina86.util.GetOptions;
 import com.mina86.util.SignalHandlers;
 
@@ -35,9 +49,121 @@ import com.mina86.util.SignalHandlers;
 public final class Server implements ServerInterface, DC.Application {
 	/* A default task size if client requested size 0. */
 	private int defaultSize = 8;
+	/** Tracker of tasks handed out to clients. */
+	private TaskTracker tracker = new TaskTracker(10);
+	/** Cache of results. */
+	private ResultCache cache = new ResultCache(0, 0);
+	/** Limit of calls handled at once. */
+	private AdmissionControl admission = new AdmissionControl(0);
+	/** Unfinished tasks returned by clients, handed out first. */
+	private SpillQueue migrated = new SpillQueue();
+	/** Operational metrics. */
+	private ServerStats stats =
+		new ServerStats(tracker, cache, admission, migrated);
+	/** Whether to print information about each task and result. */
+	private boolean verbose = true;
+	/** Scheduler of jobs tasks are split from. */
+	private JobScheduler scheduler = new JobScheduler(tracker);
+	/** Jobs which are done and whose result was printed. */
+	private final Set<Job> finished =
+		Collections.synchronizedSet(new HashSet<Job>());
+	/** Chunked transfers in progress. */
+	private final Spool spool = new Spool();
+	/** Figures reported with results. */
+	private final TaskAccounting accounting = new TaskAccounting();
+	/** Archive results are stored in or \c null. */
+	private ResultArchive archive = null;
 
 	public Task getTask(int n)
-		throws RemoteException, NegativeArraySizeException {
+		throws RemoteException, NegativeArraySizeException,
+		       ServerBusyException {
+		long start = admission.enter();
+		stats.clientSeen();
+		Events.GetTask event = new Events.GetTask();
+		event.begin();
+		Task t = null;
+		try {
+			return t = issueTask(n);
+		}
+		finally {
+			stats.getTask.since(start);
+			admission.exit(start);
+			event.end();
+			if (event.shouldCommit()) {
+				event.task(t);
+				event.count = t == null ? 0 : 1;
+				event.commit();
+			}
+		}
+	}
+
+	public Task[] getTasks(int n, int count)
+		throws RemoteException, NegativeArraySizeException,
+		       ServerBusyException {
+		if (count < 0) {
+			throw new NegativeArraySizeException("negative task count requested (" + count + ")");
+		}
+
+		long start = admission.enter();
+		stats.clientSeen();
+		Events.GetTask event = new Events.GetTask();
+		event.begin();
+		Task ts[] = new Task[count];
+		try {
+			for (int i = 0; i < count; ++i) {
+				ts[i] = issueTask(n);
+				if (ts[i] == null) {
+					/* No job has more work, return what there is. */
+					return Arrays.copyOf(ts, i);
+				}
+			}
+			return ts;
+		}
+		finally {
+			stats.getTask.since(start);
+			admission.exit(start);
+			event.end();
+			if (event.shouldCommit()) {
+				for (Task t : ts) {
+					if (t != null && event.count++ == 0) {
+						event.task(t);
+					}
+				}
+				event.commit();
+			}
+		}
+	}
+
+	public Chunk getTaskChunk(long transfer, final int n, long offset)
+		throws RemoteException, NegativeArraySizeException,
+		       ServerBusyException {
+		long start = admission.enter();
+		stats.clientSeen();
+		Events.GetTask event = new Events.GetTask();
+		event.begin();
+		Chunk c = null;
+		try {
+			return c = spool.read(transfer, offset, new Spool.Source() {
+				public Task get() { return issueTask(n); }
+			});
+		}
+		finally {
+			stats.getTask.since(start);
+			admission.exit(start);
+			event.end();
+			if (event.shouldCommit()) {
+				event.bytes = c == null ? 0 : c.data.length;
+				event.commit();
+			}
+		}
+	}
+
+	/**
+	 * Returns a task to send to client.
+	 * \param n desired task's size or zero meaning server default.
+	 * \throw NegativeArraySizeException if n is negative.
+	 */
+	private Task issueTask(int n) throws NegativeArraySizeException {
 		if (n < 0) {
 			System.out.println("Negative task size requested.");
 			throw new NegativeArraySizeException("negative task size requested (" + n + ")");
@@ -49,22 +175,268 @@ public final class Server implements ServerInterface, DC.Application {
 			n = 2;
 		}
 
-		System.out.println("Generating and sending task (n = " + n + ").");
+		Task t;
+		while ((t = migrated.take(n)) != null) {
+			if (tracker.resume(t)) {
+				if (verbose) {
+					System.out.println("Sending migrated task " + t.id() +
+					                   " (n = " + t.size() + ").");
+				}
+				stats.issued.mark();
+				return t;
+			}
+		}
+
+		t = tracker.straggler(n);
+		if (t != null) {
+			if (verbose) {
+				System.out.println("Sending speculative copy of task " +
+				                   t.id() + " (n = " + t.size() + ").");
+			}
+			stats.speculative.increment();
+			stats.issued.mark();
+			return t;
+		}
+
+		if (verbose) {
+			System.out.println("Generating and sending task (n = " + n + ").");
+		}
+
+		for (;;) {
+			long id = tracker.nextId();
+			JobScheduler.Entry job = null;
+			t = null;
+			for (int tries = scheduler.active(); t == null && tries > 0; --tries) {
+				job = scheduler.next();
+				if (job == null) {
+					break;
+				}
+				Events.Generate event = new Events.Generate();
+				event.begin();
+				t = job.job.split(id, n);
+				event.end();
+				if (event.shouldCommit()) {
+					event.task(t);
+					event.job = job.job.name();
+					event.commit();
+				}
+				if (t == null) {
+					scheduler.idle(job);
+				}
+			}
+			if (t == null) {
+				if (verbose) {
+					System.out.println("No task to send.");
+				}
+				return null;
+			}
+
+			BigInteger key = cacheKey(t);
+			Task result = key == null ? null : cache.get(key);
+			if (result == null) {
+				tracker.issue(t, job.job);
+				if (key != null) {
+					cache.expect(t, key);
+				}
+				stats.issued.mark();
+				job.issued.mark();
+				return t;
+			}
+
+			if (verbose) {
+				System.out.println("Using cached result (n = " + n + ").");
+			}
+			result.setId(id);
+			mergeResult(job.job, result);
+		}
+	}
+
+	/**
+	 * Returns task's key in result cache or \c null if cache is
+	 * disabled or key could not be calculated.
+	 * \param t task to calculate key of.
+	 */
+	private BigInteger cacheKey(Task t) {
+		if (!cache.enabled()) {
+			return null;
+		}
+		try { return ResultCache.key(t); }
+		catch (IOException e) { return null; }
+	}
+
+	public void sendResult(Task t)
+		throws RemoteException, ServerBusyException {
+		long start = admission.enter();
+		stats.clientSeen();
+		Events.SendResult event = new Events.SendResult();
+		event.begin();
+		try {
+			acceptResult(t);
+		}
+		finally {
+			stats.sendResult.since(start);
+			admission.exit(start);
+			event.end();
+			if (event.shouldCommit()) {
+				event.task(t);
+				event.count = 1;
+				event.commit();
+			}
+		}
+	}
+
+	public void sendResults(Task ts[])
+		throws RemoteException, ServerBusyException {
+		long start = admission.enter();
+		stats.clientSeen();
+		Events.SendResult event = new Events.SendResult();
+		event.begin();
+		try {
+			for (Task t : ts) {
+				acceptResult(t);
+			}
+		}
+		finally {
+			stats.sendResult.since(start);
+			admission.exit(start);
+			event.end();
+			if (event.shouldCommit()) {
+				event.task(ts.length == 0 ? null : ts[0]);
+				event.count = ts.length;
+				event.commit();
+			}
+		}
+	}
+
+	public long sendResultChunk(Chunk c)
+		throws RemoteException, ServerBusyException {
+		long start = admission.enter();
+		stats.clientSeen();
+		Events.SendResult event = new Events.SendResult();
+		event.begin();
+		try {
+			return spool.write(c, new Spool.Sink() {
+				public void accept(Task t) { acceptResult(t); }
+			});
+		}
+		finally {
+			stats.sendResult.since(start);
+			admission.exit(start);
+			event.end();
+			if (event.shouldCommit()) {
+				event.bytes = c.data.length;
+				event.commit();
+			}
+		}
+	}
+
+	public void returnTask(Task t) throws RemoteException {
+		long start = System.nanoTime();
+		stats.clientSeen();
+		try {
+			if (!tracker.resume(t)) {
+				if (verbose) {
+					System.out.println("Dropping returned task " + t.id() +
+					                   " which is already done.");
+				}
+				return;
+			}
+			if (verbose) {
+				System.out.println("Got unfinished task " + t.id() +
+				                   " back (n = " + t.size() + ").");
+			}
+			stats.migrated.increment();
+			migrated.add(t);
+		}
+		finally {
+			stats.returnTask.since(start);
+		}
+	}
+
+	/**
+	 * Accepts a result sent by a client.
+	 * \param t the result.
+	 */
+	private void acceptResult(Task t) {
+		if (t.isVerifiable() && !t.verifyResult()) {
+			if (verbose) {
+				System.out.println("Dropping invalid result of task " +
+				                   t.id() + ".");
+			}
+			stats.dropped.increment();
+			return;
+		}
+		accounting.record(t);
+		Job owner = tracker.owner(t);
+		if (!tracker.complete(t)) {
+			if (verbose) {
+				System.out.println("Dropping late result of task " +
+				                   t.id() + ".");
+			}
+			stats.dropped.increment();
+			return;
+		}
+
+		stats.completed.mark();
+		if (mergeResult(owner, t)) {
+			cache.put(t);
+		}
+	}
 
-		Long data[] = new Long[n];
-		for (int i = 0; i < n; ++i) {
-			data[i] = new Long((long)(Math.random()*1000000000));
+	/**
+	 * Merges a result into job it belongs to and prints it.  If job
+	 * is done prints job's result as well.
+	 * \param owner job the result belongs to or \c null if not known.
+	 * \param t     the result.
+	 * \return whether result was accepted by the job.
+	 */
+	private boolean mergeResult(Job owner, Task t) {
+		JobScheduler.Entry entry =
+			owner == null ? null : scheduler.entry(owner);
+		if (owner != null && !owner.merge(t)) {
+			if (verbose) {
+				System.out.println("Dropping result of task " + t.id() +
+				                   " rejected by job " + owner.name() + ".");
+			}
+			stats.dropped.increment();
+			if (entry != null) entry.dropped.increment();
+			return false;
 		}
 
-		return new BogoSort<Long>(data);
+		if (entry != null) entry.completed.mark();
+		printResult(t);
+		if (archive != null) {
+			try { archive.append(t); }
+			catch (IOException e) {
+				System.out.println("Archiving result of task " + t.id() +
+				                   " failed.\n" + e.toString());
+			}
+		}
+		if (owner != null && owner.isDone() && finished.add(owner)) {
+			System.out.println("Job " + owner.name() + " done.");
+			owner.printResult(System.out);
+		}
+		return true;
 	}
 
-	public void sendResult(Task t) throws RemoteException {
+	/**
+	 * Prints result to standard output.
+	 * \param t the result.
+	 */
+	private void printResult(Task t) {
+		if (!verbose) {
+			return;
+		}
+
+		if (!(t instanceof Iterable)) {
+			System.out.println("Got result of task " + t.id() + ".");
+			return;
+		}
+
 		System.out.print("Got result: {");
-		BogoSort<Long> task = (BogoSort<Long>)t;
 		NumberFormat nf = NumberFormat.getIntegerInstance();
 		String sep = " ";
-		for (Long item : task) {
+		for (Object item : (Iterable<?>)t) {
 			System.out.print(sep); sep = ", ";
 			System.out.print(nf.format(item));
 		}
@@ -96,12 +468,49 @@ public final class Server implements ServerInterface, DC.Application {
 	}
 
 
+	/**
+	 * Adds a job described by \a spec to the scheduler.  Description
+	 * is job's description as accepted by Jobs.parse() optionally
+	 * followed by <tt>\@WEIGHT</tt> (weight defaults to one).
+	 * \param spec job's description.
+	 * \throw GetOptions.InvalidValue if description is invalid.
+	 */
+	private void addJob(String spec) throws GetOptions.InvalidValue {
+		int at = spec.lastIndexOf('@'), weight = 1;
+		try {
+			if (at >= 0) {
+				weight = Integer.parseInt(spec.substring(at + 1));
+				if (weight < 1 || weight > 1000) {
+					throw new GetOptions.InvalidValue("j", spec,
+					                                  "weight must be from <1; 1000>");
+				}
+			}
+			scheduler.add(Jobs.parse(at < 0 ? spec : spec.substring(0, at)),
+			              weight);
+		}
+		catch (NumberFormatException e) {
+			throw new GetOptions.InvalidValue("j", spec, "invalid weight");
+		}
+		catch (IllegalArgumentException e) {
+			throw new GetOptions.InvalidValue("j", spec, e.getMessage());
+		}
+	}
+
+
 	/** The local registry to bind to. */
 	private Registry registry = null;
 	/** The name to bind to. */
 	private String serviceName = null;
 	/** Whether the service was bound. */
 	private boolean serviceBound = false;
+	/** Directory of result archive or \c null. */
+	private String archiveDir = null;
+	/** Size of result archive's segments. */
+	private long segmentSize = ResultArchive.defaultSegmentSize;
+	/** Directory migrated tasks spill to or \c null. */
+	private String spillDir = null;
+	/** Number of elements of migrated tasks kept in memory. */
+	private long spillAfter = 1 << 20;
 
 	public void run(String args[]) {
 		int port = 0;
@@ -112,16 +521,77 @@ public final class Server implements ServerInterface, DC.Application {
 				new GetOptions.IntegerHandler(Registry.REGISTRY_PORT,
 				                              1024, 0xffff);
 			GetOptions.IntegerHandler sizeArg =
-				new GetOptions.IntegerHandler(8, 2, 1024);
+				new GetOptions.IntegerHandler(8, 2, 1 << 24);
+			GetOptions.IntegerHandler speculateArg =
+				new GetOptions.IntegerHandler(10, 0, 100);
+			GetOptions.IntegerHandler cacheEntriesArg =
+				new GetOptions.IntegerHandler(1024, 0, Integer.MAX_VALUE);
+			GetOptions.IntegerHandler cacheSizeArg =
+				new GetOptions.IntegerHandler(16384, 0, Integer.MAX_VALUE);
+			GetOptions.FlagHandler quietArg = new GetOptions.FlagHandler();
+			GetOptions.VectorHandler jobArg = new GetOptions.VectorHandler();
+			GetOptions.StringHandler archiveArg = new GetOptions.StringHandler();
+			GetOptions.IntegerHandler maxCallsArg =
+				new GetOptions.IntegerHandler(0, 0, 65536);
+			GetOptions.IntegerHandler segmentArg =
+				new GetOptions.IntegerHandler(
+					(int)(ResultArchive.defaultSegmentSize >> 20), 1, 2047);
+			GetOptions.StringHandler spillArg = new GetOptions.StringHandler();
+			GetOptions.IntegerHandler spillAfterArg =
+				new GetOptions.IntegerHandler(1 << 20, 1, Integer.MAX_VALUE);
+			GetOptions.IntegerHandler shardArg =
+				new GetOptions.IntegerHandler(0, 0, 0xffff);
+			GetOptions.IntegerHandler shardsArg =
+				new GetOptions.IntegerHandler(1, 1, 0x10000);
 			GetOptions getopts = new GetOptions();
 			getopts.addOption("-", vec, GetOptions.TakesArg.REQ);
+			getopts.addOption("q", quietArg, GetOptions.TakesArg.NO);
 			getopts.addOption("p", portArg, GetOptions.TakesArg.REQ);
 			getopts.addOption("n", sizeArg, GetOptions.TakesArg.REQ);
+			getopts.addOption("s", speculateArg, GetOptions.TakesArg.REQ);
 			getopts.addAlias("port", "p");
+			getopts.addOption("cache-entries", cacheEntriesArg,
+			                  GetOptions.TakesArg.REQ);
+			getopts.addOption("cache-size", cacheSizeArg,
+			                  GetOptions.TakesArg.REQ);
+			getopts.addAlias("speculate", "s");
+			getopts.addOption("shard", shardArg, GetOptions.TakesArg.REQ);
+			getopts.addOption("shards", shardsArg, GetOptions.TakesArg.REQ);
+			getopts.addAlias("quiet", "q");
+			getopts.addOption("j", jobArg, GetOptions.TakesArg.REQ);
+			getopts.addAlias("job", "j");
+			getopts.addOption("archive", archiveArg, GetOptions.TakesArg.REQ);
+			getopts.addOption("segment-size", segmentArg,
+			                  GetOptions.TakesArg.REQ);
+			getopts.addOption("max-calls", maxCallsArg, GetOptions.TakesArg.REQ);
+			getopts.addOption("spill", spillArg, GetOptions.TakesArg.REQ);
+			getopts.addOption("spill-after", spillAfterArg,
+			                  GetOptions.TakesArg.REQ);
 			getopts.parseArguments(args, 1);
+			archiveDir = archiveArg.value;
+			segmentSize = (long)segmentArg.value << 20;
+			spillDir = spillArg.value;
+			spillAfter = spillAfterArg.value;
 			serviceName = vec.get(0, DC.defaultServiceName);
 			port = portArg.value;
 			defaultSize = sizeArg.value;
+			verbose = !quietArg.value;
+			if (shardArg.value >= shardsArg.value) {
+				throw new GetOptions.InvalidValue("shard", "" + shardArg.value,
+				                                  "must be less then shards");
+			}
+			tracker = new TaskTracker(speculateArg.value, shardArg.value,
+			                          shardsArg.value);
+			cache = new ResultCache(cacheEntriesArg.value,
+			                        cacheSizeArg.value * 1024L);
+			admission = new AdmissionControl(maxCallsArg.value);
+			scheduler = new JobScheduler(tracker);
+			if (jobArg.vector.isEmpty()) {
+				jobArg.vector.add("random");
+			}
+			for (String spec : jobArg.vector) {
+				addJob(spec);
+			}
 		}
 		catch (GetOptions.Exception e) {
 			System.err.println(e.getFullMessage());
@@ -132,6 +602,49 @@ public final class Server implements ServerInterface, DC.Application {
 
 		checkInterrupt();
 
+		if (archiveDir != null) {
+			System.out.print("Opening result archive... ");
+			try {
+				archive = new ResultArchive(new File(archiveDir), segmentSize);
+				System.out.print("done (" + archive.getResults() +
+				                 " results).\n");
+			}
+			catch (IOException e) { catchException(e); }
+		}
+
+		if (spillDir != null) {
+			System.out.print("Opening spill directory... ");
+			try {
+				migrated = new SpillQueue(new File(spillDir), spillAfter);
+				System.out.print("done (" + migrated.onDisk() + " tasks).\n");
+			}
+			catch (IOException e) { catchException(e); }
+		}
+		stats = new ServerStats(tracker, cache, admission, migrated);
+
+		checkInterrupt();
+
+		System.out.print("Registering management bean... ");
+		try {
+			ManagementFactory.getPlatformMBeanServer().registerMBean(
+				stats, new ObjectName("com.mina86.dc:type=Server"));
+			for (JobScheduler.Entry e : scheduler.entries()) {
+				ManagementFactory.getPlatformMBeanServer().registerMBean(
+					e, new ObjectName("com.mina86.dc:type=Job,name=" +
+					                  ObjectName.quote(e.getName())));
+			}
+			ManagementFactory.getPlatformMBeanServer().registerMBean(
+				accounting, new ObjectName("com.mina86.dc:type=Accounting"));
+			if (archive != null) {
+				ManagementFactory.getPlatformMBeanServer().registerMBean(
+					archive, new ObjectName("com.mina86.dc:type=Archive"));
+			}
+			System.out.print("done.\n");
+		}
+		catch (Exception e) { catchException(e, false); }
+
+		checkInterrupt();
+
 		System.out.print("Getting registry... ");
 		try { registry = LocateRegistry.getRegistry(port); }
 		catch (RemoteException e) { catchException(e); }
@@ -187,6 +700,34 @@ public final class Server implements ServerInterface, DC.Application {
 		catch (RemoteException e) { catchException(e); }
 		catch (NotBoundException e) { }
 		System.out.print("done.\n");
+
+		if (archive != null) {
+			System.out.print("Closing result archive... ");
+			archive.close();
+			System.out.print("done (" + archive.getResults() + " results in " +
+			                 archive.getSegments() + " segments).\n");
+		}
+
+		if (spillDir != null) {
+			System.out.print("Spilling migrated tasks... ");
+			migrated.close();
+			System.out.print("done (" + migrated.onDisk() + " tasks).\n");
+		}
+
+		if (cache.enabled()) {
+			System.out.println("Result cache: " + cache.hits() + " hits, " +
+			                   cache.misses() + " misses, " +
+			                   cache.evictions() + " evictions, " +
+			                   cache.entries() + " entries, " +
+			                   cache.bytes() + " bytes.");
+		}
+		accounting.print(System.out);
+		for (JobScheduler.Entry e : scheduler.entries()) {
+			System.out.println("Job " + e.getName() + ": " +
+			                   e.getTasksIssued() + " issued, " +
+			                   e.getTasksCompleted() + " completed" +
+			                   (e.isDone() ? ", done." : "."));
+		}
 		System.exit(0);
 	}
 
@@ -0,0 +1,143 @@
+/*
+ * Copyright 2008-2009 by Michal Nazarewicz (mina86/AT/mina86.com)
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mina86.dc.server;
+
+import java.rmi.server.RemoteServer;
+import java.rmi.server.ServerNotActiveException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import com.mina86.util.Meter;
+import com.mina86.util.TimeCounter;
+
+
+/**
+ * Server's operational metrics.  Counters are updated from RMI
+ * threads on each call so they are all striped and cheap to update;
+ * anything more expensive is calculated only when metrics are read.
+ */
+final class ServerStats implements ServerStatsMXBean {
+	/** For how long a client host is considered connected in nanoseconds. */
+	private static final long clientTimeout = 5 * 60 * 1000000000L;
+
+
+	/** Tasks issued. */
+	final Meter issued = new Meter();
+	/** Results accepted. */
+	final Meter completed = new Meter();
+	/** Speculative copies issued. */
+	final LongAdder speculative = new LongAdder();
+	/** Unfinished tasks returned by clients. */
+	final LongAdder migrated = new LongAdder();
+	/** Results dropped. */
+	final LongAdder dropped = new LongAdder();
+	/** Time spent in getTask(). */
+	final TimeCounter getTask = new TimeCounter();
+	/** Time spent in sendResult(). */
+	final TimeCounter sendResult = new TimeCounter();
+	/** Time spent in returnTask(). */
+	final TimeCounter returnTask = new TimeCounter();
+
+	/** Tracker of tasks in flight. */
+	private final TaskTracker tracker;
+	/** Result cache. */
+	private final ResultCache cache;
+	/** Admission control. */
+	private final AdmissionControl admission;
+	/** Queue of migrated tasks. */
+	private final SpillQueue migratedQueue;
+	/** Client hosts with time they were last seen. */
+	private final ConcurrentHashMap<String, Long> clients =
+		new ConcurrentHashMap<String, Long>();
+
+
+	/**
+	 * Constructs object.
+	 * \param theTracker tracker of tasks in flight.
+	 * \param theCache   result cache.
+	 * \param theAdmission admission control.
+	 * \param theMigrated  queue of migrated tasks.
+	 */
+	ServerStats(TaskTracker theTracker, ResultCache theCache,
+	            AdmissionControl theAdmission, SpillQueue theMigrated) {
+		tracker = theTracker;
+		cache = theCache;
+		admission = theAdmission;
+		migratedQueue = theMigrated;
+	}
+
+
+	/**
+	 * Records that a client called the server.  Must be called from
+	 * an RMI thread, otherwise does nothing.
+	 */
+	void clientSeen() {
+		try { clients.put(RemoteServer.getClientHost(), System.nanoTime()); }
+		catch (ServerNotActiveException e) { /* ignore */ }
+	}
+
+
+	public long getTasksIssued() { return issued.count(); }
+	public double getTasksIssuedPerSecond() { return issued.rate(); }
+	public long getTasksCompleted() { return completed.count(); }
+	public double getTasksCompletedPerSecond() { return completed.rate(); }
+	public long getSpeculativeCopies() { return speculative.sum(); }
+	public long getResultsDropped() { return dropped.sum(); }
+	public long getTasksMigrated() { return migrated.sum(); }
+	public long getMigratedWaiting() { return migratedQueue.size(); }
+	public long getMigratedOnDisk() { return migratedQueue.onDisk(); }
+	public long getMigratedSpilled() { return migratedQueue.spilled(); }
+
+	public int getInFlight() { return tracker.inFlight(); }
+	public Map<Integer, Integer> getInFlightBySize() {
+		return tracker.inFlightBySize();
+	}
+
+	public long getGetTaskCalls() { return getTask.count(); }
+	public long getGetTaskMeanLatency() { return getTask.mean() / 1000; }
+	public long getGetTaskMaxLatency() { return getTask.max() / 1000; }
+	public long getSendResultCalls() { return sendResult.count(); }
+	public long getSendResultMeanLatency() { return sendResult.mean() / 1000; }
+	public long getSendResultMaxLatency() { return sendResult.max() / 1000; }
+	public long getReturnTaskCalls() { return returnTask.count(); }
+	public long getReturnTaskMeanLatency() { return returnTask.mean() / 1000; }
+	public long getReturnTaskMaxLatency() { return returnTask.max() / 1000; }
+
+	public int getCallsInProgress() { return admission.inProgress(); }
+	public long getCallsRejected() { return admission.rejected.count(); }
+	public double getCallsRejectedPerSecond() { return admission.rejected.rate(); }
+	public long getRetryAfter() { return admission.retryAfter(); }
+
+	public int getConnectedClients() {
+		long now = System.nanoTime();
+		Iterator<Long> it = clients.values().iterator();
+		while (it.hasNext()) {
+			if (now - it.next() > clientTimeout) {
+				it.remove();
+			}
+		}
+		return clients.size();
+	}
+
+	public long getCacheHits() { return cache.hits(); }
+	public long getCacheMisses() { return cache.misses(); }
+	public long getCacheEvictions() { return cache.evictions(); }
+	public int getCacheEntries() { return cache.entries(); }
+	public long getCacheBytes() { return cache.bytes(); }
+}
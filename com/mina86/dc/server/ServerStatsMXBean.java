@@ -0,0 +1,97 @@
+/*
+ * Copyright 2008-2009 by Michal Nazarewicz (mina86/AT/mina86.com)
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mina86.dc.server;
+
+import java.util.Map;
+
+
+/**
+ * Management interface exposing server's operational metrics.  It is
+ * registered in platform MBean server under
+ * <tt>com.mina86.dc:type=Server</tt> name.  All times are in
+ * microseconds.
+ */
+public interface ServerStatsMXBean {
+	/** Returns number of tasks issued. */
+	public long getTasksIssued();
+	/** Returns number of tasks issued per second. */
+	public double getTasksIssuedPerSecond();
+	/** Returns number of results accepted. */
+	public long getTasksCompleted();
+	/** Returns number of results accepted per second. */
+	public double getTasksCompletedPerSecond();
+	/** Returns number of speculative copies of tasks issued. */
+	public long getSpeculativeCopies();
+	/** Returns number of results dropped (late or invalid). */
+	public long getResultsDropped();
+	/** Returns number of unfinished tasks returned by clients. */
+	public long getTasksMigrated();
+	/** Returns number of migrated tasks waiting to be handed out. */
+	public long getMigratedWaiting();
+	/** Returns number of migrated tasks waiting on disk. */
+	public long getMigratedOnDisk();
+	/** Returns number of migrated tasks ever spilled to disk. */
+	public long getMigratedSpilled();
+
+	/** Returns number of tasks in flight. */
+	public int getInFlight();
+	/** Returns number of tasks in flight indexed by task size. */
+	public Map<Integer, Integer> getInFlightBySize();
+
+	/** Returns number of getTask() calls. */
+	public long getGetTaskCalls();
+	/** Returns average getTask() latency. */
+	public long getGetTaskMeanLatency();
+	/** Returns maximal getTask() latency. */
+	public long getGetTaskMaxLatency();
+	/** Returns number of sendResult() calls. */
+	public long getSendResultCalls();
+	/** Returns average sendResult() latency. */
+	public long getSendResultMeanLatency();
+	/** Returns maximal sendResult() latency. */
+	public long getSendResultMaxLatency();
+	/** Returns number of returnTask() calls. */
+	public long getReturnTaskCalls();
+	/** Returns average returnTask() latency. */
+	public long getReturnTaskMeanLatency();
+	/** Returns maximal returnTask() latency. */
+	public long getReturnTaskMaxLatency();
+
+	/** Returns number of calls being handled. */
+	public int getCallsInProgress();
+	/** Returns number of calls rejected because server was busy. */
+	public long getCallsRejected();
+	/** Returns number of calls rejected per second. */
+	public double getCallsRejectedPerSecond();
+	/** Returns retry hint busy clients would get now in miliseconds. */
+	public long getRetryAfter();
+
+	/** Returns number of client hosts seen in the last five minutes. */
+	public int getConnectedClients();
+
+	/** Returns number of result cache hits. */
+	public long getCacheHits();
+	/** Returns number of result cache misses. */
+	public long getCacheMisses();
+	/** Returns number of entries evicted from result cache. */
+	public long getCacheEvictions();
+	/** Returns number of entries in result cache. */
+	public int getCacheEntries();
+	/** Returns number of bytes used by result cache. */
+	public long getCacheBytes();
+}
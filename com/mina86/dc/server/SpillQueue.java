@@ -0,0 +1,462 @@
+/*
+ * Copyright 2008-2009 by Michal Nazarewicz (mina86/AT/mina86.com)
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.mina86.dc.server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.zip.CRC32;
+import com.mina86.dc.common.Task;
+
+
+/**
+ * A queue of tasks which spills to disk.  Tasks are kept in memory
+ * for as long as the total size of queued tasks (in elements) stays
+ * below a high watermark.  Past it, tasks are appended to sequential
+ * segment files instead and, once there is anything on disk, all new
+ * tasks go there so that the ones spilled first are not starved.
+ *
+ * When the number of elements in memory drops below half of the
+ * watermark, tasks are read back from disk in a background thread in
+ * a batch which fills memory up to the watermark again.  take() only
+ * ever looks at tasks in memory so it never waits for disk.
+ *
+ * Each record consists of length of serialized task and CRC32 of it
+ * followed by the serialized task.  Segments found in the directory
+ * when queue is created are queued in front of new tasks; reading of
+ * a segment stops at the first damaged record.
+ */
+final class SpillQueue {
+	/** Size after which a segment is closed and a new one started. */
+	private static final long segmentSize = 16L << 20;
+	/** Segment file name prefix. */
+	private static final String prefix = "spill-";
+	/** Segment file name suffix. */
+	private static final String suffix = ".seg";
+	/** Maximal length of a record, longer ones are considered damaged. */
+	private static final int maxRecord = 1 << 30;
+
+
+	/** Spill directory or \c null if queue never spills. */
+	private final File dir;
+	/** Maximal number of elements of tasks kept in memory. */
+	private final long highWatermark;
+
+	/** Tasks in memory. */
+	private final ArrayDeque<Task> tasks = new ArrayDeque<Task>();
+	/** Number of elements of tasks in memory. */
+	private long elements = 0;
+	/** Whether tasks are being read back from disk. */
+	private boolean prefetching = false;
+	/** Number of tasks on disk. */
+	private volatile long onDisk = 0;
+	/** Number of tasks ever spilled to disk. */
+	private volatile long spilled = 0;
+
+	/** Lock guarding the files; never held together with queue's lock. */
+	private final Object disk = new Object();
+	/** Closed segments in order they were written. */
+	private final ArrayDeque<File> segments = new ArrayDeque<File>();
+	/** Number of the next segment. */
+	private int nextSegment = 0;
+	/** Segment being written or \c null. */
+	private File writeFile = null;
+	/** Stream writing current segment. */
+	private DataOutputStream out = null;
+	/** Number of bytes written to current segment. */
+	private long written = 0;
+	/** Segment being read or \c null. */
+	private File readFile = null;
+	/** Stream reading current segment. */
+	private DataInputStream in = null;
+	/** Timer running reads from disk. */
+	private Timer timer = null;
+
+
+	/**
+	 * Constructs a queue which never spills.
+	 */
+	SpillQueue() {
+		dir = null;
+		highWatermark = Long.MAX_VALUE;
+	}
+
+	/**
+	 * Constructs a queue spilling to given directory creating it if
+	 * needed.  Segments already in the directory are queued.
+	 * \param theDir           spill directory.
+	 * \param theHighWatermark maximal number of elements of tasks
+	 *                         kept in memory.
+	 * \throw IOException if directory could not be created or read.
+	 */
+	SpillQueue(File theDir, long theHighWatermark) throws IOException {
+		dir = theDir;
+		highWatermark = theHighWatermark;
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("could not create " + dir);
+		}
+
+		String names[] = dir.list();
+		if (names == null) {
+			throw new IOException("could not list " + dir);
+		}
+		Arrays.sort(names);
+		for (String name : names) {
+			if (!name.startsWith(prefix) || !name.endsWith(suffix)) {
+				continue;
+			}
+			int number;
+			try {
+				number = Integer.parseInt(name.substring(prefix.length(),
+				                                         name.length() - suffix.length()));
+			}
+			catch (NumberFormatException e) {
+				continue;
+			}
+			File file = new File(dir, name);
+			onDisk += count(file);
+			segments.add(file);
+			nextSegment = Math.max(nextSegment, number + 1);
+		}
+
+		synchronized (this) {
+			timer = new Timer("spill", true);
+			schedulePrefetch();
+		}
+	}
+
+
+	/** Returns number of tasks in the queue. */
+	synchronized long size() {
+		return tasks.size() + onDisk;
+	}
+
+	/** Returns number of tasks on disk. */
+	long onDisk() {
+		return onDisk;
+	}
+
+	/** Returns number of tasks ever spilled to disk. */
+	long spilled() {
+		return spilled;
+	}
+
+
+	/**
+	 * Adds a task to the queue.  If task could not be written to disk
+	 * it is kept in memory.
+	 * \param t task to add.
+	 */
+	void add(Task t) {
+		synchronized (this) {
+			if (dir == null || tasks.isEmpty() ||
+			    (onDisk == 0 && !prefetching &&
+			     elements + t.size() <= highWatermark)) {
+				tasks.add(t);
+				elements += t.size();
+				return;
+			}
+		}
+
+		try {
+			write(t);
+			return;
+		}
+		catch (IOException e) {
+			System.out.println("Spilling task " + t.id() + "... failed.\n" +
+			                   e.toString());
+		}
+		synchronized (this) {
+			tasks.add(t);
+			elements += t.size();
+		}
+	}
+
+	/**
+	 * Takes a task in memory which size is nearest \a n.  Starts
+	 * reading tasks back from disk if there are few left in memory.
+	 * \param n desired task's size.
+	 * \return a task or \c null if there are no tasks in memory.
+	 */
+	synchronized Task take(int n) {
+		Task best = null;
+		for (Task t : tasks) {
+			if (best == null ||
+			    Math.abs(t.size() - n) < Math.abs(best.size() - n)) {
+				best = t;
+				if (t.size() == n) break;
+			}
+		}
+		if (best != null) {
+			tasks.remove(best);
+			elements -= best.size();
+		}
+		schedulePrefetch();
+		return best;
+	}
+
+
+	/**
+	 * Writes tasks in memory to disk and closes current segment so
+	 * that all tasks are picked up when queue is created again.  If
+	 * queue never spills, tasks are lost.
+	 */
+	void close() {
+		ArrayList<Task> left;
+		synchronized (this) {
+			if (timer == null) {
+				return;
+			}
+			timer.cancel();
+			left = new ArrayList<Task>(tasks);
+			tasks.clear();
+			elements = 0;
+		}
+		synchronized (disk) {
+			try {
+				/* Records already read from current segment must not
+				 * be read again so the rest of it is copied. */
+				if (in != null) {
+					for (Task t; (t = read(in)) != null; --onDisk) {
+						left.add(t);
+					}
+					in.close();
+					in = null;
+					readFile.delete();
+					readFile = null;
+				}
+				for (Task t : left) {
+					write(t);
+				}
+				seal();
+			}
+			catch (IOException e) {
+				System.out.println("Spilling tasks... failed.\n" +
+				                   e.toString());
+			}
+		}
+	}
+
+
+	/**
+	 * Schedules reading tasks from disk if there are tasks on disk,
+	 * few in memory and reading is not in progress already.  Lock
+	 * must be held.
+	 */
+	private void schedulePrefetch() {
+		if (onDisk == 0 || prefetching || timer == null ||
+		    elements * 2 >= highWatermark) {
+			return;
+		}
+		prefetching = true;
+		timer.schedule(new TimerTask() {
+			public void run() {
+				prefetch();
+			}
+		}, 0);
+	}
+
+	/** Reads a batch of tasks from disk into memory. */
+	private void prefetch() {
+		long room;
+		synchronized (this) {
+			room = highWatermark - elements;
+		}
+
+		ArrayList<Task> batch = new ArrayList<Task>();
+		synchronized (disk) {
+			try {
+				for (Task t; (room > 0 || batch.isEmpty()) &&
+				             (t = readNext()) != null; ) {
+					batch.add(t);
+					room -= t.size();
+				}
+			}
+			catch (IOException e) {
+				System.out.println("Reading spilled tasks... failed.\n" +
+				                   e.toString());
+			}
+		}
+
+		synchronized (this) {
+			for (Task t : batch) {
+				tasks.add(t);
+				elements += t.size();
+			}
+			prefetching = false;
+			if (!batch.isEmpty()) {
+				schedulePrefetch();
+			}
+		}
+	}
+
+
+	/**
+	 * Appends a task to current segment starting a new one if needed.
+	 * \param t task to write.
+	 * \throw IOException if task could not be written.
+	 */
+	private void write(Task t) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ObjectOutputStream oos = new ObjectOutputStream(bytes);
+		oos.writeObject(t);
+		oos.close();
+		byte data[] = bytes.toByteArray();
+		CRC32 crc = new CRC32();
+		crc.update(data);
+
+		synchronized (disk) {
+			if (out == null) {
+				writeFile = new File(dir, String.format("%s%08d%s", prefix,
+				                                        nextSegment++, suffix));
+				out = new DataOutputStream(new BufferedOutputStream(
+					new FileOutputStream(writeFile), 1 << 16));
+				written = 0;
+			}
+			out.writeInt(data.length);
+			out.writeInt((int)crc.getValue());
+			out.write(data);
+			written += 8 + data.length;
+			++onDisk;
+			++spilled;
+			if (written >= segmentSize) {
+				seal();
+			}
+		}
+	}
+
+	/**
+	 * Closes current segment and queues it for reading.  Does nothing
+	 * if no segment is being written.  Disk lock must be held.
+	 * \throw IOException if segment could not be closed.
+	 */
+	private void seal() throws IOException {
+		if (out != null) {
+			out.close();
+			out = null;
+			segments.add(writeFile);
+			writeFile = null;
+		}
+	}
+
+	/**
+	 * Reads the next task from disk closing current segment if there
+	 * are no closed ones left.  Disk lock must be held.
+	 * \return a task or \c null if there are no tasks on disk.
+	 * \throw IOException if a segment could not be opened.
+	 */
+	private Task readNext() throws IOException {
+		for (;;) {
+			if (in == null) {
+				if (segments.isEmpty()) {
+					seal();
+				}
+				if (segments.isEmpty()) {
+					onDisk = 0;
+					return null;
+				}
+				readFile = segments.poll();
+				in = new DataInputStream(new BufferedInputStream(
+					new FileInputStream(readFile), 1 << 16));
+			}
+
+			Task t = read(in);
+			if (t != null) {
+				if (onDisk > 0) --onDisk;
+				return t;
+			}
+			in.close();
+			in = null;
+			readFile.delete();
+			readFile = null;
+		}
+	}
+
+	/**
+	 * Reads a record.
+	 * \param in stream to read from.
+	 * \return a task or \c null at the end of the stream or at
+	 *         a damaged record.
+	 */
+	private static Task read(DataInputStream in) {
+		try {
+			int length = in.readInt(), checksum = in.readInt();
+			if (length < 0 || length > maxRecord) {
+				return null;
+			}
+			byte data[] = new byte[length];
+			in.readFully(data);
+			CRC32 crc = new CRC32();
+			crc.update(data);
+			if ((int)crc.getValue() != checksum) {
+				return null;
+			}
+			return (Task)new ObjectInputStream(
+				new ByteArrayInputStream(data)).readObject();
+		}
+		catch (Exception e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Counts records in a segment without deserializing them.
+	 * \param file segment to scan.
+	 * \throw IOException if file could not be read.
+	 */
+	private static long count(File file) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(
+			new FileInputStream(file), 1 << 16));
+		long count = 0, left = file.length();
+		try {
+			for (;;) {
+				int length = in.readInt();
+				if (length < 0 || length > maxRecord || left - 8 < length) {
+					break;
+				}
+				in.readInt();
+				in.skipNBytes(length);
+				left -= 8 + length;
+				++count;
+			}
+		}
+		catch (EOFException e) {
+			/* End of segment. */
+		}
+		finally {
+			in.close();
+		}
+		return count;
+	}
+}
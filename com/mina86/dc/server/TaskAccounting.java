@@ -0,0 +1,204 @@
+/*
+ * Copyright 2008-2009 by Michal Nazarewicz (mina86/AT/mina86.com)
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.mina86.dc.server;
+
+import java.io.PrintStream;
+import java.rmi.server.RemoteServer;
+import java.rmi.server.ServerNotActiveException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import com.mina86.dc.common.Task;
+
+
+/**
+ * Aggregates CPU time, wall-clock time, iterations and checkpoint
+ * overhead reported with results per client host and per task size.
+ * Comparing CPU and wall-clock time shows hosts on which clients are
+ * descheduled (ie. oversubscribed) and per size figures show how
+ * work scales with task's size.
+ */
+final class TaskAccounting implements TaskAccountingMXBean {
+	/** Totals of a group of results. */
+	private static final class Totals {
+		/** Number of results. */
+		long results = 0;
+		/** Wall-clock time in nanoseconds. */
+		long wall = 0;
+		/** CPU time in nanoseconds. */
+		long cpu = 0;
+		/** Wall-clock time of results with known CPU time. */
+		long cpuWall = 0;
+		/** Number of iterations. */
+		long iterations = 0;
+		/** Checkpoint time in nanoseconds. */
+		long checkpoint = 0;
+
+		/**
+		 * Adds a result.
+		 * \param t the result.
+		 */
+		void add(Task t) {
+			++results;
+			wall += t.wallTime();
+			if (t.cpuTime() != 0) {
+				cpu += t.cpuTime();
+				cpuWall += t.wallTime();
+			}
+			iterations += t.iterations();
+			checkpoint += t.checkpointTime();
+		}
+
+		/** Returns ratio of CPU time to wall-clock time. */
+		double cpuShare() {
+			return cpuWall == 0 ? 0 : (double)cpu / cpuWall;
+		}
+
+		/** Returns ratio of checkpoint time to wall-clock time. */
+		double checkpointShare() {
+			return wall == 0 ? 0 : (double)checkpoint / wall;
+		}
+
+		/**
+		 * Returns mean of a value per result.
+		 * \param total sum of the value.
+		 */
+		long mean(long total) {
+			return results == 0 ? 0 : total / results;
+		}
+	}
+
+
+	/** Totals indexed by client host. */
+	private final HashMap<String, Totals> byClient =
+		new HashMap<String, Totals>();
+	/** Totals indexed by task size. */
+	private final TreeMap<Integer, Totals> bySize =
+		new TreeMap<Integer, Totals>();
+
+
+	/**
+	 * Records figures reported with a result.  Must be called from an
+	 * RMI thread for the result to be attributed to client host.
+	 * \param t the result.
+	 */
+	void record(Task t) {
+		String host;
+		try { host = RemoteServer.getClientHost(); }
+		catch (ServerNotActiveException e) { host = "local"; }
+
+		synchronized (this) {
+			Totals totals = byClient.get(host);
+			if (totals == null) {
+				totals = new Totals();
+				byClient.put(host, totals);
+			}
+			totals.add(t);
+
+			totals = bySize.get(t.size());
+			if (totals == null) {
+				totals = new Totals();
+				bySize.put(t.size(), totals);
+			}
+			totals.add(t);
+		}
+	}
+
+
+	public synchronized Map<String, Long> getResultsByClient() {
+		TreeMap<String, Long> map = new TreeMap<String, Long>();
+		for (Map.Entry<String, Totals> e : byClient.entrySet()) {
+			map.put(e.getKey(), e.getValue().results);
+		}
+		return map;
+	}
+
+	public synchronized Map<String, Double> getCpuShareByClient() {
+		TreeMap<String, Double> map = new TreeMap<String, Double>();
+		for (Map.Entry<String, Totals> e : byClient.entrySet()) {
+			map.put(e.getKey(), e.getValue().cpuShare());
+		}
+		return map;
+	}
+
+	public synchronized Map<String, Double> getCheckpointShareByClient() {
+		TreeMap<String, Double> map = new TreeMap<String, Double>();
+		for (Map.Entry<String, Totals> e : byClient.entrySet()) {
+			map.put(e.getKey(), e.getValue().checkpointShare());
+		}
+		return map;
+	}
+
+	public synchronized Map<Integer, Long> getResultsBySize() {
+		TreeMap<Integer, Long> map = new TreeMap<Integer, Long>();
+		for (Map.Entry<Integer, Totals> e : bySize.entrySet()) {
+			map.put(e.getKey(), e.getValue().results);
+		}
+		return map;
+	}
+
+	public synchronized Map<Integer, Long> getMeanWallTimeBySize() {
+		TreeMap<Integer, Long> map = new TreeMap<Integer, Long>();
+		for (Map.Entry<Integer, Totals> e : bySize.entrySet()) {
+			map.put(e.getKey(), e.getValue().mean(e.getValue().wall) / 1000);
+		}
+		return map;
+	}
+
+	public synchronized Map<Integer, Long> getMeanCpuTimeBySize() {
+		TreeMap<Integer, Long> map = new TreeMap<Integer, Long>();
+		for (Map.Entry<Integer, Totals> e : bySize.entrySet()) {
+			map.put(e.getKey(), e.getValue().mean(e.getValue().cpu) / 1000);
+		}
+		return map;
+	}
+
+	public synchronized Map<Integer, Long> getMeanIterationsBySize() {
+		TreeMap<Integer, Long> map = new TreeMap<Integer, Long>();
+		for (Map.Entry<Integer, Totals> e : bySize.entrySet()) {
+			map.put(e.getKey(), e.getValue().mean(e.getValue().iterations));
+		}
+		return map;
+	}
+
+	public synchronized Map<Integer, Long> getMeanCheckpointTimeBySize() {
+		TreeMap<Integer, Long> map = new TreeMap<Integer, Long>();
+		for (Map.Entry<Integer, Totals> e : bySize.entrySet()) {
+			map.put(e.getKey(),
+			        e.getValue().mean(e.getValue().checkpoint) / 1000);
+		}
+		return map;
+	}
+
+
+	/**
+	 * Prints summary per client host.
+	 * \param out stream to print to.
+	 */
+	synchronized void print(PrintStream out) {
+		for (Map.Entry<String, Totals> e :
+			     new TreeMap<String, Totals>(byClient).entrySet()) {
+			Totals t = e.getValue();
+			out.println(String.format(
+				"Client %s: %d results, %.3f s wall, %.3f s CPU (%.0f%%), " +
+				"%.3f s checkpoints.", e.getKey(), t.results, t.wall / 1e9,
+				t.cpu / 1e9, t.cpuShare() * 100, t.checkpoint / 1e9));
+		}
+	}
+}
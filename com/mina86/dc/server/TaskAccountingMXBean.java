@@ -0,0 +1,51 @@
+/*
+ * Copyright 2008-2009 by Michal Nazarewicz (mina86/AT/mina86.com)
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.mina86.dc.server;
+
+import java.util.Map;
+
+
+/**
+ * Management interface exposing how clients spend time on tasks as
+ * reported with results.  It is registered in platform MBean server
+ * under <tt>com.mina86.dc:type=Accounting</tt> name.  Times are in
+ * microseconds.
+ */
+public interface TaskAccountingMXBean {
+	/** Returns number of results indexed by client host. */
+	public Map<String, Long> getResultsByClient();
+	/**
+	 * Returns ratio of CPU time to wall-clock time indexed by client
+	 * host.  Values well below one mean host is oversubscribed.
+	 */
+	public Map<String, Double> getCpuShareByClient();
+	/** Returns ratio of checkpoint time to wall-clock time by host. */
+	public Map<String, Double> getCheckpointShareByClient();
+
+	/** Returns number of results indexed by task size. */
+	public Map<Integer, Long> getResultsBySize();
+	/** Returns mean wall-clock time of a task indexed by task size. */
+	public Map<Integer, Long> getMeanWallTimeBySize();
+	/** Returns mean CPU time of a task indexed by task size. */
+	public Map<Integer, Long> getMeanCpuTimeBySize();
+	/** Returns mean number of iterations indexed by task size. */
+	public Map<Integer, Long> getMeanIterationsBySize();
+	/** Returns mean checkpoint time of a task indexed by task size. */
+	public Map<Integer, Long> getMeanCheckpointTimeBySize();
+}
@@ -0,0 +1,302 @@
+/*
+ * Copyright 2008-2009 by Michal Nazarewicz (mina86/AT/mina86.com)
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.mina86.dc.server;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+
+/**
+ * Records of tasks in flight kept in a ring buffer outside of Java
+ * heap.  Each record has a fixed size and holds task's identifier,
+ * size, job number, number of copies and issue times, which is all
+ * that is needed to track a task and to recreate it if it has to be
+ * issued again.  Records are appended at the tail and removed from
+ * anywhere; a removed record leaves a hole which is skipped once it
+ * reaches the head.
+ *
+ * When the tail catches up with the head the ring is compacted, ie.
+ * live records are moved over the holes keeping their order, so a
+ * single long running task at the head does not limit how many
+ * tasks can be issued after it.  If most of the records are live the
+ * ring is doubled instead.  Records are never dropped.
+ *
+ * Records are looked up by identifier with an open addressing hash
+ * table made of two primitive arrays so neither structure allocates
+ * anything unless the ring has to grow.  The arrays are on Java heap
+ * and have twice as many buckets as the ring has records, ie. the
+ * index takes 24 bytes of heap per record of capacity and is
+ * reallocated whenever the ring doubles.
+ *
+ * The class is not thread safe.
+ */
+final class TaskRing {
+	/** Offset of task's identifier in a record. */
+	private static final int ID = 0;
+	/** Offset of time task was first issued in a record. */
+	private static final int ISSUED = 8;
+	/** Offset of time task was last issued in a record. */
+	private static final int LAST_ISSUED = 16;
+	/** Offset of task's size in a record. */
+	private static final int SIZE = 24;
+	/** Offset of job's number in a record. */
+	private static final int JOB = 28;
+	/** Offset of number of copies in a record; zero marks a hole. */
+	private static final int COPIES = 30;
+	/** Size of a record. */
+	private static final int recordSize = 32;
+
+
+	/** Records. */
+	private ByteBuffer records;
+	/** Capacity minus one, capacity is a power of two. */
+	private int mask;
+	/** Sequence number of the first record. */
+	private long head = 0;
+	/** Sequence number of the next record to append. */
+	private long tail = 0;
+	/** Number of records which are not holes. */
+	private int size = 0;
+
+	/** Keys of the index, zero marks an empty bucket. */
+	private long keys[];
+	/** Slots of the records indexed by the keys. */
+	private int slots[];
+
+
+	/**
+	 * Constructs object.
+	 * \param capacity initial number of records, rounded up to a power
+	 *                 of two.
+	 */
+	TaskRing(int capacity) {
+		int cap = Integer.highestOneBit(Math.max(capacity - 1, 1)) << 1;
+		mask = cap - 1;
+		records = ByteBuffer.allocateDirect(cap * recordSize)
+			.order(ByteOrder.nativeOrder());
+		keys = new long[cap * 2];
+		slots = new int[cap * 2];
+	}
+
+
+	/** Returns number of records. */
+	int size() {
+		return size;
+	}
+
+	/** Returns slot of the first record or -1 if there are none. */
+	int first() {
+		return head == tail ? -1 : (int)head & mask;
+	}
+
+	/**
+	 * Returns slot of record following given one or -1.
+	 * \param slot slot of a record which is not a hole.
+	 */
+	int next(int slot) {
+		long seq = head + ((slot - (int)head) & mask);
+		while (++seq < tail) {
+			if (records.getShort(((int)seq & mask) * recordSize + COPIES) != 0) {
+				return (int)seq & mask;
+			}
+		}
+		return -1;
+	}
+
+
+	/**
+	 * Appends a record compacting or growing the ring if needed.
+	 * Slots returned earlier are invalidated if that happens.  Task
+	 * must not be in the ring already.
+	 * \param id   task's identifier, must not be zero.
+	 * \param size task's size.
+	 * \param job  job's number.
+	 * \param now  current time in nanoseconds.
+	 * \return record's slot.
+	 */
+	int add(long id, int size, int job, long now) {
+		if (tail - head > mask) {
+			int cap = mask + 1;
+			relayout(this.size >= cap / 4 * 3 ? cap * 2 : cap);
+		}
+
+		int slot = (int)tail++ & mask, base = slot * recordSize;
+		records.putLong(base + ID, id);
+		records.putLong(base + ISSUED, now);
+		records.putLong(base + LAST_ISSUED, now);
+		records.putInt(base + SIZE, size);
+		records.putShort(base + JOB, (short)job);
+		records.putShort(base + COPIES, (short)1);
+		++this.size;
+		insert(id, slot);
+		return slot;
+	}
+
+	/**
+	 * Moves live records over the holes keeping their order and
+	 * rebuilds the index.
+	 * \param cap new capacity, either the current one or bigger.
+	 */
+	private void relayout(int cap) {
+		ByteBuffer dst = records;
+		long seq = head;
+		if (cap != mask + 1) {
+			dst = ByteBuffer.allocateDirect(cap * recordSize)
+				.order(ByteOrder.nativeOrder());
+			seq = 0;
+			keys = new long[cap * 2];
+			slots = new int[cap * 2];
+		} else {
+			Arrays.fill(keys, 0);
+		}
+
+		long first = seq;
+		for (long s = head; s < tail; ++s) {
+			int src = ((int)s & mask) * recordSize;
+			if (records.getShort(src + COPIES) == 0) {
+				continue;
+			}
+			/* Destination never overtakes source so copying in order
+			 * is safe even within the same buffer. */
+			int slot = (int)seq++ & (cap - 1), base = slot * recordSize;
+			if (dst != records || base != src) {
+				for (int i = 0; i < recordSize; i += 8) {
+					dst.putLong(base + i, records.getLong(src + i));
+				}
+			}
+			insert(dst.getLong(base + ID), slot);
+		}
+
+		records = dst;
+		mask = cap - 1;
+		head = first;
+		tail = seq;
+	}
+
+	/**
+	 * Adds a key to the index.
+	 * \param id   task's identifier.
+	 * \param slot record's slot.
+	 */
+	private void insert(long id, int slot) {
+		int i = bucket(id);
+		while (keys[i] != 0) {
+			i = (i + 1) & (keys.length - 1);
+		}
+		keys[i] = id;
+		slots[i] = slot;
+	}
+
+	/**
+	 * Returns slot of task with given identifier or -1.
+	 * \param id task's identifier.
+	 */
+	int find(long id) {
+		if (id != 0) {
+			for (int i = bucket(id); keys[i] != 0; i = (i + 1) & (keys.length - 1)) {
+				if (keys[i] == id) {
+					return slots[i];
+				}
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Removes a record turning it into a hole.
+	 * \param slot record's slot.
+	 */
+	void remove(int slot) {
+		int base = slot * recordSize;
+		long id = records.getLong(base + ID);
+		records.putShort(base + COPIES, (short)0);
+		--size;
+
+		/* Remove key from the index shifting following keys back so
+		 * that no probe sequence is broken. */
+		int n = keys.length - 1, i = bucket(id);
+		while (keys[i] != id) {
+			i = (i + 1) & n;
+		}
+		for (int j = (i + 1) & n; keys[j] != 0; j = (j + 1) & n) {
+			int home = bucket(keys[j]);
+			if (((j - home) & n) >= ((j - i) & n)) {
+				keys[i] = keys[j];
+				slots[i] = slots[j];
+				i = j;
+			}
+		}
+		keys[i] = 0;
+
+		while (head < tail &&
+		       records.getShort(((int)head & mask) * recordSize + COPIES) == 0) {
+			++head;
+		}
+	}
+
+
+	/** Returns task's identifier.  \param slot record's slot. */
+	long id(int slot) { return records.getLong(slot * recordSize + ID); }
+	/** Returns when task was first issued.  \param slot record's slot. */
+	long issued(int slot) { return records.getLong(slot * recordSize + ISSUED); }
+	/** Returns when task was last issued.  \param slot record's slot. */
+	long lastIssued(int slot) {
+		return records.getLong(slot * recordSize + LAST_ISSUED);
+	}
+	/** Returns task's size.  \param slot record's slot. */
+	int taskSize(int slot) { return records.getInt(slot * recordSize + SIZE); }
+	/** Returns job's number.  \param slot record's slot. */
+	int job(int slot) { return records.getShort(slot * recordSize + JOB); }
+	/** Returns number of copies issued.  \param slot record's slot. */
+	int copies(int slot) { return records.getShort(slot * recordSize + COPIES); }
+
+	/**
+	 * Records that another copy of task was issued.
+	 * \param slot record's slot.
+	 * \param now  current time in nanoseconds.
+	 */
+	void reissued(int slot, long now) {
+		int base = slot * recordSize;
+		short copies = records.getShort(base + COPIES);
+		if (copies < Short.MAX_VALUE) {
+			records.putShort(base + COPIES, (short)(copies + 1));
+		}
+		records.putLong(base + LAST_ISSUED, now);
+	}
+
+	/**
+	 * Restarts task's straggler clock.
+	 * \param slot record's slot.
+	 * \param now  current time in nanoseconds.
+	 */
+	void touch(int slot, long now) {
+		records.putLong(slot * recordSize + LAST_ISSUED, now);
+	}
+
+
+	/**
+	 * Returns bucket identifier hashes to.
+	 * \param id the identifier.
+	 */
+	private int bucket(long id) {
+		long z = id * 0x9e3779b97f4a7c15L;
+		return (int)(z ^ (z >>> 32)) & (keys.length - 1);
+	}
+}
@@ -0,0 +1,362 @@
+/*
+ * Copyright 2008-2009 by Michal Nazarewicz (mina86/AT/mina86.com)
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mina86.dc.server;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import com.mina86.dc.common.Task;
+import com.mina86.dc.jobs.Job;
+
+
+/**
+ * Keeps track of tasks handed out to clients.  Each task gets an
+ * unique identifier when it is issued so that the result can be
+ * matched with it when it comes back.
+ *
+ * The tracker also learns how long tasks of each size take to come
+ * back (measured from the moment task was issued to the moment result
+ * arrived).  A task which has been out for much longer then that is
+ * considered a straggler and may be issued again to another client.
+ * The first result to come back wins, the other one is dropped.
+ * Completed tasks which had copies out are remembered until every copy
+ * comes back (as a result or returned unfinished) so a late copy is
+ * dropped no matter how many tasks completed in the meantime.  Only if
+ * an unusual number of copies is lost with their clients the oldest of
+ * them are forgotten.
+ *
+ * The number of speculative copies out at any given time (counting
+ * every extra copy of a task, not just tasks which have any) is
+ * limited to a configured percentage of tasks in flight (which is the
+ * number of clients busy calculating something).
+ *
+ * Tasks themselves are not kept.  Only fixed-size records of tasks in
+ * flight are stored outside of Java heap (see TaskRing) and a task
+ * issued again is recreated by its job so heap usage does not grow
+ * with task sizes.  It still grows with the number of tasks in flight
+ * though: ring's index is on heap and so are identifiers of recently
+ * completed tasks and whatever state jobs keep about their tasks.
+ */
+final class TaskTracker {
+	/** Initial number of tasks in flight there is room for. */
+	private static final int initialInFlight = 65536;
+	/** Number of recently completed tasks to remember. */
+	private static final int maxCompleted = 4096;
+	/** Number of completed tasks with copies still out to remember. */
+	private static final int maxLateCopies = 65536;
+	/** How many oldest tasks to look at when searching for stragglers. */
+	private static final int stragglerScan = 64;
+	/** How many times longer then expected a task must be out to straggle. */
+	private static final int stragglerFactor = 3;
+	/** Minimal number of samples needed before expected time is trusted. */
+	private static final int minSamples = 3;
+
+
+	/** Expected time it takes to get result for a task of given size. */
+	private static final class Expected {
+		/** Exponentially weighted moving average in nanoseconds. */
+		long average = 0;
+		/** Number of samples. */
+		int samples = 0;
+
+		/**
+		 * Adds a sample.
+		 * \param time the time it took to get the result in nanoseconds.
+		 */
+		void add(long time) {
+			average = samples == 0 ? time : average + (time - average) / 8;
+			++samples;
+		}
+	}
+
+
+	/** Tasks in flight in order they were issued. */
+	private final TaskRing inFlight = new TaskRing(initialInFlight);
+	/** Jobs tasks in flight belong to indexed by their numbers. */
+	private final ArrayList<Job> jobs = new ArrayList<Job>();
+	/** Numbers of jobs. */
+	private final IdentityHashMap<Job, Integer> jobNumbers =
+		new IdentityHashMap<Job, Integer>();
+	/** Numbers of tasks in flight indexed by job numbers. */
+	private int jobInFlight[] = new int[4];
+	/** Identifiers of recently completed tasks. */
+	private final LinkedHashMap<Long, Boolean> completed =
+		new LinkedHashMap<Long, Boolean>(16, 0.75f, false) {
+			protected boolean removeEldestEntry(Map.Entry<Long, Boolean> e) {
+				return size() > maxCompleted;
+			}
+		};
+	/** Numbers of copies still out indexed by completed task's identifier. */
+	private final LinkedHashMap<Long, Integer> lateCopies =
+		new LinkedHashMap<Long, Integer>(16, 0.75f, false) {
+			protected boolean removeEldestEntry(Map.Entry<Long, Integer> e) {
+				return size() > maxLateCopies;
+			}
+		};
+	/** Expected times indexed by task size. */
+	private final HashMap<Integer, Expected> expected =
+		new HashMap<Integer, Expected>();
+
+	/**
+	 * Next identifier to assign.  Starts at current time so that
+	 * identifiers from different server runs do not collide.
+	 */
+	private long nextId;
+	/** Number of shards, identifiers are incremented by this value. */
+	private final int shards;
+	/** Number of speculative copies in flight. */
+	private int duplicates = 0;
+	/** Maximal percentage of tasks in flight that may be duplicates. */
+	private int speculatePercent;
+
+
+	/**
+	 * Constructs object.
+	 * \param percent maximal percentage of tasks in flight that can be
+	 *                speculative duplicates; zero disables speculation.
+	 */
+	TaskTracker(int percent) {
+		this(percent, 0, 1);
+	}
+
+	/**
+	 * Constructs object for a server which is one of many shards.
+	 * Identifiers assigned by shard \a shard are congruent to \a
+	 * shard modulo \a theShards so they never collide with
+	 * identifiers assigned by other shards.
+	 * \param percent   maximal percentage of tasks in flight that can
+	 *                  be speculative duplicates; zero disables
+	 *                  speculation.
+	 * \param shard     shard number from zero to \a theShards - 1.
+	 * \param theShards number of shards.
+	 */
+	TaskTracker(int percent, int shard, int theShards) {
+		speculatePercent = percent;
+		shards = theShards;
+		nextId = (System.currentTimeMillis() << 16) / shards * shards + shard;
+	}
+
+
+	/** Returns number of tasks in flight. */
+	synchronized int inFlight() {
+		return inFlight.size();
+	}
+
+	/**
+	 * Returns number of tasks of given job in flight.
+	 * \param job job to count tasks of.
+	 */
+	synchronized int inFlight(Job job) {
+		Integer number = jobNumbers.get(job);
+		return number == null ? 0 : jobInFlight[number];
+	}
+
+	/** Returns number of tasks in flight indexed by task size. */
+	synchronized Map<Integer, Integer> inFlightBySize() {
+		TreeMap<Integer, Integer> map = new TreeMap<Integer, Integer>();
+		for (int s = inFlight.first(); s != -1; s = inFlight.next(s)) {
+			Integer count = map.get(inFlight.taskSize(s));
+			map.put(inFlight.taskSize(s), count == null ? 1 : count + 1);
+		}
+		return map;
+	}
+
+
+	/** Returns a new identifier to assign to a task. */
+	synchronized long nextId() {
+		return nextId += shards;
+	}
+
+	/**
+	 * Starts tracking a task.  Task must have been assigned an
+	 * identifier returned by nextId().
+	 * \param t   task being issued.
+	 * \param job job the task belongs to.
+	 */
+	synchronized void issue(Task t, Job job) {
+		if (inFlight.find(t.id()) != -1) {
+			return;
+		}
+		int number = number(job);
+		inFlight.add(t.id(), t.size(), number, System.nanoTime());
+		++jobInFlight[number];
+	}
+
+	/**
+	 * Returns number of a job assigning one if needed.
+	 * \param job the job.
+	 */
+	private int number(Job job) {
+		Integer number = jobNumbers.get(job);
+		if (number == null) {
+			number = jobs.size();
+			jobs.add(job);
+			jobNumbers.put(job, number);
+			if (number == jobInFlight.length) {
+				jobInFlight = Arrays.copyOf(jobInFlight, number * 2);
+			}
+		}
+		return number;
+	}
+
+
+	/**
+	 * Looks for a straggler and if one is found and duplication
+	 * budget allows returns it so it can be issued again.  Of the
+	 * stragglers found the one whose size is nearest \a n without
+	 * exceeding it is chosen so that client does not get more work
+	 * then it asked for.  The task is recreated by its job.
+	 * \param n desired task's size.
+	 * \return task to issue again or \c null.
+	 */
+	Task straggler(int n) {
+		long id;
+		int size;
+		Job job;
+		synchronized (this) {
+			if (speculatePercent == 0 ||
+			    (duplicates + 1) * 100 > inFlight.size() * speculatePercent) {
+				return null;
+			}
+
+			long now = System.nanoTime();
+			int scanned = 0, best = -1;
+			for (int s = inFlight.first(); s != -1 && ++scanned <= stragglerScan;
+			     s = inFlight.next(s)) {
+				int sz = inFlight.taskSize(s);
+				if (sz > n || (best != -1 && sz <= inFlight.taskSize(best))) {
+					continue;
+				}
+				Expected exp = expected.get(sz);
+				if (exp != null && exp.samples >= minSamples &&
+				    now - inFlight.lastIssued(s) > stragglerFactor * exp.average) {
+					best = s;
+					if (sz == n) break;
+				}
+			}
+			if (best == -1) {
+				return null;
+			}
+
+			int copies = inFlight.copies(best);
+			inFlight.reissued(best, now);
+			duplicates += inFlight.copies(best) - copies;
+			id = inFlight.id(best);
+			size = inFlight.taskSize(best);
+			job = jobs.get(inFlight.job(best));
+		}
+
+		/* Creating a task may be expensive, do it without the lock. */
+		return job.recreate(id, size);
+	}
+
+
+	/**
+	 * Returns job a task in flight belongs to or \c null if task is
+	 * not in flight.
+	 * \param t task to look up.
+	 */
+	synchronized Job owner(Task t) {
+		int s = inFlight.find(t.id());
+		return s == -1 ? null : jobs.get(inFlight.job(s));
+	}
+
+
+	/**
+	 * Checks whether a task returned unfinished by a client is still
+	 * needed, ie. whether it has not been completed by another copy.
+	 * If it is in flight, its straggler clock is restarted as
+	 * progress carried with it is not lost.  Tasks which are not
+	 * known (for instance issued before server restart) are needed.
+	 * \param t task that is being resumed.
+	 * \return whether the task should be handed out again.
+	 */
+	synchronized boolean resume(Task t) {
+		int s = inFlight.find(t.id());
+		if (s != -1) {
+			inFlight.touch(s, System.nanoTime());
+			return true;
+		}
+		return !lateCopy(t.id()) && !completed.containsKey(t.id());
+	}
+
+	/**
+	 * Checks whether task is a completed one with copies still out
+	 * and if so counts one of them as back.
+	 * \param id task's identifier.
+	 * \return whether task is a late copy.
+	 */
+	private boolean lateCopy(long id) {
+		Integer left = lateCopies.get(id);
+		if (left == null) {
+			return false;
+		} else if (left > 1) {
+			lateCopies.put(id, left - 1);
+		} else {
+			lateCopies.remove(id);
+		}
+		return true;
+	}
+
+
+	/**
+	 * Marks task as completed.  Returns \c false if the task has
+	 * already been completed (ie. this is a late duplicate) in which
+	 * case the result should be dropped.  Results of tasks that are
+	 * not known (for instance issued before server restart) are
+	 * accepted.
+	 * \param t task that was completed.
+	 * \return whether result should be accepted.
+	 */
+	synchronized boolean complete(Task t) {
+		long id = t.id();
+		int s = inFlight.find(id);
+		if (s == -1) {
+			if (id == 0) {
+				return true;
+			}
+			boolean late = lateCopy(id);
+			return completed.put(id, Boolean.TRUE) == null && !late;
+		}
+
+		completed.put(id, Boolean.TRUE);
+		int copies = inFlight.copies(s), size = inFlight.taskSize(s);
+		long issued = inFlight.issued(s);
+		--jobInFlight[inFlight.job(s)];
+		inFlight.remove(s);
+		duplicates -= copies - 1;
+		if (copies > 1) {
+			lateCopies.put(id, copies - 1);
+		}
+
+		/* Duplicated tasks would skew the average. */
+		if (copies == 1) {
+			Expected exp = expected.get(size);
+			if (exp == null) {
+				exp = new Expected();
+				expected.put(size, exp);
+			}
+			exp.add(System.nanoTime() - issued);
+		}
+		return true;
+	}
+}
@@ -22,6 +22,9 @@ import java.util.ListIterator;
 import java.util.LinkedList;
 import java.io.ObjectInputStream;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import com.mina86.dc.common.Events;
 import com.mina86.dc.common.Task;
 
 
@@ -32,11 +35,67 @@ import com.mina86.dc.common.Task;
  * Classes extending this class must implement nextIteration() method
  * where a single iteration of the algorithm should be performed.
  * A single iteration should not take too much time.
+ *
+ * Iterations are run in batches: nextIterations() is asked to do
+ * several iterations at once and only between batches pause flag is
+ * checked and listeners are notified.  Classes may overwrite
+ * nextIterations() with a tight loop.  Batch size is adapted so that
+ * a batch takes no longer then half of the pause latency (see
+ * setPauseLatency()).
  */
 public abstract class AbstractTask implements Task {
 	/** Version UID used for serialization. */
 	static final long serialVersionUID = 0xe5acea7a6b2c8a31L;
 
+	/** Maximal batch size. */
+	private static final long maxBatch = 1L << 24;
+	/** Maximal time a batch may take in nanoseconds. */
+	private static volatile long pauseLatency = 10000000;
+
+	/**
+	 * Sets the bound on time it takes for a running task to notice it
+	 * was paused.  Batches of iterations are sized to take no longer
+	 * then half of that.  Default is 10 ms.
+	 * \param nanos latency in nanoseconds.
+	 */
+	public static void setPauseLatency(long nanos) {
+		pauseLatency = nanos;
+	}
+
+	/** Returns the bound on pause latency in nanoseconds. */
+	public static long getPauseLatency() {
+		return pauseLatency;
+	}
+
+	/** Bean CPU time is read from or \c null if it is not supported. */
+	private static final ThreadMXBean threads = cpuTimeBean();
+
+	/**
+	 * Returns bean CPU time can be read from enabling CPU time
+	 * measurement if needed or \c null if it is not supported.
+	 */
+	private static ThreadMXBean cpuTimeBean() {
+		try {
+			ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+			if (bean.isCurrentThreadCpuTimeSupported()) {
+				if (!bean.isThreadCpuTimeEnabled()) {
+					bean.setThreadCpuTimeEnabled(true);
+				}
+				return bean;
+			}
+		}
+		catch (RuntimeException e) {
+			/* Not supported or not allowed. */
+		}
+		return null;
+	}
+
+	/** Returns current thread's CPU time in nanoseconds or zero. */
+	private static long threadCpuTime() {
+		return threads == null ? 0 : threads.getCurrentThreadCpuTime();
+	}
+
+
 	/** Whether the task is running or has been paused. */
 	transient private boolean running = true;
 	/** Number of iterations finished. */
@@ -48,6 +107,14 @@ public abstract class AbstractTask implements Task {
 	protected int taskSize;
 	/** Task's processing time in nanoseconds. */
 	private long processingTime = 0;
+	/** CPU time used to process the task in nanoseconds. */
+	private long cpuTime = 0;
+	/** Time spent saving checkpoints in nanoseconds. */
+	private long checkpointTime = 0;
+	/** Task's identifier assigned by the server. */
+	private long taskId = 0;
+	/** Number of iterations in the next batch (zero means one). */
+	transient private long batch = 1;
 
 
 	/** Returns task's size. */
@@ -61,6 +128,39 @@ public abstract class AbstractTask implements Task {
 		return processingTime / 1000000;
 	}
 
+	public long wallTime() {
+		return processingTime;
+	}
+
+	public long cpuTime() {
+		return cpuTime;
+	}
+
+	public long iterations() {
+		return iterations;
+	}
+
+	public long checkpointTime() {
+		return checkpointTime;
+	}
+
+	public void addCheckpointTime(long nanos) {
+		checkpointTime += nanos;
+	}
+
+	/** Returns task's identifier or zero if it was never assigned one. */
+	public long id() {
+		return taskId;
+	}
+
+	/**
+	 * Sets task's identifier.
+	 * \param id new identifier.
+	 */
+	public void setId(long id) {
+		taskId = id;
+	}
+
 
 	/**
 	 * Constructs object.
@@ -97,6 +197,24 @@ public abstract class AbstractTask implements Task {
 	 */
 	protected abstract boolean nextIteration();
 
+	/**
+	 * Performs up to \a k iterations and returns how many were done.
+	 * Returning less then \a k means there are no more iterations to
+	 * do, ie. it is equivalent to nextIteration() returning \c false.
+	 * This implementation calls nextIteration() in a loop; classes
+	 * may overwrite it with a loop the JIT can optimise across
+	 * iterations.
+	 *
+	 * \param k maximal number of iterations to do.
+	 * \return number of iterations done.
+	 */
+	protected long nextIterations(long k) {
+		for (long i = 0; i < k; ++i) {
+			if (!nextIteration()) return i;
+		}
+		return k;
+	}
+
 	final public void pause  () {
 		running = false;
 	}
@@ -106,21 +224,85 @@ public abstract class AbstractTask implements Task {
 	}
 
 	/**
-	 * Runs a calcultion.  It calls nextIteration() in a loop untill
-	 * it returns \c true (meaning task is finished) or task is
-	 * paused.  Every time nextIteration() finishes progressNotify()
-	 * is called to notify all listeners about our progress.
+	 * Runs a calcultion.  It calls nextIterations() in a loop untill
+	 * task is finished or paused.  Every time a batch of iterations
+	 * finishes progressNotify() is called to notify all listeners
+	 * about our progress.
 	 *
 	 * \return whether tash is completed.
 	 */
 	final public boolean run() {
+		return runBatches(Long.MAX_VALUE, Long.MAX_VALUE);
+	}
+
+	/**
+	 * Runs a calculation for at most \a nanos nanoseconds.  Works
+	 * like run() but also stops once the time is up.  Time is checked
+	 * after each batch so the method may return late by at most half
+	 * of the pause latency.
+	 *
+	 * \param nanos time budget in nanoseconds.
+	 * \return whether task is completed.
+	 */
+	final public boolean runFor(long nanos) {
+		return runBatches(nanos, Long.MAX_VALUE);
+	}
+
+	/**
+	 * Runs at most \a count iterations of a calculation.  Works like
+	 * run() but also stops after \a count iterations.
+	 *
+	 * \param count maximal number of iterations to do.
+	 * \return whether task is completed.
+	 */
+	final public boolean runIterations(long count) {
+		return runBatches(Long.MAX_VALUE, count);
+	}
+
+	/**
+	 * Runs batches of iterations until task is finished or paused,
+	 * \a nanos nanoseconds pass or \a count iterations are done.
+	 * After each batch its size is adjusted so that a batch takes
+	 * between a quarter and a half of pause latency.
+	 *
+	 * \param nanos time budget in nanoseconds.
+	 * \param count maximal number of iterations to do.
+	 * \return whether task is completed.
+	 */
+	private boolean runBatches(long nanos, long count) {
 		boolean hasMoreWork = true;
-		long startTime = System.nanoTime();
-		while (hasMoreWork && running) {
-			hasMoreWork = nextIteration();
+		long startCpu = threadCpuTime();
+		long startTime = System.nanoTime(), now = startTime;
+		long k = Math.max(batch, 1), target = pauseLatency / 2;
+		while (hasMoreWork && running && count > 0 && now - startTime < nanos) {
+			Events.RunSlice event = new Events.RunSlice();
+			event.begin();
+			long n = Math.min(k, count), done = nextIterations(n);
+			long elapsed = System.nanoTime() - now;
+			event.end();
+			if (event.shouldCommit()) {
+				event.task(this);
+				event.iterations = done;
+				event.batch = n;
+				event.commit();
+			}
+			hasMoreWork = done == n;
+			count -= done;
 			progressNotify();
+			now = System.nanoTime();
+
+			/* Listeners are not part of the batch. */
+			if (elapsed > target) {
+				k = Math.max(k / 2, 1);
+			} else if (elapsed < target / 2 && n == k && k < maxBatch) {
+				k *= 2;
+			}
+		}
+		batch = k;
+		processingTime += now - startTime;
+		if (threads != null) {
+			cpuTime += threadCpuTime() - startCpu;
 		}
-		processingTime += System.nanoTime() - startTime;
 		return !hasMoreWork;
 	}
 
@@ -35,11 +35,28 @@ import java.util.LinkedList;
  * of testing whether state we are in is a valid answer.  If it is
  * then algorithm complets.  Otherwise a new state is generated and wo
  * go back to the begining.
+ *
+ * Classes may also overwrite generateAndVerify() to generate and
+ * verify the next state at once, abandoning the state as soon as it
+ * is known not to be a valid answer.
  */
 public abstract class AbstractVerifiableTask extends AbstractTask {
 	/** Version UID used for serialization. */
 	static final long serialVersionUID = 0xd9b74322276c8487L;
 
+	/** Current state was not verified yet. */
+	private static final byte UNKNOWN = 0;
+	/** Current state is not a valid answer. */
+	private static final byte INVALID = 1;
+	/** Current state is a valid answer. */
+	private static final byte VALID = 2;
+
+	/**
+	 * Whether current state is a valid answer.  It is not serialized
+	 * so state gets verified again after task is read.
+	 */
+	transient private byte state = UNKNOWN;
+
 
 	/**
 	 * Constructs object.
@@ -52,23 +69,54 @@ public abstract class AbstractVerifiableTask extends AbstractTask {
 
 
 	/**
-	 * Performs a single iteration of the algorithm.  First calls
-	 * quickVerifyResult() to verify if our current state is valid
-	 * answer.  If it is returns \c false otehrwise generates next
-	 * state by calling generateNextState() and returns \c true.
+	 * Performs a single iteration of the algorithm.  If current state
+	 * is a valid answer returns \c false otehrwise generates next
+	 * state and verifies it by calling generateAndVerify() and returns
+	 * \c true.  Current state is verified with quickVerifyResult()
+	 * only the first time (or after the task was read).
 	 *
 	 * \return whether there are more iterations to do.
 	 */
 	final protected boolean nextIteration() {
-		if (quickVerifyResult()) {
+		if (state == UNKNOWN) {
+			state = quickVerifyResult() ? VALID : INVALID;
+		}
+		if (state == VALID) {
 			return false;
 		}
-		generateNextState();
+		state = generateAndVerify() ? VALID : INVALID;
 		++iterations;
 		return true;
 	}
 
 
+	/**
+	 * Performs up to \a k iterations of the algorithm.  Works like
+	 * calling nextIteration() \a k times but new states are generated
+	 * in a single call to generateUntilValid().
+	 *
+	 * \param k maximal number of iterations to do.
+	 * \return number of iterations done.
+	 */
+	final protected long nextIterations(long k) {
+		if (state == UNKNOWN) {
+			state = quickVerifyResult() ? VALID : INVALID;
+		}
+		if (state == VALID || k <= 0) {
+			return 0;
+		}
+		long invalid = generateUntilValid(k);
+		if (invalid < k) {
+			state = VALID;
+			iterations += invalid + 1;
+			return invalid + 1;
+		}
+		state = INVALID;
+		iterations += k;
+		return k;
+	}
+
+
 	/** Returns \c true. */
 	final public boolean isVerifiable() {
 		return true;
@@ -84,4 +132,36 @@ public abstract class AbstractVerifiableTask extends AbstractTask {
 	protected abstract boolean quickVerifyResult();
 	/** Generates new state (result). */
 	protected abstract void generateNextState();
+
+	/**
+	 * Generates new state and returns whether it is a valid answer.
+	 * This implementation calls generateNextState() and
+	 * quickVerifyResult().  Classes may implement it in a way which
+	 * stops generating the state as soon as it is known it won't be
+	 * a valid answer, in which case the state may be left only
+	 * partially generated.  Valid answers must be found with the same
+	 * probability as with the default implementation.
+	 */
+	protected boolean generateAndVerify() {
+		generateNextState();
+		return quickVerifyResult();
+	}
+
+	/**
+	 * Generates up to \a k new states stopping at the first valid
+	 * answer.  Returns number of invalid states generated, so the
+	 * result is less then \a k if and only if the last state
+	 * generated is a valid answer.  This implementation calls
+	 * generateAndVerify() in a loop; classes may overwrite it with
+	 * a tight loop.
+	 *
+	 * \param k maximal number of states to generate.
+	 * \return number of invalid states generated.
+	 */
+	protected long generateUntilValid(long k) {
+		for (long i = 0; i < k; ++i) {
+			if (generateAndVerify()) return i;
+		}
+		return k;
+	}
 };
@@ -33,7 +33,7 @@ import java.io.PrintStream;
  * insane as far as sorting algorithm are concerned but it is perfect
  * for demonstrating distributed computing infrastructure.
  */
-final public class BogoSort<T extends Comparable>
+final public class BogoSort<T extends Comparable<? super T>>
 	extends AbstractVerifiableTask
 	implements Iterable<T> {
 	/** Version UID used for serialization. */
@@ -89,6 +89,53 @@ final public class BogoSort<T extends Comparable>
 
 
 
+	/**
+	 * Generates a random permutation and verifies it at once.
+	 * Permutation is built front to back (drawing a random element
+	 * for each position from the ones not placed yet) and abandoned
+	 * as soon as an element placed is smaller then its predecessor.
+	 * Each prefix is uniformly random so a sorted permutation is
+	 * found with the same probability as with a full shuffle but on
+	 * average less then two elements are placed per permutation.
+	 */
+	protected boolean generateAndVerify() {
+		return shuffleAndVerify(data);
+	}
+
+	/**
+	 * Generates and verifies up to \a k permutations in a tight loop.
+	 * \param k maximal number of permutations to generate.
+	 * \return number of unsorted permutations generated.
+	 */
+	protected long generateUntilValid(long k) {
+		T d[] = data;
+		for (long i = 0; i < k; ++i) {
+			if (shuffleAndVerify(d)) return i;
+		}
+		return k;
+	}
+
+	/**
+	 * Generates a random permutation of \a d abandoning it as soon
+	 * as it is known it is not sorted.  See generateAndVerify().
+	 * \param d elements to shuffle.
+	 * \return whether permutation is sorted.
+	 */
+	private static <T extends Comparable<? super T>> boolean
+	shuffleAndVerify(T d[]) {
+		int count = d.length;
+		for (int i = 0; i < count - 1; ++i) {
+			int pos = i + (int)(Math.random() * (count - i));
+			T tmp = d[i];
+			d[i] = d[pos];
+			d[pos] = tmp;
+			if (i > 0 && d[i-1].compareTo(d[i]) > 0) return false;
+		}
+		return count < 2 || d[count-2].compareTo(d[count-1]) <= 0;
+	}
+
+
+
 	public Iterator<T> iterator() {
 		return new Iterator<T>() {
 			private int pos = 0;
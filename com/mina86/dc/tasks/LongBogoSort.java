@@ -0,0 +1,210 @@
+/*
+ * Copyright 2008-2009 by Michal Nazarewicz (mina86/AT/mina86.com)
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mina86.dc.tasks;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.channels.Channels;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ThreadLocalRandom;
+import com.mina86.util.DirectLongArray;
+import com.mina86.util.SortedCheck;
+
+
+/**
+ * BogoSort of longs kept outside of Java heap.  Works exactly like
+ * BogoSort but elements are stored in a DirectLongArray so large
+ * inputs do not put pressure on garbage collector, and the kernel
+ * accesses them without per-element bounds checks.  When serialized
+ * (for instance to a checkpoint) elements are written straight from
+ * the off-heap memory.
+ */
+final public class LongBogoSort
+	extends AbstractVerifiableTask
+	implements Iterable<Long> {
+	/** Version UID used for serialization. */
+	static final long serialVersionUID = 0x4c6f6e67426f676fL;
+
+	/** Elements to sort. */
+	private transient DirectLongArray data;
+
+
+	/**
+	 * Initializes task.
+	 * \param theData elements to sort.
+	 */
+	public LongBogoSort(long theData[]) {
+		super(0, theData.length);
+		data = new DirectLongArray(theData.length);
+		for (int i = 0; i < theData.length; ++i) {
+			data.setUnchecked(i, theData[i]);
+		}
+	}
+
+	/**
+	 * Initializes task with elements in given array.  The array is
+	 * used as is (not copied) and must not be modified later.
+	 * \param theData elements to sort.
+	 * \throw IllegalArgumentException if array has more then
+	 *                                  Integer.MAX_VALUE elements.
+	 */
+	public LongBogoSort(DirectLongArray theData) {
+		super(0, checkedSize(theData));
+		data = theData;
+	}
+
+	/**
+	 * Returns length of the array as task's size.
+	 * \param theData array.
+	 * \throw IllegalArgumentException if array is too long.
+	 */
+	private static int checkedSize(DirectLongArray theData) {
+		if (theData.length() > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("too many elements (" + theData.length() + ")");
+		}
+		return (int)theData.length();
+	}
+
+
+	/** Returns array with elements. */
+	public DirectLongArray data() {
+		return data;
+	}
+
+
+	/**
+	 * Verifies the result.  Unlike quickVerifyResult() which is
+	 * called after each shuffle of a (usually short) array this uses
+	 * SortedCheck which is vectorized and checks large arrays in
+	 * parallel.
+	 */
+	public boolean verifyResult() {
+		return SortedCheck.isSorted(data);
+	}
+
+	protected boolean quickVerifyResult() {
+		DirectLongArray d = data;
+		long prev = d.length() == 0 ? 0 : d.getUnchecked(0);
+		for (long i = 1, count = d.length(); i < count; ++i) {
+			long v = d.getUnchecked(i);
+			if (prev > v) return false;
+			prev = v;
+		}
+		return true;
+	}
+
+	protected void generateNextState() {
+		DirectLongArray d = data;
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		for (long count = d.length(); count > 1; ) {
+			long pos = random.nextLong(count);
+			--count;
+			long tmp = d.getUnchecked(count);
+			d.setUnchecked(count, d.getUnchecked(pos));
+			d.setUnchecked(pos, tmp);
+		}
+	}
+
+
+	/**
+	 * Generates a random permutation and verifies it at once.  Works
+	 * like BogoSort.generateAndVerify(), that is abandons permutation
+	 * as soon as an element placed is smaller then its predecessor.
+	 */
+	protected boolean generateAndVerify() {
+		return shuffleAndVerify(data, ThreadLocalRandom.current());
+	}
+
+	/**
+	 * Generates and verifies up to \a k permutations in a tight loop.
+	 * \param k maximal number of permutations to generate.
+	 * \return number of unsorted permutations generated.
+	 */
+	protected long generateUntilValid(long k) {
+		DirectLongArray d = data;
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		for (long i = 0; i < k; ++i) {
+			if (shuffleAndVerify(d, random)) return i;
+		}
+		return k;
+	}
+
+	/**
+	 * Generates a random permutation of \a d abandoning it as soon
+	 * as it is known it is not sorted.  See generateAndVerify().
+	 * \param d      elements to shuffle.
+	 * \param random random number generator to use.
+	 * \return whether permutation is sorted.
+	 */
+	private static boolean shuffleAndVerify(DirectLongArray d,
+	                                        ThreadLocalRandom random) {
+		long count = d.length();
+		for (long i = 0; i < count - 1; ++i) {
+			long pos = i + random.nextLong(count - i);
+			long tmp = d.getUnchecked(pos);
+			d.setUnchecked(pos, d.getUnchecked(i));
+			d.setUnchecked(i, tmp);
+			if (i > 0 && d.getUnchecked(i - 1) > tmp) return false;
+		}
+		return count < 2 || d.getUnchecked(count - 2) <= d.getUnchecked(count - 1);
+	}
+
+
+	/**
+	 * Writes object.  Elements are written after the fields straight
+	 * from the off-heap memory.
+	 * \param out stream to write object to.
+	 */
+	private void writeObject(ObjectOutputStream out) throws IOException {
+		out.defaultWriteObject();
+		out.writeLong(data.length());
+		data.writeTo(Channels.newChannel(out));
+	}
+
+	/**
+	 * Reads serialized object.
+	 * \param in stream to read object from.
+	 */
+	private void readObject(ObjectInputStream in)
+		throws IOException, ClassNotFoundException {
+		in.defaultReadObject();
+		long length = in.readLong();
+		if (length != taskSize) {
+			throw new IOException("invalid number of elements (" + length + ")");
+		}
+		data = new DirectLongArray(length);
+		data.readFrom(Channels.newChannel(in));
+	}
+
+
+	public Iterator<Long> iterator() {
+		return new Iterator<Long>() {
+			private long pos = 0;
+			public boolean hasNext() { return pos < data.length(); }
+			public Long next() {
+				if (pos >= data.length()) throw new NoSuchElementException();
+				return data.getUnchecked(pos++);
+			}
+			public void remove() throws UnsupportedOperationException {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+};
@@ -0,0 +1,434 @@
+/*
+ * Copyright 2008-2009 by Michal Nazarewicz (mina86/AT/mina86.com)
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mina86.dc.tests;
+
+import java.lang.management.ManagementFactory;
+import java.rmi.RemoteException;
+import java.rmi.registry.LocateRegistry;
+import java.rmi.registry.Registry;
+import java.text.DecimalFormat;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMX;
+import javax.management.ObjectName;
+import com.mina86.DC;
+import com.mina86.dc.common.ServerBusyException;
+import com.mina86.dc.common.ServerInterface;
+import com.mina86.dc.common.Task;
+import com.mina86.dc.server.Server;
+import com.mina86.dc.server.ServerStatsMXBean;
+import com.mina86.dc.tasks.BogoSort;
+import com.mina86.util.GetOptions;
+import com.mina86.util.LatencyHistogram;
+
+
+/**
+ * A load generator which runs a server and simulates many clients in
+ * a single process.  Simulated clients download tasks through RMI
+ * the same way real clients do but instead of calculating them they
+ * wait for a time taken from a synthetic distribution and send back
+ * a sorted result.  Waiting is done with a scheduler so simulated
+ * clients cost no threads; RMI calls are made from virtual threads
+ * when the JVM has them and from a fixed thread pool otherwise.
+ *
+ * The test is run in steps with increasing number of clients and
+ * after each step tasks per second, getTask() and sendResult()
+ * latencies, number of tasks in flight and CPU time and allocation
+ * rate of server's threads are printed.
+ *
+ * Usage: <tt>java com.mina86.dc.tests.LoadTest [ <options> ] [ --
+ * <server options> ]</tt>.
+ */
+final public class LoadTest {
+	/**
+	 * Runs the test.
+	 * \param args program arguments.
+	 */
+	public static void main(String [] args) {
+		(new LoadTest()).run(args);
+		System.exit(0);
+	}
+
+
+	/** Size of tasks to request. */
+	private int size;
+	/** Mean time of calculating a task in miliseconds. */
+	private double mean;
+	/** Distribution of calculation times. */
+	private String distribution;
+
+	/** The server. */
+	private ServerInterface server;
+	/** Executor RMI calls are made from. */
+	private ExecutorService rpc;
+	/** Scheduler used to simulate calculations. */
+	private ScheduledExecutorService scheduler;
+	/** Measurements of current step. */
+	private volatile Step step;
+
+
+	/** Runs the test. \param args program arguments. */
+	private void run(String args[]) {
+		String clients = null;
+		int duration = 0, port = 0, threads = 0;
+		String serverArgs[] = null, serviceName = null;
+
+		try {
+			GetOptions.VectorHandler vec = new GetOptions.VectorHandler();
+			GetOptions.StringHandler clientsArg =
+				new GetOptions.StringHandler("10,100,1000,10000");
+			GetOptions.IntegerHandler durationArg =
+				new GetOptions.IntegerHandler(10, 1, Integer.MAX_VALUE);
+			GetOptions.IntegerHandler meanArg =
+				new GetOptions.IntegerHandler(1000, 0, Integer.MAX_VALUE);
+			GetOptions.StringHandler distArg =
+				new GetOptions.StringHandler("exp");
+			GetOptions.IntegerHandler sizeArg =
+				new GetOptions.IntegerHandler(8, 2, 1024);
+			GetOptions.IntegerHandler portArg =
+				new GetOptions.IntegerHandler(Registry.REGISTRY_PORT,
+				                              1024, 0xffff);
+			GetOptions.StringHandler serviceArg =
+				new GetOptions.StringHandler(DC.defaultServiceName);
+			GetOptions.IntegerHandler threadsArg =
+				new GetOptions.IntegerHandler(256, 1, 65536);
+			GetOptions getopts = new GetOptions();
+			getopts.addOption("-", vec, GetOptions.TakesArg.REQ);
+			getopts.addOption("c", clientsArg, GetOptions.TakesArg.REQ);
+			getopts.addOption("d", durationArg, GetOptions.TakesArg.REQ);
+			getopts.addOption("m", meanArg, GetOptions.TakesArg.REQ);
+			getopts.addOption("dist", distArg, GetOptions.TakesArg.REQ);
+			getopts.addOption("n", sizeArg, GetOptions.TakesArg.REQ);
+			getopts.addOption("p", portArg, GetOptions.TakesArg.REQ);
+			getopts.addOption("s", serviceArg, GetOptions.TakesArg.REQ);
+			getopts.addOption("threads", threadsArg, GetOptions.TakesArg.REQ);
+			getopts.addAlias("clients", "c");
+			getopts.addAlias("duration", "d");
+			getopts.addAlias("mean", "m");
+			getopts.addAlias("port", "p");
+			getopts.addAlias("service", "s");
+			getopts.parseArguments(args);
+
+			clients = clientsArg.value;
+			duration = durationArg.value;
+			mean = meanArg.value;
+			distribution = distArg.value;
+			size = sizeArg.value;
+			port = portArg.value;
+			threads = threadsArg.value;
+			serviceName = serviceArg.value;
+
+			if (!distribution.equals("exp") && !distribution.equals("lognormal")
+			    && !distribution.equals("fixed")) {
+				throw new GetOptions.InvalidValue(
+					"dist", distribution, "exp, lognormal or fixed expected");
+			}
+
+			serverArgs = new String[vec.vector.size() + 6];
+			serverArgs[0] = "server";
+			serverArgs[1] = "-q";
+			serverArgs[2] = "-p";
+			serverArgs[3] = "" + port;
+			for (int i = 0; i < vec.vector.size(); ++i) {
+				serverArgs[i + 4] = vec.vector.get(i);
+			}
+			serverArgs[serverArgs.length - 2] = "--";
+			serverArgs[serverArgs.length - 1] = serviceName;
+		}
+		catch (GetOptions.Exception e) {
+			System.err.println(e.getFullMessage());
+			System.exit(1);
+		}
+
+		ServerStatsMXBean serverStats = null;
+		try {
+			System.out.print("Creating registry... ");
+			Registry registry = LocateRegistry.createRegistry(port);
+			System.out.print("done.\n");
+
+			new Server().run(serverArgs);
+
+			System.out.print("Looking server up... ");
+			server = (ServerInterface)registry.lookup(serviceName);
+			serverStats = JMX.newMXBeanProxy(
+				ManagementFactory.getPlatformMBeanServer(),
+				new ObjectName("com.mina86.dc:type=Server"),
+				ServerStatsMXBean.class);
+			System.out.print("done.\n");
+		}
+		catch (Exception e) {
+			System.out.println("failed.\n" + e.toString());
+			System.exit(1);
+		}
+
+		rpc = rpcExecutor(threads);
+		scheduler = Executors.newScheduledThreadPool(2);
+
+		System.out.println("\n clients    tasks/s  get p50  get p99 " +
+		                   " send p50 send p99  in-flight  srv CPU %" +
+		                   "  srv MB/s");
+
+		for (String count : clients.split(",")) {
+			int n = Integer.parseInt(count.trim());
+			runStep(n, duration, serverStats);
+		}
+	}
+
+
+	/**
+	 * Returns executor to make RMI calls from.  Uses virtual threads
+	 * if JVM supports them.
+	 * \param threads number of threads to use if there are no
+	 *                virtual threads.
+	 */
+	private static ExecutorService rpcExecutor(int threads) {
+		try {
+			return (ExecutorService)Executors.class
+				.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		}
+		catch (Exception e) {
+			return Executors.newFixedThreadPool(threads);
+		}
+	}
+
+
+	/**
+	 * Runs a single step of the test.
+	 * \param clients     number of simulated clients.
+	 * \param duration    how long to measure in seconds.
+	 * \param serverStats server's management bean.
+	 */
+	private void runStep(int clients, int duration,
+	                     ServerStatsMXBean serverStats) {
+		Step warmUp = new Step();
+		step = warmUp;
+		for (int i = 0; i < clients; ++i) {
+			final SimClient client = new SimClient(warmUp);
+			scheduler.schedule(new Runnable() {
+				public void run() { rpc.execute(client); }
+			}, (long)(ThreadLocalRandom.current().nextDouble() * mean * 1e6),
+			   TimeUnit.NANOSECONDS);
+		}
+
+		try {
+			/* Ramp up while clients get their first tasks. */
+			Thread.sleep((long)mean + 1000);
+
+			Step measured = new Step();
+			Map<Long, long[]> threadsBefore = serverThreads();
+			long start = System.nanoTime();
+			step = measured;
+
+			Thread.sleep(duration * 1000L);
+
+			long elapsed = System.nanoTime() - start;
+			Map<Long, long[]> threadsAfter = serverThreads();
+			int inFlight = serverStats.getInFlight();
+			warmUp.active = false;
+
+			long cpu = 0, alloc = 0;
+			for (Map.Entry<Long, long[]> e : threadsAfter.entrySet()) {
+				long before[] = threadsBefore.get(e.getKey());
+				cpu += e.getValue()[0] - (before == null ? 0 : before[0]);
+				alloc += e.getValue()[1] - (before == null ? 0 : before[1]);
+			}
+
+			DecimalFormat d = new DecimalFormat("0.0");
+			System.out.println(
+				pad("" + clients, 8) +
+				pad(d.format(measured.completed.sum() * 1e9 / elapsed), 11) +
+				pad(ms(measured.getTask.percentile(50)), 9) +
+				pad(ms(measured.getTask.percentile(99)), 9) +
+				pad(ms(measured.sendResult.percentile(50)), 9) +
+				pad(ms(measured.sendResult.percentile(99)), 9) +
+				pad("" + inFlight, 11) +
+				pad(d.format(cpu * 100.0 / elapsed), 11) +
+				pad(d.format(alloc * 1e9 / elapsed / 1048576), 10) +
+				(measured.errors.sum() == 0 ? "" :
+				 "  (" + measured.errors.sum() + " errors)") +
+				(measured.busy.sum() == 0 ? "" :
+				 "  (" + measured.busy.sum() + " busy)"));
+
+			/* Let clients of this step finish their calls. */
+			Thread.sleep(1000);
+		}
+		catch (InterruptedException e) {
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Pads string with spaces on the left.
+	 * \param s string to pad.
+	 * \param n desired length.
+	 */
+	private static String pad(String s, int n) {
+		StringBuilder buf = new StringBuilder();
+		for (int i = s.length(); i < n; ++i) {
+			buf.append(' ');
+		}
+		return buf.append(s).toString();
+	}
+
+	/**
+	 * Formats nanoseconds as miliseconds.
+	 * \param nanos time in nanoseconds.
+	 */
+	private static String ms(long nanos) {
+		return (new DecimalFormat("0.00")).format(nanos / 1e6);
+	}
+
+
+	/**
+	 * Returns CPU time and allocated bytes of server's threads, that
+	 * is of threads RMI runs incoming calls on.  Threads which
+	 * terminated during measurement are not accounted for.
+	 */
+	private static Map<Long, long[]> serverThreads() {
+		com.sun.management.ThreadMXBean bean =
+			(com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+		HashMap<Long, long[]> map = new HashMap<Long, long[]>();
+		for (Thread t : Thread.getAllStackTraces().keySet()) {
+			if (t.getName().startsWith("RMI TCP Connection")) {
+				long id = t.getId();
+				map.put(id, new long[] {
+					bean.getThreadCpuTime(id), bean.getThreadAllocatedBytes(id)
+				});
+			}
+		}
+		return map;
+	}
+
+
+	/** Returns a simulated calculation time in nanoseconds. */
+	private long calculationTime() {
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		double time;
+		if (distribution.equals("exp")) {
+			time = -mean * Math.log(1 - random.nextDouble());
+		} else if (distribution.equals("lognormal")) {
+			/* Sigma of 1 and mu chosen so that mean is as requested. */
+			time = Math.exp(Math.log(mean) - 0.5 + random.nextGaussian());
+		} else {
+			time = mean;
+		}
+		return (long)(time * 1e6);
+	}
+
+
+	/** Measurements of a single step. */
+	private static final class Step {
+		/** Whether clients of this step should keep running. */
+		volatile boolean active = true;
+		/** Number of accepted results. */
+		final LongAdder completed = new LongAdder();
+		/** Number of failed calls. */
+		final LongAdder errors = new LongAdder();
+		/** Number of calls rejected because server was busy. */
+		final LongAdder busy = new LongAdder();
+		/** Latency of getTask() calls. */
+		final LatencyHistogram getTask = new LatencyHistogram("getTask");
+		/** Latency of sendResult() calls. */
+		final LatencyHistogram sendResult = new LatencyHistogram("sendResult");
+	}
+
+
+	/**
+	 * A simulated client.  Each run() makes a single RMI call and
+	 * schedules the next one.
+	 */
+	private final class SimClient implements Runnable {
+		/** Step the client belongs to. */
+		private final Step owner;
+		/** Result to send or \c null if task needs to be downloaded. */
+		private Task result = null;
+
+		/** Constructs object.  \param theOwner step client belongs to. */
+		SimClient(Step theOwner) {
+			owner = theOwner;
+		}
+
+		/**
+		 * Runs client after given delay.
+		 * \param nanos delay in nanoseconds.
+		 */
+		private void later(long nanos) {
+			scheduler.schedule(new Runnable() {
+				public void run() { rpc.execute(SimClient.this); }
+			}, nanos, TimeUnit.NANOSECONDS);
+		}
+
+		public void run() {
+			if (!owner.active) {
+				return;
+			}
+
+			Step current = step;
+			long start = System.nanoTime();
+			try {
+				if (result == null) {
+					Task t = server.getTask(size);
+					current.getTask.since(start);
+					if (t == null) {
+						later(15000000);
+					} else {
+						result = sorted(t);
+						later(calculationTime());
+					}
+				} else {
+					server.sendResult(result);
+					current.sendResult.since(start);
+					current.completed.increment();
+					result = null;
+					rpc.execute(this);
+				}
+			}
+			catch (ServerBusyException e) {
+				current.busy.increment();
+				later(e.retryAfter() * 1000000);
+			}
+			catch (RemoteException e) {
+				current.errors.increment();
+				later(1000000000);
+			}
+		}
+
+		/**
+		 * Returns a result of a task without running it.
+		 * \param t task to return result of.
+		 */
+		private Task sorted(Task t) {
+			Long data[] = new Long[t.size()];
+			int i = 0;
+			for (Object item : (Iterable<?>)t) {
+				data[i++] = (Long)item;
+			}
+			Arrays.sort(data);
+			Task sorted = new BogoSort<Long>(data);
+			sorted.setId(t.id());
+			return sorted;
+		}
+	}
+}
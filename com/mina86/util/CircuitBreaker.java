@@ -0,0 +1,143 @@
+/*
+ * Copyright 2008-2009 by Michal Nazarewicz (mina86/AT/mina86.com)
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mina86.util;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+
+/**
+ * A circuit breaker guarding calls to an endpoint.  After a number of
+ * consecutive failures the breaker opens and calls are not allowed
+ * for some time.  After that time a single trial call is allowed
+ * (the breaker is half open); if it succeeds the breaker closes,
+ * otherwise it opens again.
+ *
+ * Breakers are meant to be shared by everything in the process
+ * talking to the same endpoint so that one failing caller spares
+ * the others useless attempts.  forEndpoint() returns such a shared
+ * breaker.
+ */
+public final class CircuitBreaker {
+	/** Default number of failures which open the breaker. */
+	public static final int defaultThreshold = 5;
+	/** Default time the breaker stays open in miliseconds. */
+	public static final long defaultOpenTime = 30000;
+
+	/** Shared breakers indexed by endpoint. */
+	private static final ConcurrentHashMap<String, CircuitBreaker> breakers =
+		new ConcurrentHashMap<String, CircuitBreaker>();
+
+	/**
+	 * Returns breaker shared by all callers of given endpoint.
+	 * Breaker is created with default settings if it does not exist.
+	 * \param endpoint endpoint's name.
+	 */
+	public static CircuitBreaker forEndpoint(String endpoint) {
+		CircuitBreaker breaker = breakers.get(endpoint);
+		if (breaker == null) {
+			breakers.putIfAbsent(endpoint, new CircuitBreaker(defaultThreshold,
+			                                                  defaultOpenTime));
+			breaker = breakers.get(endpoint);
+		}
+		return breaker;
+	}
+
+
+	/** Breaker's states. */
+	public enum State {
+		CLOSED,     /**< Calls are allowed. */
+		OPEN,       /**< Calls are not allowed. */
+		HALF_OPEN   /**< A single trial call is allowed. */
+	};
+
+
+	/** Number of consecutive failures which open the breaker. */
+	private final int threshold;
+	/** How long breaker stays open in nanoseconds. */
+	private final long openTime;
+
+	/** Current state. */
+	private State state = State.CLOSED;
+	/** Number of consecutive failures. */
+	private int failures = 0;
+	/** When breaker was opened or trial call allowed (System.nanoTime()). */
+	private long since = 0;
+
+
+	/**
+	 * Constructs breaker.
+	 * \param theThreshold number of consecutive failures which open
+	 *                     the breaker.
+	 * \param theOpenTime  how long breaker stays open in miliseconds.
+	 */
+	public CircuitBreaker(int theThreshold, long theOpenTime) {
+		threshold = theThreshold;
+		openTime = theOpenTime * 1000000;
+	}
+
+
+	/** Returns breaker's state. */
+	public synchronized State state() {
+		return state;
+	}
+
+	/**
+	 * Returns whether a call is allowed.  If breaker has been open
+	 * long enough it becomes half open and this call is the trial
+	 * call.  If trial call does not report back for as long as the
+	 * breaker stays open another trial is allowed.
+	 */
+	public synchronized boolean allow() {
+		if (state == State.CLOSED) {
+			return true;
+		}
+		long now = System.nanoTime();
+		if (now - since < openTime) {
+			return false;
+		}
+		state = State.HALF_OPEN;
+		since = now;
+		return true;
+	}
+
+	/**
+	 * Returns number of miliseconds after which allow() may return
+	 * \c true.  Returns zero if breaker is closed.
+	 */
+	public synchronized long retryIn() {
+		if (state == State.CLOSED) {
+			return 0;
+		}
+		long left = openTime - (System.nanoTime() - since);
+		return left <= 0 ? 0 : (left + 999999) / 1000000;
+	}
+
+	/** Reports a successful call. */
+	public synchronized void success() {
+		state = State.CLOSED;
+		failures = 0;
+	}
+
+	/** Reports a failed call. */
+	public synchronized void failure() {
+		if (state == State.HALF_OPEN || ++failures >= threshold) {
+			state = State.OPEN;
+			since = System.nanoTime();
+		}
+	}
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright 2008-2009 by Michal Nazarewicz (mina86/AT/mina86.com)
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mina86.util;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+
+/**
+ * A consistent hash ring.  Each node is placed on the ring several
+ * times (at positions determined by hash of its string
+ * representation) so that keys are spread evenly.  A key is mapped
+ * to the first node following key's hash on the ring; when a node is
+ * added or removed only keys mapped to that node move.
+ *
+ * \param T type of nodes.
+ */
+public final class ConsistentHash<T> {
+	/** The ring. */
+	private final TreeMap<Long, T> ring = new TreeMap<Long, T>();
+	/** Number of distinct nodes. */
+	private final int count;
+
+
+	/**
+	 * Constructs the ring.
+	 * \param nodes    nodes to place on the ring.
+	 * \param replicas how many times to place each node on the ring.
+	 */
+	public ConsistentHash(Collection<T> nodes, int replicas) {
+		for (T node : nodes) {
+			for (int i = 0; i < replicas; ++i) {
+				ring.put(hash(node.toString() + "#" + i), node);
+			}
+		}
+		count = new LinkedHashSet<T>(nodes).size();
+	}
+
+
+	/**
+	 * Returns all nodes in order of preference for given key.  The
+	 * first node is the one key maps to, the following are the ones
+	 * key would map to if all the previous nodes were removed.
+	 * \param key the key.
+	 */
+	public List<T> order(String key) {
+		LinkedHashSet<T> nodes = new LinkedHashSet<T>();
+		long h = hash(key);
+		for (T node : ring.tailMap(h).values()) {
+			if (nodes.size() == count) break;
+			nodes.add(node);
+		}
+		for (T node : ring.headMap(h).values()) {
+			if (nodes.size() == count) break;
+			nodes.add(node);
+		}
+		return new ArrayList<T>(nodes);
+	}
+
+
+	/**
+	 * Returns a hash of a string.
+	 * \param str string to hash.
+	 */
+	private static long hash(String str) {
+		byte digest[];
+		try {
+			digest = MessageDigest.getInstance("MD5")
+				.digest(str.getBytes(StandardCharsets.UTF_8));
+		}
+		catch (NoSuchAlgorithmException e) {
+			return str.hashCode();
+		}
+
+		long h = 0;
+		for (int i = 0; i < 8; ++i) {
+			h = (h << 8) | (digest[i] & 0xff);
+		}
+		return h;
+	}
+}
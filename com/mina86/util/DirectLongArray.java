@@ -0,0 +1,233 @@
+/*
+ * Copyright 2008-2009 by Michal Nazarewicz (mina86/AT/mina86.com)
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mina86.util;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+
+/**
+ * An array of longs kept outside of Java heap.  Memory is allocated
+ * as direct byte buffers so it does not put pressure on garbage
+ * collector and is freed when the array becomes unreachable.  Since
+ * a single buffer holds at most 2 GiB the array is split into chunks
+ * of 1 GiB and may hold more then 2^31 elements.
+ *
+ * Elements are stored in native byte order so accessing them does not
+ * swap bytes.  writeTo() and readFrom() convert them to and from big
+ * endian order so the array can be written to a channel and read back
+ * on any machine.
+ *
+ * get() and set() check the index.  getUnchecked() and
+ * setUnchecked() do not and are meant for tight loops whose bounds
+ * were checked once; buffer's own checks remain but JIT hoists them
+ * out of such loops.
+ */
+public final class DirectLongArray {
+	/** Log2 of number of elements in a chunk. */
+	static final int chunkShift = 27;
+	/** Mask for index of an element within a chunk. */
+	private static final long chunkMask = (1L << chunkShift) - 1;
+
+	/** Size of buffer used to convert byte order in bytes. */
+	private static final int scratchSize = 1 << 16;
+	/** Whether bytes have to be swapped when written or read. */
+	private static final boolean swap =
+		ByteOrder.nativeOrder() != ByteOrder.BIG_ENDIAN;
+
+
+	/** Number of elements. */
+	private final long length;
+	/** Chunks of memory. */
+	private final ByteBuffer buffers[];
+
+
+	/**
+	 * Allocates an array filled with zeros.
+	 * \param theLength number of elements.
+	 * \throw IllegalArgumentException if \a theLength is negative.
+	 */
+	public DirectLongArray(long theLength) {
+		if (theLength < 0) {
+			throw new IllegalArgumentException("negative length (" + theLength + ")");
+		}
+
+		length = theLength;
+		int chunks = (int)((length + chunkMask) >>> chunkShift);
+		buffers = new ByteBuffer[chunks];
+		for (int i = 0; i < chunks; ++i) {
+			long n = Math.min(length - ((long)i << chunkShift), 1L << chunkShift);
+			buffers[i] = ByteBuffer.allocateDirect((int)(n << 3))
+				.order(ByteOrder.nativeOrder());
+		}
+	}
+
+
+	/** Returns number of elements. */
+	public long length() {
+		return length;
+	}
+
+	/**
+	 * Returns chunks of memory.  Chunk \a c holds elements starting
+	 * at <tt>c << chunkShift</tt> in native byte order.
+	 */
+	ByteBuffer[] buffers() {
+		return buffers;
+	}
+
+	/**
+	 * Returns element at given index.
+	 * \param i element's index.
+	 * \throw IndexOutOfBoundsException if index is out of bounds.
+	 */
+	public long get(long i) {
+		check(i);
+		return getUnchecked(i);
+	}
+
+	/**
+	 * Sets element at given index.
+	 * \param i element's index.
+	 * \param v new value.
+	 * \throw IndexOutOfBoundsException if index is out of bounds.
+	 */
+	public void set(long i, long v) {
+		check(i);
+		setUnchecked(i, v);
+	}
+
+	/**
+	 * Returns element at given index without checking the index.
+	 * Caller must make sure index is within bounds.
+	 * \param i element's index.
+	 */
+	public long getUnchecked(long i) {
+		return buffers[(int)(i >>> chunkShift)].getLong((int)((i & chunkMask) << 3));
+	}
+
+	/**
+	 * Sets element at given index without checking the index.  Caller
+	 * must make sure index is within bounds.
+	 * \param i element's index.
+	 * \param v new value.
+	 */
+	public void setUnchecked(long i, long v) {
+		buffers[(int)(i >>> chunkShift)].putLong((int)((i & chunkMask) << 3), v);
+	}
+
+	/**
+	 * Checks whether index is within bounds.
+	 * \param i index to check.
+	 * \throw IndexOutOfBoundsException if it is not.
+	 */
+	private void check(long i) {
+		if (i < 0 || i >= length) {
+			throw new IndexOutOfBoundsException("index " + i + " out of bounds for length " + length);
+		}
+	}
+
+
+	/**
+	 * Writes all elements to a channel in big endian order.  If that
+	 * is the native order memory is handed to the channel as is,
+	 * otherwise it is converted through a small buffer; either way
+	 * the array is not copied to Java heap first.
+	 * \param ch channel to write to.
+	 * \throw IOException if channel throws it.
+	 */
+	public void writeTo(WritableByteChannel ch) throws IOException {
+		ByteBuffer scratch = swap ? scratch() : null;
+		for (ByteBuffer buffer : buffers) {
+			ByteBuffer b = buffer.duplicate().order(buffer.order());
+			b.clear();
+			if (scratch == null) {
+				while (b.hasRemaining()) {
+					ch.write(b);
+				}
+				continue;
+			}
+
+			LongBuffer src = b.asLongBuffer();
+			while (src.hasRemaining()) {
+				int n = Math.min(src.remaining(), scratchSize >> 3);
+				scratch.clear();
+				scratch.asLongBuffer().put(src.slice(src.position(), n));
+				src.position(src.position() + n);
+				scratch.limit(n << 3);
+				while (scratch.hasRemaining()) {
+					ch.write(scratch);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Reads all elements from a channel.  Data must have been written
+	 * by writeTo() of an array of the same length.
+	 * \param ch channel to read from.
+	 * \throw EOFException if channel ends before all elements are read.
+	 * \throw IOException if channel throws it.
+	 */
+	public void readFrom(ReadableByteChannel ch) throws IOException {
+		ByteBuffer scratch = swap ? scratch() : null;
+		for (ByteBuffer buffer : buffers) {
+			ByteBuffer b = buffer.duplicate().order(buffer.order());
+			b.clear();
+			if (scratch == null) {
+				read(ch, b);
+				continue;
+			}
+
+			LongBuffer dst = b.asLongBuffer();
+			while (dst.hasRemaining()) {
+				int n = Math.min(dst.remaining(), scratchSize >> 3);
+				scratch.clear().limit(n << 3);
+				read(ch, scratch);
+				scratch.flip();
+				dst.put(scratch.asLongBuffer());
+			}
+		}
+	}
+
+	/**
+	 * Fills a buffer from a channel.
+	 * \param ch channel to read from.
+	 * \param b  buffer to fill.
+	 * \throw EOFException if channel ends before buffer is filled.
+	 * \throw IOException if channel throws it.
+	 */
+	private static void read(ReadableByteChannel ch, ByteBuffer b)
+		throws IOException {
+		while (b.hasRemaining()) {
+			if (ch.read(b) < 0) {
+				throw new EOFException();
+			}
+		}
+	}
+
+	/** Returns a buffer to convert elements to big endian order in. */
+	private static ByteBuffer scratch() {
+		return ByteBuffer.allocateDirect(scratchSize).order(ByteOrder.BIG_ENDIAN);
+	}
+}
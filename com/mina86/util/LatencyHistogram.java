@@ -0,0 +1,168 @@
+/*
+ * Copyright 2008-2009 by Michal Nazarewicz (mina86/AT/mina86.com)
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mina86.util;
+
+import java.text.DecimalFormat;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+
+
+/**
+ * A fixed memory histogram of durations.  Buckets are logarithmic
+ * with each power of two split into 32 linear sub-buckets so that
+ * relative error of reported values is about 3% over the whole range
+ * of \c long.  All memory is allocated up front and recording
+ * a value does not allocate anything nor take any locks so it can be
+ * used on hot paths and from many threads at once.
+ */
+public final class LatencyHistogram {
+	/** Number of bits of precision. */
+	private static final int bits = 6;
+	/** Number of linear buckets at the bottom of the range. */
+	private static final int linear = 1 << bits;
+	/** Number of sub-buckets in each power of two above linear range. */
+	private static final int half = linear / 2;
+	/** Total number of buckets. */
+	private static final int buckets = linear + (63 - bits) * half;
+
+	/** Percentiles printed in summary. */
+	private static final double summaryPercentiles[] = {
+		50, 90, 99, 99.9
+	};
+
+
+	/** Histogram's name. */
+	private final String name;
+	/** Counts of values in each bucket. */
+	private final AtomicLongArray counts = new AtomicLongArray(buckets);
+	/** Largest recorded value. */
+	private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+
+	/**
+	 * Constructs histogram.
+	 * \param theName histogram's name used in summary.
+	 */
+	public LatencyHistogram(String theName) {
+		name = theName;
+	}
+
+
+	/**
+	 * Records a value.
+	 * \param nanos duration in nanoseconds; negative values are
+	 *              treated as zero.
+	 */
+	public void record(long nanos) {
+		if (nanos < 0) nanos = 0;
+		counts.incrementAndGet(index(nanos));
+		max.accumulate(nanos);
+	}
+
+	/**
+	 * Records time elapsed since \a start.
+	 * \param start value of System.nanoTime() when measurement started.
+	 */
+	public void since(long start) {
+		record(System.nanoTime() - start);
+	}
+
+
+	/** Returns number of recorded values. */
+	public long count() {
+		long total = 0;
+		for (int i = 0; i < buckets; ++i) {
+			total += counts.get(i);
+		}
+		return total;
+	}
+
+	/** Returns largest recorded value in nanoseconds. */
+	public long max() {
+		return max.get();
+	}
+
+	/**
+	 * Returns value at given percentile in nanoseconds.  Returned
+	 * value is in the middle of the bucket the percentile falls into.
+	 * \param percentile percentile from zero to hundred.
+	 */
+	public long percentile(double percentile) {
+		long total = count();
+		if (total == 0) {
+			return 0;
+		}
+
+		long target = (long)Math.ceil(total * percentile / 100);
+		if (target < 1) target = 1;
+		long seen = 0;
+		for (int i = 0; i < buckets; ++i) {
+			seen += counts.get(i);
+			if (seen >= target) {
+				return Math.min(middle(i), max());
+			}
+		}
+		return max();
+	}
+
+
+	/** Returns a one line summary of the histogram. */
+	public String summary() {
+		StringBuilder buf = new StringBuilder(name);
+		buf.append(": n=").append(count());
+		for (double p : summaryPercentiles) {
+			buf.append(", p").append(new DecimalFormat("0.#").format(p))
+				.append('=').append(format(percentile(p)));
+		}
+		return buf.append(", max=").append(format(max())).toString();
+	}
+
+	/**
+	 * Formats duration in milliseconds.
+	 * \param nanos duration in nanoseconds.
+	 */
+	private static String format(long nanos) {
+		return (new DecimalFormat("0.000")).format(nanos / 1e6) + " ms";
+	}
+
+
+	/**
+	 * Returns index of bucket given value falls into.
+	 * \param v non-negative value.
+	 */
+	private static int index(long v) {
+		if (v < linear) {
+			return (int)v;
+		}
+		int shift = 64 - Long.numberOfLeadingZeros(v) - bits;
+		return linear + (shift - 1) * half + (int)(v >>> shift) - half;
+	}
+
+	/**
+	 * Returns value in the middle of given bucket.
+	 * \param i bucket's index.
+	 */
+	private static long middle(int i) {
+		if (i < linear) {
+			return i;
+		}
+		int shift = (i - linear) / half + 1;
+		long top = (i - linear) % half + half;
+		return (top << shift) + (1L << (shift - 1));
+	}
+}
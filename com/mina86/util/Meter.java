@@ -0,0 +1,70 @@
+/*
+ * Copyright 2008-2009 by Michal Nazarewicz (mina86/AT/mina86.com)
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mina86.util;
+
+import java.util.concurrent.atomic.LongAdder;
+
+
+/**
+ * Counts events and measures their rate.  Marking an event is cheap
+ * and can be done from many threads at once as the counter is
+ * striped.  The rate is calculated lazily when it is read from the
+ * number of events since the previous read which was at least
+ * a second ago.
+ */
+public final class Meter {
+	/** Number of events. */
+	private final LongAdder count = new LongAdder();
+	/** Number of events when rate was last calculated. */
+	private long lastCount = 0;
+	/** Time when rate was last calculated in nanoseconds. */
+	private long lastTime = System.nanoTime();
+	/** Last calculated rate. */
+	private double rate = 0;
+
+
+	/** Marks a single event. */
+	public void mark() {
+		count.increment();
+	}
+
+	/**
+	 * Marks \a n events.
+	 * \param n number of events.
+	 */
+	public void mark(long n) {
+		count.add(n);
+	}
+
+	/** Returns number of events. */
+	public long count() {
+		return count.sum();
+	}
+
+	/** Returns number of events per second. */
+	public synchronized double rate() {
+		long now = System.nanoTime(), elapsed = now - lastTime;
+		if (elapsed >= 1000000000L) {
+			long c = count.sum();
+			rate = (c - lastCount) * 1e9 / elapsed;
+			lastCount = c;
+			lastTime = now;
+		}
+		return rate;
+	}
+}
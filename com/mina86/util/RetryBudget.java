@@ -0,0 +1,71 @@
+/*
+ * Copyright 2008-2009 by Michal Nazarewicz (mina86/AT/mina86.com)
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mina86.util;
+
+
+/**
+ * Limits number of retries.  The budget is a token bucket: each
+ * retry takes a token and each successful call deposits a fraction of
+ * a token.  In addition the bucket is slowly refilled with time so
+ * that a caller which never succeeds can still retry now and then.
+ * This keeps retries a bounded fraction of the traffic.
+ */
+public final class RetryBudget {
+	/** Tokens deposited for each success. */
+	private final double ratio;
+	/** Tokens added per second. */
+	private final double perSecond;
+	/** Maximal number of tokens. */
+	private final double max;
+
+	/** Number of tokens. */
+	private double tokens;
+	/** When tokens were last refilled (System.nanoTime()). */
+	private long refilled = System.nanoTime();
+
+
+	/**
+	 * Constructs a budget with a full bucket.
+	 * \param theRatio     tokens deposited for each success.
+	 * \param thePerSecond tokens added per second.
+	 * \param theMax       maximal number of tokens.
+	 */
+	public RetryBudget(double theRatio, double thePerSecond, double theMax) {
+		ratio = theRatio;
+		perSecond = thePerSecond;
+		max = tokens = theMax;
+	}
+
+
+	/** Takes a token if there is one and returns whether it did. */
+	public synchronized boolean tryAcquire() {
+		long now = System.nanoTime();
+		tokens = Math.min(max, tokens + (now - refilled) * perSecond / 1e9);
+		refilled = now;
+		if (tokens < 1) {
+			return false;
+		}
+		tokens -= 1;
+		return true;
+	}
+
+	/** Deposits tokens for a successful call. */
+	public synchronized void deposit() {
+		tokens = Math.min(max, tokens + ratio);
+	}
+}
@@ -17,8 +17,24 @@
 
 package com.mina86.util;
 
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
 
-/** Runs given command until it succeeds. */
+
+/**
+ * Runs given command until it succeeds.  The run() methods block the
+ * calling thread while waiting between retries.  The schedule()
+ * method runs the retries on a scheduler instead and reports the
+ * outcome through a CompletableFuture.
+ */
 public final class RunRetry {
 	/** A job that is being run. */
 	public interface Job {
@@ -29,8 +45,41 @@ public final class RunRetry {
 		 * \throw InterruptedException if it wants it can. ;)
 		 */
 		public boolean run(boolean first) throws InterruptedException;
+
+		/**
+		 * Called after run() failed.  Returns how long the other side
+		 * asked to wait before the next attempt in miliseconds or
+		 * zero if it did not.  Such a hint replaces the backoff of
+		 * schedule() and, as the other side is busy rather then
+		 * down, does not count against circuit breaker nor retry
+		 * budget.
+		 */
+		public default long retryAfter() {
+			return 0;
+		}
 	};
 
+	/**
+	 * Java Flight Recorder event covering time spent waiting before
+	 * a retry.
+	 */
+	@Name("com.mina86.util.RetrySleep")
+	@Label("Retry Sleep")
+	@Category("Distributed Computing")
+	@Description("Waiting before retrying a failed operation")
+	public static final class Sleep extends Event {
+		/** Number of failed attempts so far. */
+		@Label("Failures")
+		public int failures;
+		/** Requested delay. */
+		@Label("Delay")
+		@Timespan(Timespan.MILLISECONDS)
+		public long delay;
+		/** Whether delay was asked for by the other side. */
+		@Label("Hinted")
+		public boolean hinted;
+	}
+
 
 	/**
 	 * Executes given \a job until it succeeds.  If it does not
@@ -47,10 +96,45 @@ public final class RunRetry {
 	 */
 	public static void run(Job job, long startDelay, long maxDelay)
 		throws InterruptedException {
+		run(job, startDelay, maxDelay, null);
+	}
+
+
+	/**
+	 * Executes given \a job until it succeeds.  Works the same way as
+	 * run(Job, long, long) but in addition records time spent
+	 * sleeping in \a sleeps histogram.
+	 *
+	 * \param job        job to run.
+	 * \param startDelay starting delay in seconds.
+	 * \param maxDelay   maximal delay in seconds.
+	 * \param sleeps     histogram to record sleeps in or \c null.
+	 * \throw InterruptedException if thread was interrupted while
+	 *                             sleeping or job throws that exception.
+	 */
+	public static void run(Job job, long startDelay, long maxDelay,
+	                       LatencyHistogram sleeps)
+		throws InterruptedException {
 		long delay = startDelay;
+		int failures = 0;
 		for (boolean ok = job.run(true); !ok; ok = job.run(false)) {
 			System.out.println("Sleeping " + delay + " before retry.");
-			Thread.sleep(delay * 1000);
+			long start = System.nanoTime();
+			++failures;
+			Sleep event = new Sleep();
+			event.begin();
+			try {
+				Thread.sleep(delay * 1000);
+			}
+			finally {
+				if (sleeps != null) sleeps.since(start);
+				event.end();
+				if (event.shouldCommit()) {
+					event.failures = failures;
+					event.delay = delay * 1000;
+					event.commit();
+				}
+			}
 			delay *= 2;
 			if (delay > maxDelay) delay = maxDelay;
 		}
@@ -88,4 +172,247 @@ public final class RunRetry {
 	public static void run(Job job) throws InterruptedException {
 		run(job, 4, 1024);
 	}
+
+
+	/**
+	 * Executes given \a job until it succeeds.  Works the same way as
+	 * run(Job) but in addition records time spent sleeping in \a
+	 * sleeps histogram.
+	 *
+	 * \param job        job to run.
+	 * \param sleeps     histogram to record sleeps in or \c null.
+	 * \throw InterruptedException if thread was interrupted while
+	 *                             sleeping or job throws that exception.
+	 */
+	public static void run(Job job, LatencyHistogram sleeps)
+		throws InterruptedException {
+		run(job, 4, 1024, sleeps);
+	}
+
+
+	/** How delay between retries is randomised. */
+	public enum Jitter {
+		/** Delay is doubled with each retry, no randomisation. */
+		NONE,
+		/** Delay is random between zero and the doubled delay. */
+		FULL,
+		/**
+		 * Delay is random between the starting delay and three times
+		 * the previous delay.
+		 */
+		DECORRELATED
+	};
+
+
+	/** Describes how schedule() retries a job. */
+	public static final class Policy {
+		/** Starting delay in miliseconds. */
+		public final long startDelay;
+		/** Maximal delay in miliseconds. */
+		public final long maxDelay;
+		/** How delay is randomised. */
+		public final Jitter jitter;
+		/** Circuit breaker guarding the endpoint or \c null. */
+		public final CircuitBreaker breaker;
+		/** Retry budget or \c null. */
+		public final RetryBudget budget;
+
+		/**
+		 * Constructs object.
+		 * \param theStartDelay starting delay in miliseconds.
+		 * \param theMaxDelay   maximal delay in miliseconds.
+		 * \param theJitter     how delay is randomised.
+		 * \param theBreaker    circuit breaker guarding the endpoint or
+		 *                      \c null.
+		 * \param theBudget     retry budget or \c null.
+		 */
+		public Policy(long theStartDelay, long theMaxDelay, Jitter theJitter,
+		              CircuitBreaker theBreaker, RetryBudget theBudget) {
+			startDelay = theStartDelay;
+			maxDelay = theMaxDelay;
+			jitter = theJitter;
+			breaker = theBreaker;
+			budget = theBudget;
+		}
+
+		/**
+		 * Returns delay before the next retry.
+		 * \param attempt number of failed attempts so far.
+		 * \param prev    previous delay in miliseconds or zero.
+		 */
+		long nextDelay(int attempt, long prev) {
+			ThreadLocalRandom random = ThreadLocalRandom.current();
+			long delay;
+			switch (jitter) {
+			case FULL:
+				delay = startDelay << Math.min(attempt - 1, 30);
+				delay = random.nextLong(Math.min(delay, maxDelay) + 1);
+				break;
+			case DECORRELATED:
+				delay = Math.max(startDelay, prev * 3);
+				delay = startDelay + random.nextLong(delay - startDelay + 1);
+				break;
+			default:
+				delay = prev == 0 ? startDelay : prev * 2;
+			}
+			return Math.min(delay, maxDelay);
+		}
+	};
+
+
+	/**
+	 * Executes given \a job on \a executor until it succeeds.  The
+	 * calling thread is not blocked, instead a future is returned
+	 * which completes when the job succeeds.  If job throws an
+	 * exception the future completes exceptionally with it.
+	 * Cancelling the future stops the retries.
+	 *
+	 * Between failed attempts job is rescheduled with a delay
+	 * computed according to \a policy.  In addition, if policy has
+	 * a circuit breaker no attempt is made while it is open and each
+	 * outcome is reported to it; if policy has a retry budget each
+	 * retry takes a token from it and when budget is exhausted the
+	 * retry is postponed by the maximal delay.
+	 *
+	 * \param job      job to run.
+	 * \param policy   how to retry the job.
+	 * \param executor scheduler to run the job on.
+	 * \param sleeps   histogram to record delays in or \c null.
+	 * \return future completing when job succeeds.
+	 */
+	public static CompletableFuture<Void> schedule(Job job, Policy policy,
+	                                               ScheduledExecutorService executor,
+	                                               LatencyHistogram sleeps) {
+		Attempt attempt = new Attempt(job, policy, executor, sleeps);
+		executor.execute(attempt);
+		return attempt.future;
+	}
+
+
+	/** A single attempt at running job scheduled by schedule(). */
+	private static final class Attempt implements Runnable {
+		/** Job to run. */
+		private final Job job;
+		/** How to retry the job. */
+		private final Policy policy;
+		/** Scheduler to run the job on. */
+		private final ScheduledExecutorService executor;
+		/** Histogram to record delays in or \c null. */
+		private final LatencyHistogram sleeps;
+		/** Future completed when job succeeds. */
+		final CompletableFuture<Void> future = new CompletableFuture<Void>();
+
+		/** Number of failed attempts. */
+		private int failures = 0;
+		/** Previous delay in miliseconds. */
+		private long delay = 0;
+		/** When attempt was scheduled (System.nanoTime()) or zero. */
+		private long scheduled = 0;
+		/** Whether last failure came with a retry hint. */
+		private boolean hinted = false;
+		/** Event covering current wait or \c null. */
+		private Sleep event = null;
+
+		/**
+		 * Constructs object.
+		 * \param theJob      job to run.
+		 * \param thePolicy   how to retry the job.
+		 * \param theExecutor scheduler to run the job on.
+		 * \param theSleeps   histogram to record delays in or \c null.
+		 */
+		Attempt(Job theJob, Policy thePolicy,
+		        ScheduledExecutorService theExecutor,
+		        LatencyHistogram theSleeps) {
+			job = theJob;
+			policy = thePolicy;
+			executor = theExecutor;
+			sleeps = theSleeps;
+		}
+
+		public void run() {
+			if (scheduled != 0 && sleeps != null) {
+				sleeps.since(scheduled);
+			}
+			scheduled = 0;
+			if (event != null) {
+				event.end();
+				event.commit();
+				event = null;
+			}
+			if (future.isDone()) {
+				return;
+			}
+
+			CircuitBreaker breaker = policy.breaker;
+			if (breaker != null && !breaker.allow()) {
+				/* Spread the clients waiting for the breaker. */
+				later(breaker.retryIn() +
+				      ThreadLocalRandom.current().nextLong(policy.startDelay + 1));
+				return;
+			}
+			if (failures > 0 && !hinted && policy.budget != null &&
+			    !policy.budget.tryAcquire()) {
+				System.out.println("Retry budget exhausted.");
+				later(policy.maxDelay);
+				return;
+			}
+
+			boolean ok;
+			try {
+				ok = job.run(failures == 0);
+			}
+			catch (Throwable e) {
+				future.completeExceptionally(e);
+				return;
+			}
+
+			if (ok) {
+				if (breaker != null) breaker.success();
+				if (policy.budget != null) policy.budget.deposit();
+				future.complete(null);
+				return;
+			}
+
+			long hint = job.retryAfter();
+			hinted = hint > 0;
+			if (hinted) {
+				/* Add a little jitter so that clients told to come
+				 * back at the same time do not. */
+				hint += ThreadLocalRandom.current().nextLong(hint / 4 + 1);
+				++failures;
+				System.out.println("Server busy, sleeping " + hint / 1000.0 +
+				                   " before retry.");
+				later(hint);
+				return;
+			}
+
+			if (breaker != null) breaker.failure();
+			delay = policy.nextDelay(++failures, delay);
+			System.out.println("Sleeping " + delay / 1000.0 + " before retry.");
+			later(delay);
+		}
+
+		/**
+		 * Schedules another attempt.
+		 * \param millis delay in miliseconds.
+		 */
+		private void later(long millis) {
+			scheduled = System.nanoTime();
+			event = new Sleep();
+			if (event.isEnabled()) {
+				event.failures = failures;
+				event.delay = millis;
+				event.hinted = hinted;
+				event.begin();
+			} else {
+				event = null;
+			}
+			try {
+				executor.schedule(this, millis, TimeUnit.MILLISECONDS);
+			}
+			catch (RuntimeException e) {
+				future.completeExceptionally(e);
+			}
+		}
+	};
 };
@@ -0,0 +1,223 @@
+/*
+ * Copyright 2008-2009 by Michal Nazarewicz (mina86/AT/mina86.com)
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mina86.util;
+
+import java.nio.ByteBuffer;
+import java.util.stream.IntStream;
+
+
+/**
+ * Checks whether arrays of longs are sorted.  Checks are done by
+ * a kernel which uses Vector API if it is available (that is if
+ * <tt>jdk.incubator.vector</tt> module was added with
+ * <tt>--add-modules</tt>) and a scalar loop otherwise.  Large arrays
+ * are split into chunks checked in parallel.
+ */
+public final class SortedCheck {
+	/** Arrays shorter then that are checked with the scalar loop. */
+	private static final int vectorThreshold = 64;
+	/** Arrays at least that long are checked in parallel. */
+	private static final long parallelThreshold = 1L << 20;
+	/** Minimal number of elements checked by a single parallel part. */
+	private static final long minPart = 1L << 18;
+
+
+	/** A kernel checking whether part of an array is sorted. */
+	interface Kernel {
+		/**
+		 * Returns whether elements from \a from to \a to (exclusive)
+		 * of \a a are in non-descending order.
+		 * \param a    array to check.
+		 * \param from index of the first element.
+		 * \param to   index past the last element.
+		 */
+		boolean isSorted(long a[], int from, int to);
+
+		/**
+		 * Returns whether elements from \a from to \a to (exclusive)
+		 * of \a b are in non-descending order.  Elements are big
+		 * endian longs and indexes are in elements, not bytes.
+		 * \param b    buffer to check.
+		 * \param from index of the first element.
+		 * \param to   index past the last element.
+		 */
+		boolean isSorted(ByteBuffer b, int from, int to);
+	}
+
+	/** A scalar kernel. */
+	static final class ScalarKernel implements Kernel {
+		public boolean isSorted(long a[], int from, int to) {
+			for (int i = from + 1; i < to; ++i) {
+				if (a[i - 1] > a[i]) return false;
+			}
+			return true;
+		}
+
+		public boolean isSorted(ByteBuffer b, int from, int to) {
+			for (int i = from + 1; i < to; ++i) {
+				if (b.getLong((i - 1) << 3) > b.getLong(i << 3)) return false;
+			}
+			return true;
+		}
+	}
+
+
+	/** Scalar kernel. */
+	private static final Kernel scalar = new ScalarKernel();
+	/** Kernel used for longer arrays. */
+	private static final Kernel kernel = loadKernel();
+
+	/**
+	 * Loads vector kernel and checks that it works.  Returns scalar
+	 * kernel if vector kernel is not available.
+	 */
+	private static Kernel loadKernel() {
+		try {
+			Kernel k = (Kernel)Class.forName("com.mina86.util.VectorSortedKernel")
+				.getDeclaredConstructor().newInstance();
+			long a[] = new long[vectorThreshold * 2];
+			for (int i = 0; i < a.length; ++i) a[i] = i;
+			ByteBuffer b = ByteBuffer.allocateDirect(a.length << 3);
+			b.asLongBuffer().put(a);
+			if (!k.isSorted(a, 0, a.length) || !k.isSorted(b, 0, a.length)) {
+				return scalar;
+			}
+			a[a.length - 2] = a.length;
+			b.putLong((a.length - 2) << 3, a.length);
+			if (k.isSorted(a, 0, a.length) || k.isSorted(b, 0, a.length)) {
+				return scalar;
+			}
+			return k;
+		}
+		catch (Throwable e) {
+			return scalar;
+		}
+	}
+
+	/** Returns whether Vector API kernel is used. */
+	public static boolean isVectorized() {
+		return kernel != scalar;
+	}
+
+
+	/** No instances. */
+	private SortedCheck() { }
+
+
+	/**
+	 * Returns whether array is sorted in non-descending order.
+	 * \param a array to check.
+	 */
+	public static boolean isSorted(long a[]) {
+		return isSorted(a, 0, a.length);
+	}
+
+	/**
+	 * Returns whether elements from \a from to \a to (exclusive) of
+	 * \a a are in non-descending order.
+	 * \param a    array to check.
+	 * \param from index of the first element.
+	 * \param to   index past the last element.
+	 * \throw IndexOutOfBoundsException if range is invalid.
+	 */
+	public static boolean isSorted(final long a[], int from, int to) {
+		if (from < 0 || to > a.length || from > to) {
+			throw new IndexOutOfBoundsException("invalid range <" + from + ", " + to + ")");
+		}
+		final int n = to - from;
+		if (n < vectorThreshold) {
+			return scalar.isSorted(a, from, to);
+		}
+		final int parts = parts(n);
+		if (parts == 1) {
+			return kernel.isSorted(a, from, to);
+		}
+
+		/* Parts overlap by one element so that pairs on the
+		 * boundaries are checked as well. */
+		final int start = from;
+		return IntStream.range(0, parts).parallel().allMatch(p -> {
+			int lo = start + (int)((long)n * p / parts);
+			int hi = start + (int)((long)n * (p + 1) / parts);
+			return kernel.isSorted(a, lo, Math.min(hi + 1, start + n));
+		});
+	}
+
+	/**
+	 * Returns whether array is sorted in non-descending order.
+	 * \param a array to check.
+	 */
+	public static boolean isSorted(final DirectLongArray a) {
+		final long n = a.length();
+		if (n < vectorThreshold) {
+			for (long i = 1; i < n; ++i) {
+				if (a.getUnchecked(i - 1) > a.getUnchecked(i)) return false;
+			}
+			return true;
+		}
+
+		final int parts = parts(n);
+		if (parts == 1) {
+			return isSorted(a, 0, n);
+		}
+		return IntStream.range(0, parts).parallel().allMatch(p -> {
+			long lo = n / parts * p + Math.min(p, n % parts);
+			long hi = n / parts * (p + 1) + Math.min(p + 1, n % parts);
+			return isSorted(a, lo, Math.min(hi + 1, n));
+		});
+	}
+
+	/**
+	 * Returns whether elements from \a from to \a to (exclusive) of
+	 * \a a are in non-descending order.
+	 * \param a    array to check.
+	 * \param from index of the first element.
+	 * \param to   index past the last element.
+	 */
+	private static boolean isSorted(DirectLongArray a, long from, long to) {
+		ByteBuffer buffers[] = a.buffers();
+		int shift = DirectLongArray.chunkShift;
+		for (long i = from; i < to; ) {
+			int c = (int)(i >>> shift);
+			long chunkStart = (long)c << shift;
+			long end = Math.min(to, chunkStart + (1L << shift));
+			if (!kernel.isSorted(buffers[c], (int)(i - chunkStart),
+			                     (int)(end - chunkStart))) {
+				return false;
+			}
+			/* Pair crossing chunk boundary. */
+			if (end < to && a.getUnchecked(end - 1) > a.getUnchecked(end)) {
+				return false;
+			}
+			i = end;
+		}
+		return true;
+	}
+
+	/**
+	 * Returns number of parts to split array of given length into.
+	 * \param n array's length.
+	 */
+	private static int parts(long n) {
+		int cpus = Runtime.getRuntime().availableProcessors();
+		if (n < parallelThreshold || cpus == 1) {
+			return 1;
+		}
+		return (int)Math.max(1, Math.min(cpus * 4L, n / minPart));
+	}
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright 2008-2009 by Michal Nazarewicz (mina86/AT/mina86.com)
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mina86.util;
+
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+
+/**
+ * Accumulates time spent doing something.  Counters are striped so
+ * adding a sample is cheap even if many threads do it at once.
+ */
+public final class TimeCounter {
+	/** Number of samples. */
+	private final LongAdder count = new LongAdder();
+	/** Total time in nanoseconds. */
+	private final LongAdder total = new LongAdder();
+	/** Longest sample in nanoseconds. */
+	private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+
+	/**
+	 * Adds a sample.
+	 * \param nanos duration in nanoseconds.
+	 */
+	public void add(long nanos) {
+		count.increment();
+		total.add(nanos);
+		max.accumulate(nanos);
+	}
+
+	/**
+	 * Adds a sample which started at \a start.
+	 * \param start value of System.nanoTime() when measurement started.
+	 */
+	public void since(long start) {
+		add(System.nanoTime() - start);
+	}
+
+	/** Returns number of samples. */
+	public long count() { return count.sum(); }
+	/** Returns total time in nanoseconds. */
+	public long total() { return total.sum(); }
+	/** Returns longest sample in nanoseconds. */
+	public long max() { return max.get(); }
+
+	/** Returns average sample in nanoseconds. */
+	public long mean() {
+		long c = count.sum();
+		return c == 0 ? 0 : total.sum() / c;
+	}
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright 2008-2009 by Michal Nazarewicz (mina86/AT/mina86.com)
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mina86.util;
+
+import java.nio.ByteBuffer;
+import jdk.incubator.vector.LongVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+
+/**
+ * A SortedCheck kernel using Vector API.  Each step compares a vector
+ * of elements with the same vector shifted by one element.  The class
+ * is loaded by SortedCheck only if <tt>jdk.incubator.vector</tt>
+ * module is available.
+ */
+final class VectorSortedKernel implements SortedCheck.Kernel {
+	/** Species used by the kernel. */
+	private static final VectorSpecies<Long> species = LongVector.SPECIES_PREFERRED;
+
+
+	public boolean isSorted(long a[], int from, int to) {
+		int i = from, step = species.length();
+		int upper = from + species.loopBound(Math.max(to - from - 1, 0));
+		for (; i < upper; i += step) {
+			LongVector x = LongVector.fromArray(species, a, i);
+			LongVector y = LongVector.fromArray(species, a, i + 1);
+			if (x.compare(VectorOperators.GT, y).anyTrue()) return false;
+		}
+		for (++i; i < to; ++i) {
+			if (a[i - 1] > a[i]) return false;
+		}
+		return true;
+	}
+
+	public boolean isSorted(ByteBuffer b, int from, int to) {
+		int i = from, step = species.length();
+		int upper = from + species.loopBound(Math.max(to - from - 1, 0));
+		for (; i < upper; i += step) {
+			LongVector x = LongVector.fromByteBuffer(species, b, i << 3,
+			                                         b.order());
+			LongVector y = LongVector.fromByteBuffer(species, b, (i + 1) << 3,
+			                                         b.order());
+			if (x.compare(VectorOperators.GT, y).anyTrue()) return false;
+		}
+		for (++i; i < to; ++i) {
+			if (b.getLong((i - 1) << 3) > b.getLong(i << 3)) return false;
+		}
+		return true;
+	}
+}